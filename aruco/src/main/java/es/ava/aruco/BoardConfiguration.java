@@ -1,5 +1,7 @@
 package es.ava.aruco;
 
+import java.util.Arrays;
+
 /**
  * Defines a board configuration by its width, height and the ids of the markers
  * it contains. You can specify as well the distance between markers and their size.
@@ -20,4 +22,67 @@ public class BoardConfiguration{
 		this.markerSizePix = markerSizePix;
 		this.markerDistancePix = markerDistancePix;
 	}
+
+	// lookup tables used by the BoardDetector, built on first use and rebuilt if the
+	// configuration is changed (i.e. by Board.createBoardImage)
+	private int[][] indexedIds;
+	private int[] cellOfId;
+	private float[] objPoints;
+	private float objPointsSize;
+	private int objPointsSizePix, objPointsDistancePix;
+
+	/**
+	 * returns the cell of the board each marker id is in, as row*width+col, or -1 for the ids
+	 * that are not on the board. If an id appears more than once the first cell is used.
+	 * @return the table, indexed by marker id. It must not be modified.
+	 */
+	synchronized int[] cellOfId(){
+		if(cellOfId == null || indexedIds != markersId){
+			int[] cells = new int[1024];
+			Arrays.fill(cells, -1);
+			for(int j=height-1;j>=0;j--)
+				for(int k=width-1;k>=0;k--){
+					int id = markersId[j][k];
+					if(id >= 0 && id < cells.length)
+						cells[id] = j*width+k;
+				}
+			cellOfId = cells;
+			indexedIds = markersId;
+		}
+		return cellOfId;
+	}
+
+	/**
+	 * returns the corners of the markers in the board reference system, with the origin in the
+	 * center of the board, 4 corners of 3 floats for each cell in the order of cellOfId.
+	 * @param markerSizeMeters the size of each marker.
+	 * @return the object points. They must not be modified.
+	 */
+	synchronized float[] objectPoints(float markerSizeMeters){
+		if(objPoints == null || objPointsSize != markerSizeMeters ||
+				objPointsSizePix != markerSizePix || objPointsDistancePix != markerDistancePix){
+			float[] points = new float[width*height*12];
+			// size in meters of the distance between markers
+			float markerDistanceMeters = (markerDistancePix) * markerSizeMeters / (markerSizePix);
+			// translation to put the origin in the center
+			float TX=-(  ((width-1)*(markerDistanceMeters+markerSizeMeters) +markerSizeMeters)/2);
+			float TY=TX;
+			for(int y=0;y<height;y++)
+				for(int x=0;x<width;x++){
+					//points in real reference system. We see the center in the bottom-left corner
+					float AY=x*(markerDistanceMeters+markerSizeMeters ) +TY;
+					float AX=y*(markerDistanceMeters+markerSizeMeters ) +TX;
+					int p = (y*width+x)*12;
+					points[p]   = AX;                 points[p+1]  = AY;                 points[p+2]  = 0;
+					points[p+3] = AX;                 points[p+4]  = AY+markerSizeMeters; points[p+5]  = 0;
+					points[p+6] = AX+markerSizeMeters; points[p+7]  = AY+markerSizeMeters; points[p+8]  = 0;
+					points[p+9] = AX+markerSizeMeters; points[p+10] = AY;                 points[p+11] = 0;
+				}
+			objPoints = points;
+			objPointsSize = markerSizeMeters;
+			objPointsSizePix = markerSizePix;
+			objPointsDistancePix = markerDistancePix;
+		}
+		return objPoints;
+	}
 }
@@ -1,22 +1,38 @@
 package es.ava.aruco;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Vector;
 
 import org.opencv.calib3d.Calib3d;
 import org.opencv.core.CvException;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.MatOfPoint3f;
-import org.opencv.core.Point;
-import org.opencv.core.Point3;
 
 /**
  * Class to carry out a board detection. Its only method is detect.
+ * A detector keeps the pose of the last board it found to seed the next estimation, and
+ * reuses its buffers between calls, so it should be kept for every frame and only used
+ * from one thread.
  * @author Rafael Ortega
  *
  */
 public class BoardDetector {
+
+	// buffers for the points of the markers on the board, reused between frames
+	private float[] objValues = new float[0];
+	private float[] imgValues = new float[0];
+	private int[] markerOfCell = new int[0];
+	private final float[] corners = new float[8];
+	private final double[] tvec = new double[3];
+	private final MatOfPoint3f objPointsMat = new MatOfPoint3f();
+	private final MatOfPoint2f imgPointsMat = new MatOfPoint2f();
+
+	// pose of the last board found, the guess for the next one
+	private final Mat lastRvec = new Mat(3,1,CvType.CV_64FC1);
+	private final Mat lastTvec = new Mat(3,1,CvType.CV_64FC1);
+	private BoardConfiguration lastConf;
+	private float lastMarkerSize;
 	
 	/**
 	 * Determines whether a set of markers constitutes a board or not. 
@@ -34,64 +50,71 @@ public class BoardDetector {
 			CameraParameters cp, float markerSizeMeters) throws CvException{
 		bDetected.clear();
 		// find among the detected markers those who belong to the board configuration
-		int height = conf.height;
-		int width = conf.width;
-		int[][] detected = new int[width][height];// indices of the markers in the vector detectedMarkers
-		for(int i=0;i<width;i++)
-			for(int j=0;j<height;j++)
-				detected[i][j] = -1;
+		int cells = conf.width*conf.height;
+		int[] cellOfId = conf.cellOfId();
+		if(markerOfCell.length < cells)
+			markerOfCell = new int[cells];
 		int nMarkInBoard = 0;// number of detected markers
 		for(int i=0;i<detectedMarkers.size();i++){
-			boolean found = false;
 			int id = detectedMarkers.get(i).id;
-			// find it
-	        for(int j=0;j<height && ! found;j++)
-	            for(int k=0;k<width && ! found;k++)
-				if(conf.markersId[j][k] == id){
-					detected[j][k] = i;
-					nMarkInBoard++;
-					found = true;
-					bDetected.add(detectedMarkers.get(i));
-					if(markerSizeMeters > 0)
-						bDetected.lastElement().ssize = markerSizeMeters;
-				}
+			int cell = (id >= 0 && id < cellOfId.length) ? cellOfId[id] : -1;
+			if(cell != -1){
+				// if an id is detected twice the last one is used for the extrinsics
+				markerOfCell[cell] = i;
+				nMarkInBoard++;
+				bDetected.add(detectedMarkers.get(i));
+				if(markerSizeMeters > 0)
+					bDetected.lastElement().ssize = markerSizeMeters;
+			}
 		}
 		bDetected.conf = conf;
 		if(markerSizeMeters!=-1)
 			bDetected.markerSizeMeters = markerSizeMeters;
 		// calculate extrinsics
-		if(cp.isValid() && markerSizeMeters>0 && detectedMarkers.size()>1){
-			// create necessary matrix
-			List<Point3> objPoints = new ArrayList<Point3>();
-			List<Point> imgPoints = new ArrayList<Point>();
-			// size in meters of the distance between markers
-			float markerDistanceMeters = (conf.markerDistancePix) * markerSizeMeters / (conf.markerSizePix);
-
-	        for(int y=0;y<height;y++)
-	            for(int x=0;x<width;x++) {
-					if(detected[y][x] != -1){
-						imgPoints.addAll(detectedMarkers.get(detected[y][x]).toList());
-						
-						// translation to put the origin in the center
-	                    float TX=-(  ((detected.length-1)*(markerDistanceMeters+markerSizeMeters) +markerSizeMeters)/2);
-	                    float TY=-(  ((detected.length-1)*(markerDistanceMeters+markerSizeMeters) +markerSizeMeters)/2);
-	                    //points in real reference system. We see the center in the bottom-left corner
-	                    float AY=x*(markerDistanceMeters+markerSizeMeters ) +TY;
-	                    float AX=y*(markerDistanceMeters+markerSizeMeters ) +TX;
-	                    objPoints.add(new Point3(AX,AY,0));
-	                    objPoints.add(new Point3(AX,AY+markerSizeMeters, 0));
-	                    objPoints.add(new Point3(AX+markerSizeMeters,AY+markerSizeMeters,0));
-	                    objPoints.add(new Point3(AX+markerSizeMeters,AY,0));
-					}
+		if(cp.isValid() && markerSizeMeters>0 && detectedMarkers.size()>1 && nMarkInBoard>0){
+			float[] boardPoints = conf.objectPoints(markerSizeMeters);
+			if(objValues.length < nMarkInBoard*12){
+				objValues = new float[nMarkInBoard*12];
+				imgValues = new float[nMarkInBoard*8];
+			}
+			int n = 0;
+			for(int i=0;i<detectedMarkers.size();i++){
+				Marker marker = detectedMarkers.get(i);
+				int id = marker.id;
+				int cell = (id >= 0 && id < cellOfId.length) ? cellOfId[id] : -1;
+				if(cell == -1 || markerOfCell[cell] != i)
+					continue;
+				marker.get(0, 0, corners);
+				System.arraycopy(corners, 0, imgValues, n*8, 8);
+				System.arraycopy(boardPoints, cell*12, objValues, n*12, 12);
+				n++;
 			}
-	        // TODO get the opencv calls out of the loops
-	        MatOfPoint3f objPointsMat = new MatOfPoint3f();
-	        objPointsMat.fromList(objPoints);
-	        MatOfPoint2f imgPointsMat = new MatOfPoint2f();
-	        imgPointsMat.fromList(imgPoints);
-	        Calib3d.solvePnP(objPointsMat, imgPointsMat, cp.getCameraMatrix(), cp.getDistCoeff(), bDetected.Rvec, bDetected.Tvec);
+			objPointsMat.create(n*4, 1, CvType.CV_32FC3);
+			objPointsMat.put(0, 0, objValues);
+			imgPointsMat.create(n*4, 1, CvType.CV_32FC2);
+			imgPointsMat.put(0, 0, imgValues);
+			// start from the last pose of the same board, the board moves little between frames
+			boolean useGuess = lastConf == conf && lastMarkerSize == markerSizeMeters;
+			Calib3d.solvePnP(objPointsMat, imgPointsMat, cp.getCameraMatrix(), cp.getDistCoeff(),
+					lastRvec, lastTvec, useGuess, Calib3d.ITERATIVE);
+			lastRvec.copyTo(bDetected.Rvec);
+			lastTvec.copyTo(bDetected.Tvec);
+			// a board behind the camera is a wrong solution, don't start from it
+			lastTvec.get(0, 0, tvec);
+			lastConf = tvec[2] > 0 ? conf : null;
+			lastMarkerSize = markerSizeMeters;
 //	        Utils.rotateXAxis(bDetected.Rvec); rotated later, in getModelViewMatrix
 		}
+		else
+			lastConf = null;
 		return ((float)nMarkInBoard/(float)(conf.width*conf.height));
 	}
+
+	/**
+	 * forgets the pose of the last board, so the next estimation starts from scratch.
+	 * Useful after a jump in the camera position.
+	 */
+	public void resetPose(){
+		lastConf = null;
+	}
 }
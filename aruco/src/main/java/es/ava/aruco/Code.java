@@ -1,33 +1,162 @@
 package es.ava.aruco;
 
 /**
- * The code stored as matrix of int represents the inside content of a marker.
+ * The code represents the inside content of a marker.
  * It will have 7x7 dimensions.
  * 0->black
  * 1->white
+ * The cells are packed in a long, the cell in row x and column y is the
+ * bit x*7+y, so rotating or decoding a code only takes a few table lookups.
  *
  */
 public class Code {// TODO check if the parameters are in range
-	protected int[][] code;
-	
+	protected long bits;
+
+	// cells of the border, which must be all black
+	protected static final long BORDER_MASK;
+	// valid words of each of the 5 inner rows, the two bits of the id each row
+	// carries are the index of its word
+	private static final int[] WORDS = {0x10, 0x17, 0x09, 0x0e};
+	// ROTATION[x][v] is the rotated position of row x when its cells are v
+	private static final long[][] ROTATION = new long[7][128];
+	// open addressing table from the inner 5x5 cells of every rotation of every
+	// valid code to (id<<2)|rotations, with 4*1024 entries
+	private static final int TABLE_BITS = 13;
+	private static final int[] TABLE_KEYS = new int[1<<TABLE_BITS];
+	private static final int[] TABLE_VALUES = new int[1<<TABLE_BITS];
+
+	static{
+		long border = 0;
+		for(int i=0;i<7;i++){
+			border |= cell(0,i) | cell(6,i) | cell(i,0) | cell(i,6);
+		}
+		BORDER_MASK = border;
+
+		// out(i,j) = in(6-j,i) so the cell (x,y) goes to (y,6-x)
+		for(int x=0;x<7;x++)
+			for(int v=0;v<128;v++){
+				long rotated = 0;
+				for(int y=0;y<7;y++)
+					if(((v>>y) & 1) != 0)
+						rotated |= cell(y, 6-x);
+				ROTATION[x][v] = rotated;
+			}
+
+		for(int i=0;i<TABLE_KEYS.length;i++)
+			TABLE_KEYS[i] = -1;
+		// a code is read as the id of the first of its rotations that is valid,
+		// so fill in the smaller number of rotations first and never replace them
+		for(int r=0;r<4;r++)
+			for(int id=0;id<1024;id++){
+				long seen = encode(id);
+				// seen rotated r times is the valid code, i.e. seen is it rotated 4-r times
+				for(int i=0;i<(4-r)%4;i++)
+					seen = rotate(seen);
+				put(inner(seen), (id<<2)|r);
+			}
+	}
+
 	protected Code(){
-		code = new int[7][7];
+		bits = 0;
 	}
-	
+
 	protected void set(int x, int y, int value){
-		code[x][y] = value;
+		if(value == 0)
+			bits &= ~cell(x,y);
+		else
+			bits |= cell(x,y);
 	}
 
 	protected int get(int x, int y){
-		return code[x][y];
+		return (bits & cell(x,y)) != 0? 1:0;
 	}
-	
+
 	static protected Code rotate(Code in){
 		Code out = new Code();
-		for(int i=0;i<7;i++)
-			for(int j=0;j<7;j++){
-				out.code[i][j] = in.code[6-j][i];
-			}
+		out.bits = rotate(in.bits);
+		return out;
+	}
+
+	/**
+	 * Rotates a packed code 90 degrees, with the same orientation as {@link #rotate(Code)}.
+	 * @param in the packed code.
+	 * @return the rotated packed code.
+	 */
+	static protected long rotate(long in){
+		long out = 0;
+		for(int x=0;x<7;x++)
+			out |= ROTATION[x][(int)(in >>> (7*x)) & 0x7F];
+		return out;
+	}
+
+	/**
+	 * Checks if the whole border of a packed code is black.
+	 * @param in the packed code.
+	 * @return true if the border is black.
+	 */
+	static protected boolean hasBlackBorder(long in){
+		return (in & BORDER_MASK) == 0;
+	}
+
+	/**
+	 * Finds the marker a packed code belongs to. The code is valid if it
+	 * matches one of the 1024 marker codes exactly in one of its four rotations.
+	 * @param in the packed code.
+	 * @return (id<<2)|rotations, rotations being the number of times the code must be
+	 * rotated to read the id, or -1 if the code is not valid.
+	 */
+	static protected int decode(long in){
+		int key = inner(in);
+		int slot = slot(key);
+		while(TABLE_KEYS[slot] != -1){
+			if(TABLE_KEYS[slot] == key)
+				return TABLE_VALUES[slot];
+			slot = (slot+1) & (TABLE_KEYS.length-1);
+		}
+		return -1;
+	}
+
+	/**
+	 * Builds the packed code of a marker, without any rotation.
+	 * @param id the id of the marker.
+	 * @return the packed code.
+	 */
+	static protected long encode(int id){
+		long out = 0;
+		for(int x=1;x<6;x++){
+			int word = WORDS[(id >> 2*(5-x)) & 3];
+			// the first cell of the word is the most significant bit
+			for(int y=1;y<6;y++)
+				if(((word >> (5-y)) & 1) != 0)
+					out |= cell(x,y);
+		}
 		return out;
 	}
+
+	private static long cell(int x, int y){
+		return 1L << (7*x+y);
+	}
+
+	// the 5x5 inner cells packed in 25 bits
+	private static int inner(long in){
+		int out = 0;
+		for(int x=1;x<6;x++)
+			out |= (int)((in >>> (7*x+1)) & 0x1F) << (5*(x-1));
+		return out;
+	}
+
+	private static int slot(int key){
+		return (key*0x9E3779B1) >>> (32-TABLE_BITS);
+	}
+
+	private static void put(int key, int value){
+		int slot = slot(key);
+		while(TABLE_KEYS[slot] != -1){
+			if(TABLE_KEYS[slot] == key)
+				return;
+			slot = (slot+1) & (TABLE_KEYS.length-1);
+		}
+		TABLE_KEYS[slot] = key;
+		TABLE_VALUES[slot] = value;
+	}
 }
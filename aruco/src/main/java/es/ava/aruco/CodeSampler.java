@@ -0,0 +1,136 @@
+package es.ava.aruco;
+
+/**
+ * Reads the code of a candidate marker straight from a grayscale frame buffer. The
+ * homography from the canonical marker square to the candidate's corners is calculated in
+ * Java and each of the 7x7 cells is sampled on a small grid around its center, so no
+ * canonical image has to be warped and no native calls are needed. The sampler keeps its
+ * scratch buffers between candidates so it doesn't allocate; it must only be used by one
+ * thread at a time.
+ */
+class CodeSampler {
+	// samples taken per cell along each axis
+	private static final int SAMPLES = 3;
+	// fraction of the cell covered by the samples, leaving out the borders of the cell
+	private static final double SPREAD = 0.5;
+
+	private final int[] samples = new int[49*SAMPLES*SAMPLES];
+	private final int[] histogram = new int[256];
+	// homography from the unit square to the candidate
+	private double a, b, c, d, e, f, g, h;
+
+	/**
+	 * Samples the code of a candidate.
+	 * @param corners the 4 corners of the candidate [x1 y1 x2 y2 x3 y3 x4 y4], in the order
+	 * they are mapped to the canonical marker (top-left, top-right, bottom-right, bottom-left).
+	 * @param frame the grayscale frame, one byte per pixel.
+	 * @param stride distance in bytes between the start of two consecutive rows of the frame.
+	 * @param width width of the frame.
+	 * @param height height of the frame.
+	 * @param code the code to write the cells to.
+	 * @return false if part of the candidate is outside of the frame.
+	 */
+	boolean sample(float[] corners, byte[] frame, int stride, int width, int height, Code code){
+		setHomography(corners);
+
+		// take all the samples
+		int n = 0;
+		for(int x=0;x<7;x++)
+			for(int y=0;y<7;y++)
+				for(int i=0;i<SAMPLES;i++){
+					double v = (x + 0.5 + SPREAD*((i+0.5)/SAMPLES - 0.5))/7.0;
+					for(int j=0;j<SAMPLES;j++){
+						double u = (y + 0.5 + SPREAD*((j+0.5)/SAMPLES - 0.5))/7.0;
+						double w = g*u + h*v + 1.0;
+						int px = (int)((a*u + b*v + c)/w + 0.5);
+						int py = (int)((d*u + e*v + f)/w + 0.5);
+						if(px < 0 || py < 0 || px >= width || py >= height)
+							return false;
+						samples[n++] = frame[py*stride + px] & 0xFF;
+					}
+				}
+
+		// each cell is white if most of its samples are above the Otsu threshold of all of them
+		int threshold = otsu(n);
+		int perCell = SAMPLES*SAMPLES;
+		code.bits = 0;
+		for(int cell=0;cell<49;cell++){
+			int white = 0;
+			for(int k=cell*perCell;k<(cell+1)*perCell;k++)
+				if(samples[k] > threshold)
+					white++;
+			if(white > perCell/2)
+				code.bits |= 1L << cell;
+		}
+		return true;
+	}
+
+	/**
+	 * Calculates the homography from the unit square to a candidate, (0,0), (1,0), (1,1)
+	 * and (0,1) going to its 4 corners in order.
+	 * @param corners the 4 corners of the candidate [x1 y1 x2 y2 x3 y3 x4 y4].
+	 * @param H the 3x3 row-major matrix to place the homography in.
+	 */
+	void homography(float[] corners, double[] H){
+		setHomography(corners);
+		H[0] = a; H[1] = b; H[2] = c;
+		H[3] = d; H[4] = e; H[5] = f;
+		H[6] = g; H[7] = h; H[8] = 1.0;
+	}
+
+	/**
+	 * Calculates the projective mapping from the unit square to a quadrilateral, (0,0), (1,0),
+	 * (1,1) and (0,1) going to the 4 corners in order (Heckbert, "Fundamentals of Texture Mapping").
+	 */
+	private void setHomography(float[] p){
+		double dx1 = p[2] - p[4], dx2 = p[6] - p[4], dx3 = p[0] - p[2] + p[4] - p[6];
+		double dy1 = p[3] - p[5], dy2 = p[7] - p[5], dy3 = p[1] - p[3] + p[5] - p[7];
+		if(dx3 == 0 && dy3 == 0){
+			// parallelogram, the mapping is affine
+			g = h = 0;
+		}
+		else{
+			double den = dx1*dy2 - dx2*dy1;
+			g = (dx3*dy2 - dx2*dy3)/den;
+			h = (dx1*dy3 - dx3*dy1)/den;
+		}
+		a = p[2] - p[0] + g*p[2];
+		b = p[6] - p[0] + h*p[6];
+		c = p[0];
+		d = p[3] - p[1] + g*p[3];
+		e = p[7] - p[1] + h*p[7];
+		f = p[1];
+	}
+
+	// threshold maximizing the between class variance of the first n samples
+	private int otsu(int n){
+		for(int i=0;i<256;i++)
+			histogram[i] = 0;
+		long sum = 0;
+		for(int i=0;i<n;i++){
+			histogram[samples[i]]++;
+			sum += samples[i];
+		}
+		long sumBelow = 0;
+		int countBelow = 0;
+		double bestVar = -1;
+		int best = 0;
+		for(int t=0;t<256;t++){
+			countBelow += histogram[t];
+			if(countBelow == 0)
+				continue;
+			int countAbove = n - countBelow;
+			if(countAbove == 0)
+				break;
+			sumBelow += (long)t*histogram[t];
+			double meanBelow = (double)sumBelow/countBelow;
+			double meanAbove = (double)(sum - sumBelow)/countAbove;
+			double var = (double)countBelow*countAbove*(meanBelow - meanAbove)*(meanBelow - meanAbove);
+			if(var > bestVar){
+				bestVar = var;
+				best = t;
+			}
+		}
+		return best;
+	}
+}
@@ -0,0 +1,72 @@
+package es.ava.aruco;
+
+/**
+ * Summary of a detection run with a time budget, see
+ * {@link MarkerDetector#detect(org.opencv.core.Mat, java.util.Vector, CameraParameters, float, long, DetectionReport)}.
+ * A report can be reused for every frame.
+ */
+public class DetectionReport {
+	protected boolean partial;
+	protected long budgetNanos;
+	protected long elapsedNanos;
+	protected int candidates;
+	protected int skippedCandidates;
+
+	/**
+	 * returns if the budget ran out before all the candidates were identified, in which case
+	 * the markers detected are only those among the candidates identified in time.
+	 * @return true if the result is partial.
+	 */
+	public boolean isPartial(){
+		return partial;
+	}
+
+	/**
+	 * returns the time budget the detection was given.
+	 * @return the budget in nanoseconds.
+	 */
+	public long getBudgetNanos(){
+		return budgetNanos;
+	}
+
+	/**
+	 * returns how long the detection took, which can be slightly over the budget since
+	 * the stage running when it ran out is finished.
+	 * @return the time taken in nanoseconds.
+	 */
+	public long getElapsedNanos(){
+		return elapsedNanos;
+	}
+
+	/**
+	 * returns the fraction of the budget used.
+	 * @return the time taken divided by the budget, above 1 if the budget was overrun.
+	 */
+	public float getBudgetUsed(){
+		return budgetNanos > 0? (float)elapsedNanos/budgetNanos : 1;
+	}
+
+	/**
+	 * returns the number of candidates to identify, after removing the ones too near to others.
+	 * @return the number of candidates.
+	 */
+	public int getCandidates(){
+		return candidates;
+	}
+
+	/**
+	 * returns the number of candidates that were not identified because the budget ran out.
+	 * @return the number of skipped candidates.
+	 */
+	public int getSkippedCandidates(){
+		return skippedCandidates;
+	}
+
+	protected void clear(){
+		partial = false;
+		budgetNanos = 0;
+		elapsedNanos = 0;
+		candidates = 0;
+		skippedCandidates = 0;
+	}
+}
@@ -35,7 +35,7 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 	protected float ssize;
 	private int rotations;
 
-	private Code code; // a matrix of integer representing the code (see the class to further explanation)
+	private Code code; // the cells of the code packed in a long (see the class to further explanation)
 
 	private Mat mat; // the cvMat of the CANONICAL marker (not the one taken from the capture)
 	private Mat Rvec;
@@ -49,15 +49,34 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 		// TODO revise how the mats are initialized, better to create them with the proper type
 		// code more legible
 		code = new Code();
-		Rvec = new Mat(3,1,CvType.CV_64FC1);
-		Tvec = new Mat(3,1,CvType.CV_64FC1);
-		mat = new Mat();
+		// the mats are only created when needed, most candidates are discarded
 		points = new Vector<Point>();
 		for(int i=0;i<p.size();i++)
 			points.add(p.get(i));
 		this.fromList(points);
 	}
 
+	/**
+	 * creates an identified marker from the corners of a candidate, once its code has been read.
+	 * @param size the size of the marker.
+	 * @param corners the corners of the candidates [x1 y1 ... x4 y4] for each one.
+	 * @param offset the index in corners of the first coordinate of the marker.
+	 * @param bits the code read, see Code.
+	 * @param id the id decoded from the code.
+	 * @param rotations the rotations of the code decoded.
+	 */
+	Marker(float size, float[] corners, int offset, long bits, int id, int rotations){
+		ssize = size;
+		code = new Code();
+		code.bits = bits;
+		this.id = id;
+		this.rotations = rotations;
+		points = new Vector<Point>(4);
+		for(int i=0;i<4;i++)
+			points.add(new Point(corners[offset+2*i], corners[offset+2*i+1]));
+		this.fromList(points);
+	}
+
 	public void draw(Mat in, Scalar color, int lineWidth, boolean writeId){
 		if (total()!=4)
 			return;
@@ -139,7 +158,7 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 		points.add(new Point3( halfSize, -halfSize, ssize));
 		objectPoints.fromList(points);
 		MatOfPoint2f imagePoints = new MatOfPoint2f();
-		Calib3d.projectPoints(objectPoints, Rvec, Tvec, cp.getCameraMatrix(), cp.getDistCoeff(), imagePoints);
+		Calib3d.projectPoints(objectPoints, getRvec(), getTvec(), cp.getCameraMatrix(), cp.getDistCoeff(), imagePoints);
 
 		List<Point> pts = new Vector<Point>();
 		pts = imagePoints.toList();
@@ -152,6 +171,8 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 	}
 
 	protected void setMat(Mat in){
+		if(mat == null)
+			mat = new Mat();
 		in.copyTo(mat);
 	}
 
@@ -159,17 +180,29 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 	 * construct the matrix of integers from the mat stored.
 	 */
 	protected void extractCode(){
-		int rows = mat.rows();
-		int cols = mat.cols();
+		extractCode(mat, new byte[(int)mat.total()], code);
+	}
+
+	/**
+	 * reads the code of a canonical mat into code, see extractCode.
+	 * @param canonical the canonical mat of the marker, it is thresholded in place if it is grayscale.
+	 * @param pixels scratch array with room for all the pixels of the canonical mat.
+	 * @param code the code to fill in.
+	 */
+	protected static void extractCode(Mat canonical, byte[] pixels, Code code){
+		int rows = canonical.rows();
+		int cols = canonical.cols();
 		assert(rows == cols);
-		Mat grey = new Mat();
+		Mat grey = canonical;
 		// change the color space if necessary
-		if(mat.type() == CvType.CV_8UC1)
-			grey = mat;
-		else
-			Imgproc.cvtColor(mat, grey, Imgproc.COLOR_RGBA2GRAY);
+		if(canonical.type() != CvType.CV_8UC1){
+			grey = new Mat();
+			Imgproc.cvtColor(canonical, grey, Imgproc.COLOR_RGBA2GRAY);
+		}
 		// apply a threshold
 		Imgproc.threshold(grey, grey, 125, 255, Imgproc.THRESH_BINARY|Imgproc.THRESH_OTSU);
+		// count the white pixels of each cell in java, with one read of the mat
+		grey.get(0, 0, pixels);
 		// the swidth is the width of each row
 		int swidth = rows/7;
 		// we go through all the rows
@@ -177,8 +210,11 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 			for(int x=0;x<7;x++){
 				int Xstart = x*swidth;
 				int Ystart = y*swidth;
-				Mat square = grey.submat(Xstart, Xstart+swidth, Ystart, Ystart+swidth);
-				int nZ = Core.countNonZero(square);
+				int nZ = 0;
+				for(int r=Xstart;r<Xstart+swidth;r++)
+					for(int c=Ystart;c<Ystart+swidth;c++)
+						if(pixels[r*cols+c] != 0)
+							nZ++;
 				if(nZ > (swidth*swidth)/2)
 					code.set(x, y, 1);
 				else
@@ -195,28 +231,13 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 	 * @return the id of the marker
 	 */
 	protected int calculateMarkerId(){
-		// check all the rotations of code
-		Code[] rotations = new Code[4];
-		rotations[0] = code;
-		int[] dists = new int[4];
-		dists[0] = hammDist(rotations[0]);
-		int[] minDist = {dists[0],0};
-		for(int i=1;i<4;i++){
-			// rotate
-			rotations[i] = Code.rotate(rotations[i-1]);
-			dists[i] = hammDist(rotations[i]);
-			if(dists[i] < minDist[0]){
-				minDist[0] = dists[i];
-				minDist[1] = i;
-			}
-		}
-		this.rotations = minDist[1];
-		if(minDist[0] != 0){
+		// all the rotations of all the valid codes are in a precomputed table
+		int decoded = Code.decode(code.bits);
+		if(decoded == -1){
 			return -1; // matching id not found
 		}
-		else{
-			this.id = mat2id(rotations[minDist[1]]);
-		}
+		this.rotations = decoded & 3;
+		this.id = decoded >> 2;
 		return id;
 	}
 
@@ -225,16 +246,7 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 	 * @return true if the border is black, false otherwise
 	 */
 	protected boolean checkBorder(){
-		for(int i=0;i<7;i++){
-			// normally we'll only check first and last square
-			int inc = 6;
-			if(i==0 || i==6)// in first and last row the whole row must be checked
-				inc = 1;
-			for(int j=0;j<7;j+=inc)
-				if(code.get(i, j)==1)
-					return false;
-		}
-		return true;
+		return Code.hasBlackBorder(code.bits);
 	}
 
 	/**
@@ -244,8 +256,30 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 	 * @param distCoeff
 	 */
 	protected void calculateExtrinsics(Mat camMatrix, MatOfDouble distCoeffs, float sizeMeters){
+		calculateExtrinsics(camMatrix, distCoeffs, objectPoints(sizeMeters));
+	}
+
+	/**
+	 * Calculate 3D position of the marker with object points that have already been built,
+	 * so they can be shared by all the markers of a frame.
+	 * @param camMatrix
+	 * @param distCoeffs
+	 * @param objPointsMat the corners of the marker in its own coordinates, see objectPoints.
+	 */
+	protected void calculateExtrinsics(Mat camMatrix, MatOfDouble distCoeffs, MatOfPoint3f objPointsMat){
 		// TODO check params
+		Calib3d.solvePnP(objPointsMat, this, camMatrix, distCoeffs, getRvec(), getTvec());
+//		Utils.rotateXAxis(Rvec);
+
+		Utils.alignToId(Rvec, this.getRotations());
+	}
 
+	/**
+	 * builds the corners of a marker in its own coordinates, in the order solvePnP expects them.
+	 * @param sizeMeters the size of the marker.
+	 * @return the object points.
+	 */
+	protected static MatOfPoint3f objectPoints(float sizeMeters){
 		// set the obj 3D points
 		double halfSize = sizeMeters/2.0;
 		List<Point3> objPoints = new ArrayList<Point3>();
@@ -263,58 +297,13 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 
 		MatOfPoint3f objPointsMat = new MatOfPoint3f();
 		objPointsMat.fromList(objPoints);
-		Calib3d.solvePnP(objPointsMat, this, camMatrix, distCoeffs, Rvec, Tvec);
-
-		double [] t0 = Tvec.get(0, 0);
-		double [] t1 = Tvec.get(1, 0);
-		double [] t2 = Tvec.get(2, 0);
-		double [] r0 = Rvec.get(0, 0);
-		double [] r1 = Rvec.get(1, 0);
-		double [] r2 = Rvec.get(2, 0);
-//		Utils.rotateXAxis(Rvec);
-
-		Utils.alignToId(Rvec, this.getRotations());
+		return objPointsMat;
 	}
 
 	protected void setPoints(List<Point> p){
 		this.fromList(p);
 	}
 
-	private int hammDist(Code code){
-		int ids[][] = {
-				{1,0,0,0,0},
-				{1,0,1,1,1},
-				{0,1,0,0,1},
-				{0,1,1,1,0}
-		};
-		int dist = 0;
-		for(int y=0;y<5;y++){
-			int minSum = Integer.MAX_VALUE;
-			// hamming distance to each possible word
-			for(int p=0;p<4;p++){
-				int sum=0;
-				for(int x=0;x<5;x++)
-					sum+= code.get(y+1,x+1) == ids[p][x]? 0:1;
-				minSum = sum<minSum? sum:minSum;
-			}
-			dist+=minSum;
-		}
-		return dist;
-	}
-
-	private int mat2id(Code code){
-		int val=0;
-		for(int y=1;y<6;y++){
-			val<<=1;
-			if(code.get(y,2) == 1)
-				val |= 1;
-			val<<=1;
-			if(code.get(y,4) == 1)
-				val |= 1;
-		}
-		return val;
-	}
-
 	public int getRotations(){
 		return this.rotations;
 	}
@@ -331,13 +320,13 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 	public void set3dObject(Object3dContainer object) throws ExtParamException {
 		this.object = object;
 		double[] matrix = new double[16];
-		Utils.glGetModelViewMatrix(matrix,Rvec,Tvec);
+		Utils.glGetModelViewMatrix(matrix,getRvec(),getTvec());
 //		Utils.glIdentityMatrix(matrix);
 		this.object.setModelViewMatrix(matrix);
 	}
 
 	public void draw3dAxis(Mat frame, CameraParameters cp, Scalar color){
-		Utils.draw3dAxis(frame, cp, color, 2*ssize, Rvec, Tvec);
+		Utils.draw3dAxis(frame, cp, color, 2*ssize, getRvec(), getTvec());
 	}
 
 	public Object3dContainer object(){
@@ -349,10 +338,14 @@ public class Marker extends MatOfPoint2f implements Comparable<Marker>{
 	}
 
 	public Mat getRvec() {
+		if(Rvec == null)
+			Rvec = new Mat(3,1,CvType.CV_64FC1);
 		return Rvec;
 	}
 
 	public Mat getTvec() {
+		if(Tvec == null)
+			Tvec = new Mat(3,1,CvType.CV_64FC1);
 		return Tvec;
 	}
 }
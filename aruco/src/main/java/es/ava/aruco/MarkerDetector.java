@@ -1,21 +1,34 @@
 package es.ava.aruco;
 
-import java.util.Collections;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint;
 import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
 import org.opencv.core.Point;
+import org.opencv.core.Rect;
 import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
 import org.opencv.imgproc.Imgproc;
 
+import es.ava.aruco.debug.LatencyHistogram;
+import es.ava.aruco.debug.MetricsRegistry;
+import es.ava.aruco.debug.Tracer;
+
 /**
  * Class to detect markers. It will be done by a threshold technique and
  * analysing the contours detected in the frame given looking for valid
  * marker's code inside them.
+ * A detector keeps its working Mats between frames, so it is meant to be
+ * reused, and it must only be used by one thread at a time.
  * @author Rafael Ortega
  *
  */
@@ -23,28 +36,140 @@ import org.opencv.imgproc.Imgproc;
 // such as type in member fields and call it only once
 public class MarkerDetector {
 	private enum thresSuppMethod {FIXED_THRES,ADPT_THRES,CANNY};
-	
+	/**
+	 * How the code of the candidates is read. WARP warps each candidate to a canonical
+	 * image and counts the white pixels of each cell, GRID_SAMPLING samples the cells
+	 * directly from the grayscale frame through the homography of the candidate.
+	 */
+	public enum CodeExtractionMethod {WARP, GRID_SAMPLING};
+	/**
+	 * How the candidates too near to each other are found. PAIRWISE compares every candidate
+	 * with every other one, GRID hashes the candidates by their centroid in cells of MIN_DISTANCE
+	 * and only compares those in the same or neighbouring cells. Both find the same candidates,
+	 * since the centroids of two candidates are never further apart than the average distance
+	 * of their corners.
+	 */
+	public enum NearCandidateSearch {PAIRWISE, GRID};
+
 	private double thresParam1, thresParam2;
 	private thresSuppMethod thresMethod;
+	private CodeExtractionMethod codeMethod;
+	private NearCandidateSearch nearSearch;
 	private Mat grey, thres, thres2, hierarchy2;
-	private Vector<MatOfPoint> contours2;
-		
+	private List<MatOfPoint> contours2, roiContours;
+	// markers identified in the current frame
+	private List<Marker> newMarkers;
+	// luminance frames given as a buffer are copied here, lumaView is the part without the row padding
+	private byte[] lumaBuf;
+	private Mat lumaFrame, lumaView;
+	// grayscale frames given as a Mat are copied here when sampling the codes
+	private byte[] greyBuf;
+	private float[] corners;
+	// tracking mode, the corners of the markers of the last frame [x1 y1 ... x4 y4] for each one
+	private boolean tracking;
+	private int fullScanInterval;
+	private int framesSinceFullScan;
+	private float[] trackCorners;
+	private int trackCount;
+	// regions searched for the tracked markers [x0 y0 x1 y1] for each one, and the one being searched
+	private int[] regionBounds;
+	private int regionCount;
+	private Rect roiRect;
+	private Point roiOffset;
+	// pyramid mode, the frame is downscaled by pyramidFactor to search the quads
+	private int pyramidFactor;
+	private Mat pyramid;
+	private Size subPixWindow;
+	private TermCriteria subPixCriteria;
+	// scratch values kept between frames so detecting does not create native objects
+	private MatOfPoint2f contour, approxCurve;
+	private MatOfPoint approxQuad;
+	private MatOfPoint3f objPoints;
+	private float objPointsSize;
+	// the candidates are kept in flat arrays and only the ones identified become Markers:
+	// corners of the candidates [x1 y1 ... x4 y4] for each one, read from native memory once
+	private float[] candCorners;
+	private double[] candPerimeters;
+	private boolean[] candRemoved;
+	// code read and decoded value (id and rotations, see Code.decode) of the identified ones
+	private long[] candBits;
+	private int[] candDecoded;
+	private float[] quadPoints;
+	private NearCandidateFilter nearFilter;
+	// order the candidates are identified in, by priority when there is a time budget
+	private int[] candOrder;
+	private long[] candKeys;
+	// time budget of the current detection, if budgeted
+	private boolean budgeted;
+	private long deadline;
+	private DetectionReport report;
+	// parallel mode, the candidates are identified by the workers of the pool in chunks, each
+	// chunk with its own identifier so they share no scratch values
+	private ForkJoinPool pool;
+	private Identifier[] identifiers;
+	// tiled mode, full scans are done in overlapping horizontal bands, each with its own scratch
+	private int bandCount;
+	private float bandOverlap;
+	private Band[] bands;
+	// latency histograms of the stages, null if not recording, and the threshold time of the pass
+	private MetricsRegistry metrics;
+	private LatencyHistogram thresholdLatency, contoursLatency, identificationLatency, pnpLatency;
+	private long thresholdNanos;
+	// times of the stages of the frame, added up over the passes when a lost track makes the
+	// frame be searched again, so each frame is recorded once. The threshold is only known
+	// apart from the contours if no pass was tiled
+	private boolean retrying;
+	private long frameThresholdNanos, frameContoursNanos, frameIdentificationNanos;
+	private boolean frameThresholdKnown;
+	// tracer the stages are recorded to as spans, null if not tracing
+	private Tracer tracer;
+
 	private final static double MIN_DISTANCE = 10;
-	
+	// how much the region searched around a tracked marker is expanded, relative to its size
+	private final static double TRACKING_MARGIN = 0.5;
+	private final static Size CANONICAL_SIZE = new Size(50,50);
+	private final static Size NO_ZERO_ZONE = new Size(-1,-1);
+	// fewer candidates than this per worker are not worth a parallel identification
+	private final static int MIN_PARALLEL_CANDIDATES = 4;
+
 	public MarkerDetector(){
 		thresParam1 = thresParam2 = 7;
 		thresMethod = thresSuppMethod.ADPT_THRES;
+		codeMethod = CodeExtractionMethod.WARP;
+		nearSearch = NearCandidateSearch.GRID;
+		corners = new float[8];
+		quadPoints = new float[8];
+		tracking = false;
+		fullScanInterval = 10;
+		trackCorners = new float[8*4];
+		trackCount = 0;
+		pyramid = new Mat();
+		setPyramidFactor(1);
+		subPixCriteria = new TermCriteria(TermCriteria.EPS+TermCriteria.MAX_ITER, 12, 0.01);
 		// TODO
 		grey = new Mat();
 		thres = new Mat();
 		thres2 = new Mat();
 		hierarchy2 = new Mat();
-		contours2 = new Vector<MatOfPoint>();
+		contours2 = new ArrayList<MatOfPoint>();
+		roiContours = new ArrayList<MatOfPoint>();
+		regionBounds = new int[0];
+		roiRect = new Rect();
+		roiOffset = new Point();
+		newMarkers = new ArrayList<Marker>();
+		contour = new MatOfPoint2f();
+		approxCurve = new MatOfPoint2f();
+		approxQuad = new MatOfPoint();
+		identifiers = new Identifier[]{new Identifier()};
+		bandCount = 1;
+		bands = new Band[0];
+		ensureCandidates(64);
+		nearFilter = new NearCandidateFilter(MIN_DISTANCE);
 	}
     
 	/**
 	 * Method to find markers in a Mat given.
-	 * @param in input color Mat to find the markers in.
+	 * @param in input Mat to find the markers in, either RGBA or already grayscale (CV_8UC1).
 	 * @param detectedMarkers output vector with the markers that have been detected.
 	 * @param camMatrix --
 	 * @param distCoeff --
@@ -53,43 +178,123 @@ public class MarkerDetector {
 	 */
 	public void detect(Mat in, Vector<Marker> detectedMarkers, CameraParameters cp,//Mat camMatrix, Mat distCoeff,
 			float markerSizeMeters/*, Mat frameDebug*/){
-		Vector<Marker> candidateMarkers = new Vector<Marker>();
-		// the detection in the incoming frame will be done in a different vector
+		long start = tracer == null? 0 : System.nanoTime();
+		detect(in, null, 0, detectedMarkers, cp, markerSizeMeters);
+		if(tracer != null)
+			tracer.span("detect", start);
+	}
+
+	/**
+	 * Method to find markers in a Mat given within a time budget. The candidates are
+	 * identified by priority, those around the markers tracked in the last frame first
+	 * and then the biggest ones, and when the budget runs out the markers identified so
+	 * far are returned. The threshold and the contour search always run to completion,
+	 * the budget is checked between candidates, so the pyramid or tiled modes should be
+	 * used to keep them within the budget.
+	 * @param in input Mat to find the markers in, either RGBA or already grayscale (CV_8UC1).
+	 * @param detectedMarkers output vector with the markers that have been detected.
+	 * @param cp camera parameters used to calculate the extrinsics of the markers.
+	 * @param markerSizeMeters size of the markers.
+	 * @param budgetNanos the time budget in nanoseconds, counted from this call.
+	 * @param report output report saying if the result is partial and how much of the budget was used.
+	 */
+	public void detect(Mat in, Vector<Marker> detectedMarkers, CameraParameters cp,
+			float markerSizeMeters, long budgetNanos, DetectionReport report){
+		long start = System.nanoTime();
+		beginBudget(start, budgetNanos, report);
+		try{
+			// through the unbudgeted variant so the detection is traced the same way
+			detect(in, detectedMarkers, cp, markerSizeMeters);
+		}
+		finally{
+			endBudget(start);
+		}
+	}
+
+	/**
+	 * Finds the markers in a Mat given. frame, if not null, holds the same grayscale
+	 * image as in with rows stride bytes apart, so codes can be sampled from it
+	 * without copying the Mat out.
+	 */
+	private void detect(Mat in, byte[] frame, int stride, Vector<Marker> detectedMarkers, CameraParameters cp,
+			float markerSizeMeters){
+		// the detection in the incoming frame will be done in a different list
 		// because this will allow the ontouchlistener in View
 		// to have a valid detectedMarkers vector longer
-		Vector<Marker> newMarkers = new Vector<Marker>();
-		
+		newMarkers.clear();
+
 		// do the threshold of image and detect contours
-		Imgproc.cvtColor(in, grey, Imgproc.COLOR_RGBA2GRAY);
-		thresHold(thresMethod, grey, thres);
+		// a single channel frame (i.e. the Y plane of a camera image) needs no conversion
+		Mat greyIn = grey;
+		if(in.type() == CvType.CV_8UC1)
+			greyIn = in;
+		else
+			Imgproc.cvtColor(in, grey, Imgproc.COLOR_RGBA2GRAY);
+
+		// in pyramid mode the quads are searched in a downscaled frame
+		Mat search = greyIn;
+		if(pyramidFactor > 1){
+			Imgproc.resize(greyIn, pyramid, new Size(greyIn.cols()/pyramidFactor, greyIn.rows()/pyramidFactor),
+					0, 0, Imgproc.INTER_AREA);
+			search = pyramid;
+		}
+		double scaleX = (double)greyIn.cols()/search.cols();
+		double scaleY = (double)greyIn.rows()/search.rows();
+
+		boolean timed = metrics != null || tracer != null;
+		long stageStart = timed? System.nanoTime() : 0;
+		thresholdNanos = 0;
+		if(!retrying){
+			frameThresholdNanos = frameContoursNanos = frameIdentificationNanos = 0;
+			frameThresholdKnown = true;
+		}
+		// when tracking only look around the markers of the last frame, unless a full scan is due
+		boolean fullScan = !tracking || trackCount == 0 || framesSinceFullScan >= fullScanInterval;
+		boolean tiled = fullScan && bandCount > 1;
+		if(tiled)
+			findContoursTiled(search, contours2);
+		else if(fullScan)
+			findContours(search, null, contours2);
+		else{
+			contours2.clear();
+			trackedRegions(search.cols(), search.rows(), 1.0/scaleX, 1.0/scaleY);
+			for(int r=0;r<regionCount;r++){
+				roiRect.x = regionBounds[4*r];
+				roiRect.y = regionBounds[4*r+1];
+				roiRect.width = regionBounds[4*r+2]-roiRect.x;
+				roiRect.height = regionBounds[4*r+3]-roiRect.y;
+				findContours(search, roiRect, roiContours);
+				contours2.addAll(roiContours);
+			}
+		}
 
-		// pass a copy because it modifies the src image
-		thres.copyTo(thres2);
-		Imgproc.findContours(thres2, contours2, hierarchy2, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_NONE);
-		
 		// uncomment the following line if you want the contours drawn
 //		Imgproc.drawContours(frameDebug, contours2, -1, new Scalar(255,0,0),2);
 		// to each contour analyze if it is a paralelepiped likely to be a marker
-		MatOfPoint2f approxCurve = new MatOfPoint2f();
 //		List<Point> approxPoints = new ArrayList<Point>();
+		int nCandidates = 0;
 		for(int i=0;i<contours2.size();i++){
-			MatOfPoint2f contour = new MatOfPoint2f();
 			contours2.get(i).convertTo(contour, CvType.CV_32FC2);
 			// first check if it has enough points
 			int contourSize = (int)contour.total();
-			if(contourSize > in.cols()/5){
+			if(contourSize > search.cols()/5){
 				Imgproc.approxPolyDP(contour, approxCurve, contourSize*0.05, true);
 //				Converters.Mat_to_vector_Point(approxCurve, approxPoints);
 				// check the polygon has 4 points
 				if(approxCurve.total()== 4){
 					// and if it is convex
-					MatOfPoint mat = new MatOfPoint();
-					approxCurve.convertTo(mat, CvType.CV_32SC2);
-					if(Imgproc.isContourConvex(mat)){
+					approxCurve.convertTo(approxQuad, CvType.CV_32SC2);
+					if(Imgproc.isContourConvex(approxQuad)){
 						// ensure the distance between consecutive points is large enough
 						double minDistFound = Double.MAX_VALUE;
-						float[] points = new float[8];// [x1 y1 x2 y2 x3 y3 x4 y4]
+						float[] points = quadPoints;// [x1 y1 x2 y2 x3 y3 x4 y4]
 						approxCurve.get(0,0,points);
+						// back to full resolution coordinates
+						if(search != greyIn)
+							for(int j=0;j<8;j+=2){
+								points[j] = (float)((points[j]+0.5)*scaleX-0.5);
+								points[j+1] = (float)((points[j+1]+0.5)*scaleY-0.5);
+							}
 						// look for the min distance
 						for(int j=0;j<=4;j+=2){
 							double d = Math.sqrt( (points[j]-points[(j+2)%4])*(points[j]-points[(j+2)%4]) +
@@ -98,132 +303,228 @@ public class MarkerDetector {
 								minDistFound = d;
 						}
 						if(minDistFound > MIN_DISTANCE){
-							// create a candidate marker
-							Vector<Point> p = new Vector<Point>();
-							p.add(new Point(points[0],points[1]));
-							p.add(new Point(points[2],points[3]));
-							p.add(new Point(points[4],points[5]));
-							p.add(new Point(points[6],points[7]));
-							candidateMarkers.add(new Marker(markerSizeMeters, p));
-//							candidateMarkers.add(new Marker(markerSizeMeters));
-//							candidateMarkers.lastElement().add(new Point(points[0],points[1]));
-//							candidateMarkers.lastElement().add(new Point(points[2],points[3]));
-//							candidateMarkers.lastElement().add(new Point(points[4],points[5]));
-//							candidateMarkers.lastElement().add(new Point(points[6],points[7]));
+							// sort the points in anti-clockwise order
+							sortAntiClockwise(points);
+							ensureCandidates(nCandidates+1);
+							System.arraycopy(points, 0, candCorners, 8*nCandidates, 8);
+							nCandidates++;
 						}
 					}
 				}
 			}
-		}// all contours processed, now we have the candidateMarkers
-		int nCandidates = candidateMarkers.size();
-		// sort the points in anti-clockwise order
-		for(int i=0;i<nCandidates;i++){
-			Marker marker = candidateMarkers.get(i);
-			List<Point> p = new Vector<Point>();
-			p = marker.toList();
-	        // trace a line between the first and second point.
-	        // if the third point is at the right side, then the points are anti-clockwise
-			double dx1 = p.get(1).x - p.get(0).x;
-			double dy1 = p.get(1).y - p.get(0).y;
-			double dx2 = p.get(2).x - p.get(0).x;
-			double dy2 = p.get(2).y - p.get(0).y;
-			double o = dx1*dy2 - dy1*dx2;
-			if(o < 0.0){ // the third point is in the left side, we have to swap
-				Collections.swap(p, 1, 3);
-				marker.setPoints(p);
-			}
-		}// points sorted in anti-clockwise order
+		}// all contours processed, now we have the candidates
+		if(timed){
+			long now = System.nanoTime();
+			// the bands are thresholded together with their contours, so only the whole is known
+			if(tiled)
+				frameThresholdKnown = false;
+			frameThresholdNanos += thresholdNanos;
+			frameContoursNanos += now - stageStart - thresholdNanos;
+			if(tracer != null)
+				tracer.span("contours", stageStart, now);
+			stageStart = now;
+		}
 
 		// remove the elements whose corners are to close to each other // TODO necessary?
-		Vector<Integer> tooNearCandidates = new Vector<Integer>(); // stores the indexes in the candidateMarkers
-										   // i.e [2,3,4,5] the marker 2 is too close to 3 and 4 to 5
 		for(int i=0;i<nCandidates;i++){
-			Marker toMarker = candidateMarkers.get(i);
-			List<Point> toPoints = new Vector<Point>();
-			toPoints = toMarker.toList();
-			// calculate the average distance of each corner to the nearest corner in the other marker
-			for(int j=i+1;j<nCandidates;j++){
-				float dist=0;
-				Marker fromMarker = candidateMarkers.get(j);
-				List<Point> fromPoints = new Vector<Point>();
-				fromPoints = fromMarker.toList();
-				// unrolling loop
-				dist+=Math.sqrt((fromPoints.get(0).x-toPoints.get(0).x)*(fromPoints.get(0).x-toPoints.get(0).x)+
-						(fromPoints.get(0).y-toPoints.get(0).y)*(fromPoints.get(0).y-toPoints.get(0).y));
-
-				dist+=Math.sqrt((fromPoints.get(1).x-toPoints.get(1).x)*(fromPoints.get(1).x-toPoints.get(1).x)+
-						(fromPoints.get(1).y-toPoints.get(1).y)*(fromPoints.get(1).y-toPoints.get(1).y));
-				
-				dist+=Math.sqrt((fromPoints.get(2).x-toPoints.get(2).x)*(fromPoints.get(2).x-toPoints.get(2).x)+
-						(fromPoints.get(2).y-toPoints.get(2).y)*(fromPoints.get(2).y-toPoints.get(2).y));
-				
-				dist+=Math.sqrt((fromPoints.get(3).x-toPoints.get(3).x)*(fromPoints.get(3).x-toPoints.get(3).x)+
-						(fromPoints.get(3).y-toPoints.get(3).y)*(fromPoints.get(3).y-toPoints.get(3).y));
-				dist = dist/4;
-				if(dist < MIN_DISTANCE){
-					tooNearCandidates.add(i);
-					tooNearCandidates.add(j);
-				}
-			}
+			candPerimeters[i] = perimeter(candCorners, i);
+			candRemoved[i] = false;
+		}
+		nearFilter.filter(nearSearch, candCorners, candPerimeters, candRemoved, nCandidates);
+
+		// the frame is read only once to sample the codes from it
+		if(codeMethod == CodeExtractionMethod.GRID_SAMPLING && frame == null){
+			int size = greyIn.rows()*greyIn.cols();
+			if(greyBuf == null || greyBuf.length != size)
+				greyBuf = new byte[size];
+			greyIn.get(0, 0, greyBuf);
+			frame = greyBuf;
+			stride = greyIn.cols();
+		}
+
+		// identify the markers, the ones that are not valid are marked as removed
+		int toIdentify = orderCandidates(nCandidates, greyIn.cols(), greyIn.rows());
+		int skipped = identifyCandidates(nCandidates, greyIn, search != greyIn, frame, stride);
+		if(timed){
+			long now = System.nanoTime();
+			frameIdentificationNanos += now - stageStart;
+			if(tracer != null)
+				tracer.span("identification", stageStart, now);
 		}
-		Vector<Integer> toRemove = new Vector<Integer>();// 1 means to remove
+		boolean partial = skipped > 0;
+		if(budgeted){
+			report.candidates = toIdentify;
+			report.skippedCandidates = skipped;
+			report.partial = partial;
+		}
+
+		// in pyramid mode the corners were refined at full resolution, and the biggest of
+		// duplicated markers is chosen by the perimeter of the refined corners
+		if(search != greyIn)
+			for(int i=0;i<nCandidates;i++)
+				if(!candRemoved[i])
+					candPerimeters[i] = perimeter(candCorners, i);
+
+		// now sort by id (the index keeps the order of the candidates with the same id)
+		int nIdentified = 0;
 		for(int i=0;i<nCandidates;i++)
-			toRemove.add(0);
-		// set to remove the marker with the smaller perimeter
-		for(int i=0;i<tooNearCandidates.size();i+=2){
-			Marker first = candidateMarkers.get(tooNearCandidates.get(i));
-			Marker second = candidateMarkers.get(tooNearCandidates.get(i+1));
-			if(first.perimeter()<second.perimeter())
-				toRemove.set(tooNearCandidates.get(i), 1);
-			else
-				toRemove.set(tooNearCandidates.get(i+1), 1);
+			if(!candRemoved[i])
+				candKeys[nIdentified++] = ((long)(candDecoded[i]>>2) << 32) | i;
+		Arrays.sort(candKeys, 0, nIdentified);
+		// and check that each marker is only detected once, keeping the biggest
+		for(int k=0;k<nIdentified-1;k++){
+			int first = (int)candKeys[k];
+			int second = (int)candKeys[k+1];
+			if(candDecoded[first]>>2 == candDecoded[second]>>2)
+				if(candPerimeters[first]<candPerimeters[second])
+					candRemoved[first] = true;
+				else
+					candRemoved[second] = true;
+		}
+		// only now the candidates become markers
+		for(int k=0;k<nIdentified;k++){
+			int i = (int)candKeys[k];
+			if(!candRemoved[i])
+				newMarkers.add(new Marker(markerSizeMeters, candCorners, 8*i, candBits[i],
+						candDecoded[i]>>2, candDecoded[i]&3));
 		}
 
-		// identify the markers
-		for(int i=0;i<nCandidates;i++){
-			if(toRemove.get(i) == 0){
-				Marker marker = candidateMarkers.get(i);
-				Mat canonicalMarker = new Mat();
-				warp(in, canonicalMarker, new Size(50,50), marker.toList());
-				marker.setMat(canonicalMarker);
-				marker.extractCode();
-				if(marker.checkBorder()){
-					int id = marker.calculateMarkerId();
-					if(id != -1){
-						newMarkers.add(marker);
-						// rotate the points of the marker so they are always in the same order no matter the camera orientation
-						Collections.rotate(marker.toList(), 4-marker.getRotations());
-					}
+		// a partial result says nothing about the tracks that were not reached
+		if(tracking && !partial){
+			if(!fullScan && newMarkers.size() < trackCount && !budgeted){
+				// a track was lost, look for it in the whole frame, which records the stages
+				framesSinceFullScan = fullScanInterval;
+				long retryStart = tracer == null? 0 : System.nanoTime();
+				retrying = true;
+				try{
+					detect(in, frame, stride, detectedMarkers, cp, markerSizeMeters);
+				}
+				finally{
+					retrying = false;
 				}
+				if(tracer != null)
+					tracer.span("retry", retryStart);
+				return;
 			}
+			updateTracks(newMarkers);
+			framesSinceFullScan = fullScan? 1 : framesSinceFullScan+1;
 		}
-		// TODO refine using pixel accuracy
-		
-		// now sort by id and check that each marker is only detected once
-		Collections.sort(newMarkers);
-		toRemove.clear();
-		for(int i=0;i<newMarkers.size();i++)
-			toRemove.add(0);
-		
-		for(int i=0;i<newMarkers.size()-1;i++){
-			if(newMarkers.get(i).id == newMarkers.get(i+1).id)
-				if(newMarkers.get(i).perimeter()<newMarkers.get(i+1).perimeter())
-					toRemove.set(i, 1);
-				else
-					toRemove.set(i+1, 1);
-		}
-		
-		for(int i=toRemove.size()-1;i>=0;i--)// done in inverse order in case we need to remove more than one element
-			if(toRemove.get(i) == 1)
-				newMarkers.remove(i);
-		
+
 		// detect the position of markers if desired
-		for(int i=0;i<newMarkers.size();i++){
-			if(cp.isValid())
-				newMarkers.get(i).calculateExtrinsics(cp.getCameraMatrix(), cp.getDistCoeff(), markerSizeMeters);
+		if(cp.isValid() && newMarkers.size() > 0){
+			if(objPoints == null || objPointsSize != markerSizeMeters){
+				objPoints = Marker.objectPoints(markerSizeMeters);
+				objPointsSize = markerSizeMeters;
+			}
+			long pnpStart = timed? System.nanoTime() : 0;
+			calculateExtrinsics(newMarkers, cp);
+			if(timed){
+				long now = System.nanoTime();
+				if(metrics != null)
+					pnpLatency.record(now - pnpStart);
+				if(tracer != null)
+					tracer.span("pnp", pnpStart, now);
+			}
+		}
+		if(metrics != null){
+			if(frameThresholdKnown){
+				thresholdLatency.record(frameThresholdNanos);
+				contoursLatency.record(frameContoursNanos);
+			}
+			else
+				contoursLatency.record(frameThresholdNanos + frameContoursNanos);
+			identificationLatency.record(frameIdentificationNanos);
+		}
+		detectedMarkers.clear();
+		detectedMarkers.addAll(newMarkers);
+		newMarkers.clear();
+	}
+	
+	/**
+	 * Method to find markers in a luminance (grayscale) frame given as a buffer, i.e. the
+	 * Y plane of a YUV_420_888 camera image, which already is the grayscale image. No color
+	 * conversion is done, but the OpenCV 2.4 bindings can not wrap a buffer in a Mat, so the
+	 * plane is copied twice, padding included: from a direct buffer to a reused byte array,
+	 * and from the array to a reused Mat through JNI. Both copies are used: the threshold and
+	 * the contour search run on the Mat, or rather on a view of it without the row padding,
+	 * and the codes of the candidates are sampled from the array. When the buffer is backed by
+	 * an array holding the whole plane, i.e. frames read from files, the array is used as it
+	 * is and only the copy to the Mat is made.
+	 * @param luma buffer with the luminance values, one byte per pixel.
+	 * @param width width of the frame in pixels.
+	 * @param height height of the frame in pixels.
+	 * @param rowStride distance in bytes between the start of two consecutive rows.
+	 * @param detectedMarkers output vector with the markers that have been detected.
+	 * @param cp camera parameters used to calculate the extrinsics of the markers.
+	 * @param markerSizeMeters size of the markers.
+	 */
+	public void detect(ByteBuffer luma, int width, int height, int rowStride,
+			Vector<Marker> detectedMarkers, CameraParameters cp, float markerSizeMeters){
+		long start = tracer == null? 0 : System.nanoTime();
+		if(lumaFrame == null || lumaFrame.rows() != height || lumaFrame.cols() != rowStride
+				|| lumaView.cols() != width){
+			lumaBuf = new byte[height*rowStride];
+			lumaFrame = new Mat(height, rowStride, CvType.CV_8UC1);
+			lumaView = lumaFrame.submat(0, height, 0, width);
+		}
+		byte[] pixels;
+		if(luma.hasArray() && luma.arrayOffset() == 0 && luma.array().length >= lumaBuf.length)
+			pixels = luma.array();
+		else{
+			// the last row is usually not padded so the buffer can be shorter than the Mat
+			ByteBuffer src = luma.duplicate();
+			src.position(0);
+			src.get(lumaBuf, 0, Math.min(src.remaining(), lumaBuf.length));
+			pixels = lumaBuf;
+		}
+		// only as much as fits in the Mat is copied
+		lumaFrame.put(0, 0, pixels);
+		// the array can be sampled as it is, padding included
+		detect(lumaView, pixels, rowStride, detectedMarkers, cp, markerSizeMeters);
+		if(tracer != null)
+			tracer.span("detect", start);
+	}
+
+	/**
+	 * Method to find markers in a luminance frame given as a buffer within a time budget,
+	 * see the luminance and the budgeted Mat variants. The copy of the plane counts
+	 * towards the budget.
+	 * @param luma buffer with the luminance values, one byte per pixel.
+	 * @param width width of the frame in pixels.
+	 * @param height height of the frame in pixels.
+	 * @param rowStride distance in bytes between the start of two consecutive rows.
+	 * @param detectedMarkers output vector with the markers that have been detected.
+	 * @param cp camera parameters used to calculate the extrinsics of the markers.
+	 * @param markerSizeMeters size of the markers.
+	 * @param budgetNanos the time budget in nanoseconds, counted from this call.
+	 * @param report output report saying if the result is partial and how much of the budget was used.
+	 */
+	public void detect(ByteBuffer luma, int width, int height, int rowStride, Vector<Marker> detectedMarkers,
+			CameraParameters cp, float markerSizeMeters, long budgetNanos, DetectionReport report){
+		long start = System.nanoTime();
+		beginBudget(start, budgetNanos, report);
+		try{
+			detect(luma, width, height, rowStride, detectedMarkers, cp, markerSizeMeters);
 		}
-		detectedMarkers.setSize(newMarkers.size());
-		Collections.copy(detectedMarkers, newMarkers);
+		finally{
+			endBudget(start);
+		}
+	}
+
+	private void beginBudget(long start, long budgetNanos, DetectionReport report){
+		if(budgetNanos < 0)
+			throw new IllegalArgumentException("The time budget can not be negative!");
+		report.clear();
+		report.budgetNanos = budgetNanos;
+		this.report = report;
+		deadline = start + budgetNanos;
+		budgeted = true;
+	}
+
+	private void endBudget(long start){
+		report.elapsedNanos = System.nanoTime() - start;
+		report = null;
+		budgeted = false;
 	}
 	
     /**
@@ -262,6 +563,446 @@ public class MarkerDetector {
 		return thresMethod;
 	}
 	
+	/**
+	 * sets how the code of the candidates is read.
+	 * @param method the code extraction method, WARP by default.
+	 */
+	public void setCodeExtractionMethod(CodeExtractionMethod method){
+		codeMethod = method;
+	}
+
+	/**
+	 * returns how the code of the candidates is read.
+	 * @return the code extraction method.
+	 */
+	public CodeExtractionMethod getCodeExtractionMethod(){
+		return codeMethod;
+	}
+
+	/**
+	 * enables or disables the tracking mode. When tracking, the threshold and the contour
+	 * search are only done in regions around the markers detected in the last frame. The
+	 * whole frame is still scanned every fullScanInterval frames, to find new markers, and
+	 * whenever one of the tracked markers is lost.
+	 * @param enabled true to track the markers.
+	 * @param fullScanInterval number of frames between full scans, at least 1.
+	 */
+	public void setTrackingMode(boolean enabled, int fullScanInterval){
+		if(fullScanInterval < 1)
+			throw new IllegalArgumentException("The full scan interval must be at least 1!");
+		tracking = enabled;
+		this.fullScanInterval = fullScanInterval;
+		resetTracking();
+	}
+
+	/**
+	 * returns if the tracking mode is enabled.
+	 * @return true if tracking.
+	 */
+	public boolean isTrackingMode(){
+		return tracking;
+	}
+
+	/**
+	 * forgets the tracked markers so the next frame is scanned completely,
+	 * i.e. when the frames given are not consecutive anymore.
+	 */
+	public void resetTracking(){
+		trackCount = 0;
+		framesSinceFullScan = 0;
+	}
+
+	/**
+	 * sets the pyramid mode. With a factor greater than 1 the threshold and the contour
+	 * search are done on the frame downscaled by that factor, which is much cheaper and
+	 * discards the small contours early, and the corners of the quads found are then refined
+	 * with sub-pixel accuracy in the full resolution frame before reading their code.
+	 * Markers must be a few times bigger than the factor to be found.
+	 * @param factor the downscaling factor, 1 to disable the pyramid mode.
+	 */
+	public void setPyramidFactor(int factor){
+		if(factor < 1)
+			throw new IllegalArgumentException("The pyramid factor must be at least 1!");
+		pyramidFactor = factor;
+		// the refinement must cover the error of locating the corners at low resolution
+		subPixWindow = new Size(factor+1, factor+1);
+	}
+
+	/**
+	 * returns the downscaling factor of the pyramid mode.
+	 * @return the factor, 1 if the pyramid mode is disabled.
+	 */
+	public int getPyramidFactor(){
+		return pyramidFactor;
+	}
+
+	/**
+	 * enables or disables the parallel mode. In parallel mode the identification of the
+	 * candidates (reading and decoding their code) and the extrinsics of the markers are
+	 * spread over the workers of the pool. Each worker has its own scratch values, and the
+	 * results are gathered in candidate order, so the markers detected are exactly the same,
+	 * in the same order, as in sequential mode.
+	 * @param pool the pool to run on, null to disable the parallel mode.
+	 */
+	public void setParallelMode(ForkJoinPool pool){
+		this.pool = pool;
+		int workers = pool == null? 1 : pool.getParallelism();
+		if(identifiers.length < workers){
+			Identifier[] grown = Arrays.copyOf(identifiers, workers);
+			for(int i=identifiers.length;i<workers;i++)
+				grown[i] = new Identifier();
+			identifiers = grown;
+		}
+	}
+
+	/**
+	 * returns the pool used by the parallel mode.
+	 * @return the pool, null if the parallel mode is disabled.
+	 */
+	public ForkJoinPool getParallelMode(){
+		return pool;
+	}
+
+	/**
+	 * enables or disables the tiled mode. In tiled mode the threshold and the contour search
+	 * of full scans are done in horizontal bands of the frame, in parallel if the parallel mode
+	 * is enabled. Neighbouring bands overlap, and contours cut by the edge of a band are dropped,
+	 * so a marker lying across the seam of two bands is found whole in at least one of them as
+	 * long as it is not taller than the overlap. Markers found in two bands are removed as too
+	 * near candidates.
+	 * @param bands number of bands, 1 to disable the tiled mode.
+	 * @param overlap rows shared by neighbouring bands, as a fraction of the frame height. It
+	 * must be at least the height of the biggest marker to find.
+	 */
+	public void setTiledMode(int bands, float overlap){
+		if(bands < 1)
+			throw new IllegalArgumentException("The number of bands must be at least 1!");
+		if(overlap < 0 || overlap > 1)
+			throw new IllegalArgumentException("The overlap of the bands must be between 0 and 1!");
+		bandCount = bands;
+		bandOverlap = overlap;
+		if(this.bands.length < bands){
+			Band[] grown = Arrays.copyOf(this.bands, bands);
+			for(int i=this.bands.length;i<bands;i++)
+				grown[i] = new Band();
+			this.bands = grown;
+		}
+	}
+
+	/**
+	 * returns the number of bands of the tiled mode.
+	 * @return the number of bands, 1 if the tiled mode is disabled.
+	 */
+	public int getTileBands(){
+		return bandCount;
+	}
+
+	/**
+	 * sets how the candidates too near to each other are found.
+	 * @param search the search method, GRID by default.
+	 */
+	public void setNearCandidateSearch(NearCandidateSearch search){
+		nearSearch = search;
+	}
+
+	/**
+	 * returns how the candidates too near to each other are found.
+	 * @return the search method.
+	 */
+	public NearCandidateSearch getNearCandidateSearch(){
+		return nearSearch;
+	}
+
+	/**
+	 * sets the registry the latencies of the stages of the detection are recorded to: the
+	 * threshold, the contour and candidate search, the identification of the candidates and
+	 * the pnp of the markers detected. In tiled mode the threshold is part of the contours. Each
+	 * frame is recorded once: when a lost track makes the whole frame be searched again, the
+	 * times of both searches are added up.
+	 * @param metrics the registry, null to stop recording, which is the default.
+	 */
+	public void setMetrics(MetricsRegistry metrics){
+		this.metrics = metrics;
+		if(metrics != null){
+			thresholdLatency = metrics.histogram(MetricsRegistry.THRESHOLD);
+			contoursLatency = metrics.histogram(MetricsRegistry.CONTOURS);
+			identificationLatency = metrics.histogram(MetricsRegistry.IDENTIFICATION);
+			pnpLatency = metrics.histogram(MetricsRegistry.PNP);
+		}
+	}
+
+	/**
+	 * returns the registry the latencies of the stages are recorded to.
+	 * @return the registry, or null if not recording.
+	 */
+	public MetricsRegistry getMetrics(){
+		return metrics;
+	}
+
+	/**
+	 * sets the tracer the detection is recorded to: a span for each detection and for its
+	 * threshold, contours, identification and pnp stages, and in tiled mode for each band. When a
+	 * lost track makes the whole frame be searched again, the spans of that search are inside a
+	 * retry span.
+	 * @param tracer the tracer, null to stop tracing, which is the default.
+	 */
+	public void setTracer(Tracer tracer){
+		this.tracer = tracer;
+	}
+
+	/**
+	 * returns the tracer the detection is recorded to.
+	 * @return the tracer, or null if not tracing.
+	 */
+	public Tracer getTracer(){
+		return tracer;
+	}
+
+	/**
+	 * swaps the second and fourth corners of a quad if they are not in anti-clockwise order.
+	 * @param points the corners [x1 y1 x2 y2 x3 y3 x4 y4].
+	 */
+	private static void sortAntiClockwise(float[] points){
+		// trace a line between the first and second point.
+		// if the third point is at the right side, then the points are anti-clockwise
+		double dx1 = points[2] - points[0];
+		double dy1 = points[3] - points[1];
+		double dx2 = points[4] - points[0];
+		double dy2 = points[5] - points[1];
+		double o = dx1*dy2 - dy1*dx2;
+		if(o < 0.0){ // the third point is in the left side, we have to swap
+			float x = points[2], y = points[3];
+			points[2] = points[6];
+			points[3] = points[7];
+			points[6] = x;
+			points[7] = y;
+		}
+	}
+
+	/**
+	 * returns the perimeter of a quad, like Marker.perimeter.
+	 * @param corners the corners of the quads.
+	 * @param i the index of the quad in corners.
+	 */
+	private static double perimeter(float[] corners, int i){
+		double sum = 0;
+		for(int j=0;j<4;j++){
+			int c = 8*i+2*j;
+			int n = 8*i+2*((j+1)%4);
+			double dx = corners[c]-corners[n];
+			double dy = corners[c+1]-corners[n+1];
+			sum += Math.sqrt(dx*dx + dy*dy);
+		}
+		return sum;
+	}
+
+	/**
+	 * makes room in the candidate arrays for at least n candidates.
+	 */
+	private void ensureCandidates(int n){
+		if(candCorners != null && candRemoved.length >= n)
+			return;
+		int size = Math.max(n, candCorners == null? 0 : 2*candRemoved.length);
+		candCorners = candCorners == null? new float[8*size] : Arrays.copyOf(candCorners, 8*size);
+		candPerimeters = new double[size];
+		candRemoved = new boolean[size];
+		candOrder = new int[size];
+		candKeys = new long[size];
+		candBits = new long[size];
+		candDecoded = new int[size];
+	}
+
+	/**
+	 * thresholds a region of the grayscale frame and finds the contours in it.
+	 * @param src the grayscale frame.
+	 * @param roi the region to search, null for the whole frame.
+	 * @param contours output list with the contours, in frame coordinates.
+	 */
+	private void findContours(Mat src, Rect roi, List<MatOfPoint> contours){
+		Mat region = roi == null? src : src.submat(roi);
+		boolean timed = metrics != null || tracer != null;
+		long start = timed? System.nanoTime() : 0;
+		thresHold(thresMethod, region, thres);
+		if(timed){
+			long now = System.nanoTime();
+			thresholdNanos += now - start;
+			if(tracer != null)
+				tracer.span("threshold", start, now);
+		}
+		if(region != src)
+			region.release();
+		// pass a copy because it modifies the src image
+		thres.copyTo(thres2);
+		roiOffset.x = roi == null? 0 : roi.x;
+		roiOffset.y = roi == null? 0 : roi.y;
+		Imgproc.findContours(thres2, contours, hierarchy2, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_NONE, roiOffset);
+	}
+
+	/**
+	 * finds the contours of the whole frame band by band, see setTiledMode.
+	 * @param src the grayscale frame.
+	 * @param contours output list with the contours, in frame coordinates, in band order.
+	 */
+	private void findContoursTiled(final Mat src, List<MatOfPoint> contours){
+		final int rows = src.rows();
+		final int overlap = (int)Math.ceil(bandOverlap*rows);
+		// the threshold of the rows next to the band depends on them, so they are added to it
+		final int margin = thresMethod == thresSuppMethod.ADPT_THRES? (int)thresParam1/2+1 : 1;
+		if(pool == null){
+			for(int b=0;b<bandCount;b++)
+				bands[b].scan(src, b, overlap, margin);
+		}
+		else{
+			RecursiveAction[] tasks = new RecursiveAction[bandCount];
+			for(int b=0;b<bandCount;b++){
+				final int band = b;
+				tasks[b] = new RecursiveAction(){
+					@Override
+					protected void compute(){
+						bands[band].scan(src, band, overlap, margin);
+					}
+				};
+			}
+			pool.invoke(new Batch(tasks));
+		}
+		contours.clear();
+		for(int b=0;b<bandCount;b++)
+			contours.addAll(bands[b].contours);
+	}
+
+	/**
+	 * scratch values to threshold and find the contours of one band of the frame.
+	 */
+	private class Band{
+		private final Mat thres = new Mat();
+		private final Mat thres2 = new Mat();
+		private final Mat hierarchy = new Mat();
+		private final List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
+		// headers of the rows of the frame thresholded and of the rows of the threshold searched,
+		// kept between frames while they still are views of the same rows
+		private Mat srcRows, thresRows;
+
+		/**
+		 * finds the contours of a band that are not cut by the edges the band shares with others.
+		 * @param src the grayscale frame.
+		 * @param band the index of the band.
+		 * @param overlap rows shared by neighbouring bands.
+		 * @param margin rows added to each side of the band for the threshold.
+		 */
+		void scan(Mat src, int band, int overlap, int margin){
+			long start = tracer == null? 0 : System.nanoTime();
+			int rows = src.rows();
+			int y0 = Math.max(0, rows*band/bandCount - overlap/2);
+			int y1 = Math.min(rows, rows*(band+1)/bandCount + (overlap+1)/2);
+			int t0 = Math.max(0, y0-margin);
+			int t1 = Math.min(rows, y1+margin);
+			srcRows = rows(src, t0, t1, srcRows);
+			thresHold(thresMethod, srcRows, thres);
+			thresRows = rows(thres, y0-t0, y1-t0, thresRows);
+			// pass a copy because it modifies the src image
+			thresRows.copyTo(thres2);
+			contours.clear();
+			Imgproc.findContours(thres2, contours, hierarchy, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_NONE,
+					new Point(0, y0));
+			// the contours touching a seam are cut, they are found whole in the neighbouring band
+			for(int i=contours.size()-1;i>=0;i--){
+				Rect box = Imgproc.boundingRect(contours.get(i));
+				if((y0 > 0 && box.y <= y0) || (y1 < rows && box.y+box.height >= y1))
+					contours.remove(i);
+			}
+			if(tracer != null)
+				tracer.span("band", start);
+		}
+	}
+
+	/**
+	 * returns a header of a range of rows of a Mat. The header given is returned if it already
+	 * is a view of those rows, which holds while the Mat keeps its data, otherwise it is released
+	 * and a new one is created, so a band does not create native headers every frame.
+	 * @param m the Mat.
+	 * @param r0 the first row.
+	 * @param r1 the row after the last one.
+	 * @param header the header returned for the last frame, or null.
+	 */
+	private static Mat rows(Mat m, int r0, int r1, Mat header){
+		if(header != null){
+			long addr = m.dataAddr() + r0*m.step1()*m.elemSize1();
+			if(header.dataAddr() == addr && header.rows() == r1-r0 && header.cols() == m.cols()
+					&& header.type() == m.type() && header.step1() == m.step1())
+				return header;
+			header.release();
+		}
+		return m.rowRange(r0, r1);
+	}
+
+	/**
+	 * calculates the regions to search for the tracked markers: their bounding boxes
+	 * expanded by TRACKING_MARGIN and clipped to the frame, overlapping ones merged.
+	 * The corners are scaled to the size of the frame searched. The regions are left in
+	 * regionBounds, which is reused every frame.
+	 */
+	private void trackedRegions(int width, int height, double scaleX, double scaleY){
+		if(regionBounds.length < 4*trackCount)
+			regionBounds = new int[4*trackCount];
+		regionCount = 0;
+		for(int i=0;i<trackCount;i++){
+			float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+			float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+			for(int j=0;j<4;j++){
+				float x = (float)(trackCorners[8*i+2*j]*scaleX);
+				float y = (float)(trackCorners[8*i+2*j+1]*scaleY);
+				minX = Math.min(minX, x);
+				maxX = Math.max(maxX, x);
+				minY = Math.min(minY, y);
+				maxY = Math.max(maxY, y);
+			}
+			double margin = Math.max(maxX-minX, maxY-minY)*TRACKING_MARGIN;
+			int x0 = Math.max(0, (int)(minX-margin));
+			int y0 = Math.max(0, (int)(minY-margin));
+			int x1 = Math.min(width, (int)Math.ceil(maxX+margin));
+			int y1 = Math.min(height, (int)Math.ceil(maxY+margin));
+			if(x1 > x0 && y1 > y0){
+				regionBounds[4*regionCount] = x0;
+				regionBounds[4*regionCount+1] = y0;
+				regionBounds[4*regionCount+2] = x1;
+				regionBounds[4*regionCount+3] = y1;
+				regionCount++;
+			}
+		}
+		// merge the overlapping regions so no part of the frame is searched twice
+		int[] r = regionBounds;
+		boolean merged = true;
+		while(merged){
+			merged = false;
+			for(int i=0;i<regionCount && !merged;i++)
+				for(int j=i+1;j<regionCount && !merged;j++){
+					if(r[4*i] < r[4*j+2] && r[4*j] < r[4*i+2] && r[4*i+1] < r[4*j+3] && r[4*j+1] < r[4*i+3]){
+						r[4*i] = Math.min(r[4*i], r[4*j]);
+						r[4*i+1] = Math.min(r[4*i+1], r[4*j+1]);
+						r[4*i+2] = Math.max(r[4*i+2], r[4*j+2]);
+						r[4*i+3] = Math.max(r[4*i+3], r[4*j+3]);
+						// remove j keeping the order of the rest
+						System.arraycopy(r, 4*(j+1), r, 4*j, 4*(regionCount-j-1));
+						regionCount--;
+						merged = true;
+					}
+				}
+		}
+	}
+
+	/**
+	 * stores the corners of the markers detected so they are tracked in the next frame.
+	 */
+	private void updateTracks(List<Marker> markers){
+		if(trackCorners.length < 8*markers.size())
+			trackCorners = new float[8*markers.size()];
+		for(int i=0;i<markers.size();i++){
+			markers.get(i).get(0, 0, corners);
+			System.arraycopy(corners, 0, trackCorners, 8*i, 8);
+		}
+		trackCount = markers.size();
+	}
+
 	// TODO test different options
 	private void thresHold(thresSuppMethod method, Mat src, Mat dst){
 		switch(method){
@@ -279,26 +1020,197 @@ public class MarkerDetector {
 	}
 	
 	/**
-	 * This fits a mat containing 4 vertices captured through the camera
-	 * into a canonical mat.
-	 * @param in the frame captured
-	 * @param out the canonical mat
-	 * @param size the size of the canonical mat we want to create
-	 * @param points the coordinates of the points in the "in" mat 
-	 */
-	private void warp(Mat in, Mat out, Size size, List<Point> points){
-		Mat pointsIn = new Mat(4,1,CvType.CV_32FC2);
-		Mat pointsRes = new Mat(4,1,CvType.CV_32FC2);
-		pointsIn.put(0,0, points.get(0).x,points.get(0).y,
-						  points.get(1).x,points.get(1).y,
-						  points.get(2).x,points.get(2).y,
-						  points.get(3).x,points.get(3).y);
-		pointsRes.put(0,0, 0,0,
-						   size.width-1,0,
-						   size.width-1,size.height-1,
-						   0,size.height-1);
-		Mat m = new Mat();
-		m = Imgproc.getPerspectiveTransform(pointsIn, pointsRes);
-		Imgproc.warpPerspective(in, out, m, size);
+	 * identifies the candidates that have not been removed, marking as removed the ones that
+	 * are not valid markers. In parallel mode the candidates are interleaved between the workers,
+	 * so they are still taken roughly in order, and each worker uses its own identifier.
+	 * @return the number of candidates skipped because the time budget ran out.
+	 */
+	private int identifyCandidates(final int n, final Mat greyIn, final boolean refine,
+			final byte[] frame, final int stride){
+		int chunks = pool == null? 1 : Math.min(pool.getParallelism(), n/MIN_PARALLEL_CANDIDATES);
+		if(chunks <= 1){
+			identifiers[0].skipped = 0;
+			identifiers[0].identify(0, 1, n, greyIn, refine, frame, stride);
+			return identifiers[0].skipped;
+		}
+		RecursiveAction[] tasks = new RecursiveAction[chunks];
+		for(int c=0;c<chunks;c++){
+			final Identifier identifier = identifiers[c];
+			identifier.skipped = 0;
+			final int first = c;
+			final int step = chunks;
+			tasks[c] = new RecursiveAction(){
+				@Override
+				protected void compute(){
+					identifier.identify(first, step, n, greyIn, refine, frame, stride);
+				}
+			};
+		}
+		pool.invoke(new Batch(tasks));
+		int skipped = 0;
+		for(int c=0;c<chunks;c++)
+			skipped += identifiers[c].skipped;
+		return skipped;
+	}
+
+	/**
+	 * sets the order the candidates are identified in. Without a time budget it is the order
+	 * they were found in. With a budget the candidates inside the regions of the tracked markers
+	 * go first, and then the ones with the biggest perimeter.
+	 * @return the number of candidates to identify.
+	 */
+	private int orderCandidates(int n, int width, int height){
+		int toIdentify = 0;
+		for(int i=0;i<n;i++)
+			if(!candRemoved[i])
+				toIdentify++;
+		if(!budgeted){
+			for(int i=0;i<n;i++)
+				candOrder[i] = i;
+			return toIdentify;
+		}
+		if(tracking)
+			trackedRegions(width, height, 1, 1);
+		else
+			regionCount = 0;
+		for(int i=0;i<n;i++){
+			long tracked = 0;
+			float cx = (candCorners[8*i]+candCorners[8*i+2]+candCorners[8*i+4]+candCorners[8*i+6])/4;
+			float cy = (candCorners[8*i+1]+candCorners[8*i+3]+candCorners[8*i+5]+candCorners[8*i+7])/4;
+			for(int r=0;r<regionCount;r++){
+				if(cx >= regionBounds[4*r] && cx < regionBounds[4*r+2] && cy >= regionBounds[4*r+1] && cy < regionBounds[4*r+3]){
+					tracked = 1;
+					break;
+				}
+			}
+			// tracked first, then by perimeter (positive floats sort like their bits), then by index
+			candKeys[i] = (tracked << 62) | ((long)Float.floatToIntBits((float)candPerimeters[i]) << 31) | (n-1-i);
+		}
+		Arrays.sort(candKeys, 0, n);
+		for(int i=0;i<n;i++)
+			candOrder[i] = n-1-(int)(candKeys[n-1-i] & 0x7fffffffL);
+		return toIdentify;
+	}
+
+	/**
+	 * calculates the extrinsics of the markers, in parallel chunks in parallel mode.
+	 */
+	private void calculateExtrinsics(final List<Marker> markers, final CameraParameters cp){
+		int n = markers.size();
+		int chunks = pool == null? 1 : Math.min(pool.getParallelism(), n);
+		if(chunks <= 1){
+			for(int i=0;i<n;i++)
+				markers.get(i).calculateExtrinsics(cp.getCameraMatrix(), cp.getDistCoeff(), objPoints);
+			return;
+		}
+		RecursiveAction[] tasks = new RecursiveAction[chunks];
+		for(int c=0;c<chunks;c++){
+			final int from = n*c/chunks;
+			final int to = n*(c+1)/chunks;
+			tasks[c] = new RecursiveAction(){
+				@Override
+				protected void compute(){
+					for(int i=from;i<to;i++)
+						markers.get(i).calculateExtrinsics(cp.getCameraMatrix(), cp.getDistCoeff(), objPoints);
+				}
+			};
+		}
+		pool.invoke(new Batch(tasks));
+	}
+
+	/**
+	 * runs a set of tasks in the pool and waits for all of them.
+	 */
+	private static class Batch extends RecursiveAction{
+		private static final long serialVersionUID = 1L;
+		private final RecursiveAction[] tasks;
+
+		Batch(RecursiveAction[] tasks){
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute(){
+			invokeAll(tasks);
+		}
+	}
+
+	/**
+	 * reads and decodes the code of candidates. It holds all the scratch values needed to do
+	 * so, and it must only be used by one thread at a time.
+	 */
+	private class Identifier{
+		private final CodeSampler sampler = new CodeSampler();
+		private final float[] corners = new float[8];
+		private final Mat canonical = new Mat();
+		private final Mat warpTransform = new Mat(3,3,CvType.CV_64FC1);
+		private final double[] warpValues = new double[9];
+		private final byte[] canonicalPixels = new byte[(int)(CANONICAL_SIZE.width*CANONICAL_SIZE.height)];
+		private final MatOfPoint2f quad = new MatOfPoint2f();
+		private final Code code = new Code();
+		// candidates skipped in the last call because the time budget ran out
+		int skipped;
+
+		/**
+		 * identifies every step-th candidate in candOrder, from the first, that has not
+		 * been removed, marking as removed the ones that are not valid markers. With a time
+		 * budget the ones left when it runs out are marked as removed and counted as skipped.
+		 */
+		void identify(int first, int step, int n, Mat greyIn, boolean refine, byte[] frame, int stride){
+			for(int o=first;o<n;o+=step){
+				int i = candOrder[o];
+				if(candRemoved[i])
+					continue;
+				if(budgeted && System.nanoTime() - deadline > 0){
+					// out of time, the rest of the candidates are not identified
+					candRemoved[i] = true;
+					skipped++;
+					continue;
+				}
+				System.arraycopy(candCorners, 8*i, corners, 0, 8);
+				// corners found at low resolution are refined in the full resolution frame
+				if(refine){
+					quad.create(4, 1, CvType.CV_32FC2);
+					quad.put(0, 0, corners);
+					Imgproc.cornerSubPix(greyIn, quad, subPixWindow, NO_ZERO_ZONE, subPixCriteria);
+					quad.get(0, 0, corners);
+					System.arraycopy(corners, 0, candCorners, 8*i, 8);
+				}
+				if(codeMethod == CodeExtractionMethod.GRID_SAMPLING){
+					if(!sampler.sample(corners, frame, stride, greyIn.cols(), greyIn.rows(), code)){
+						candRemoved[i] = true;
+						continue;
+					}
+				}
+				else{
+					warp(greyIn, canonical, CANONICAL_SIZE, corners);
+					Marker.extractCode(canonical, canonicalPixels, code);
+				}
+				int decoded = Code.hasBlackBorder(code.bits)? Code.decode(code.bits) : -1;
+				candRemoved[i] = decoded == -1;
+				candBits[i] = code.bits;
+				candDecoded[i] = decoded;
+			}
+		}
+
+		/**
+		 * This fits a mat containing 4 vertices captured through the camera
+		 * into a canonical mat. The homography is calculated in Java and given
+		 * to warpPerspective as the inverse map, so no Mats are created.
+		 * @param in the frame captured
+		 * @param out the canonical mat
+		 * @param size the size of the canonical mat we want to create
+		 * @param points the coordinates of the points in the "in" mat [x1 y1 x2 y2 x3 y3 x4 y4]
+		 */
+		private void warp(Mat in, Mat out, Size size, float[] points){
+			// from the unit square to the points, scaled so the canonical corners are at size-1
+			sampler.homography(points, warpValues);
+			for(int r=0;r<3;r++){
+				warpValues[3*r] /= size.width-1;
+				warpValues[3*r+1] /= size.height-1;
+			}
+			warpTransform.put(0, 0, warpValues);
+			Imgproc.warpPerspective(in, out, warpTransform, size, Imgproc.INTER_LINEAR | Imgproc.WARP_INVERSE_MAP);
+		}
 	}
 }
@@ -0,0 +1,136 @@
+package es.ava.aruco;
+
+import java.util.Arrays;
+
+import es.ava.aruco.MarkerDetector.NearCandidateSearch;
+
+/**
+ * Marks the candidate markers that are too near to a bigger one to be removed. Two
+ * candidates are too near when the average distance of their corners is below the minimum
+ * distance, and then the one with the smaller perimeter is removed. Every near pair is
+ * judged on its own, so the result doesn't depend on the order the pairs are found in and
+ * both search methods remove the same candidates. The filter keeps its spatial hash between
+ * frames so it doesn't allocate; it must only be used by one thread at a time.
+ */
+class NearCandidateFilter {
+	private final double minDistance;
+	// cell of each candidate, chained by candNext from cellHead
+	private int[] candCellX, candCellY, candNext;
+	private int[] cellX, cellY, cellHead;
+	// candidates being filtered
+	private float[] corners;
+	private double[] perimeters;
+	private boolean[] removed;
+
+	/**
+	 * @param minDistance the average corner distance below which two candidates are too near.
+	 */
+	NearCandidateFilter(double minDistance){
+		this.minDistance = minDistance;
+		candCellX = candCellY = candNext = new int[0];
+		cellX = cellY = cellHead = new int[0];
+	}
+
+	/**
+	 * Marks the candidates too near to a bigger one. The removed flags are only ever set, so
+	 * they must be cleared before.
+	 * @param search how the pairs of candidates are compared.
+	 * @param corners the corners of the candidates [x1 y1 ... x4 y4] for each one.
+	 * @param perimeters the perimeter of each candidate.
+	 * @param removed output flags of the candidates to remove.
+	 * @param n the number of candidates.
+	 */
+	void filter(NearCandidateSearch search, float[] corners, double[] perimeters, boolean[] removed, int n){
+		this.corners = corners;
+		this.perimeters = perimeters;
+		this.removed = removed;
+		if(search == NearCandidateSearch.GRID)
+			filterGrid(n);
+		else
+			for(int i=0;i<n;i++)
+				for(int j=i+1;j<n;j++)
+					removeIfNear(i, j);
+		this.corners = null;
+		this.perimeters = null;
+		this.removed = null;
+	}
+
+	/**
+	 * if the average distance of the corners of two candidates is below the minimum distance,
+	 * marks the one with the smaller perimeter to be removed.
+	 */
+	private void removeIfNear(int i, int j){
+		double dist = 0;
+		for(int c=0;c<8;c+=2){
+			double dx = corners[8*j+c]-corners[8*i+c];
+			double dy = corners[8*j+c+1]-corners[8*i+c+1];
+			dist += Math.sqrt(dx*dx + dy*dy);
+		}
+		dist = dist/4;
+		if(dist < minDistance){
+			if(perimeters[i] < perimeters[j])
+				removed[i] = true;
+			else
+				removed[j] = true;
+		}
+	}
+
+	/**
+	 * finds the candidates too near to each other through a spatial hash of their centroids.
+	 * Candidates that are too near have their centroids less than the minimum distance apart,
+	 * so with cells of that size they are always in the same or in neighbouring cells.
+	 */
+	private void filterGrid(int n){
+		if(candNext.length < n){
+			candCellX = new int[n];
+			candCellY = new int[n];
+			candNext = new int[n];
+		}
+		int size = 16;
+		while(size < 2*n)
+			size <<= 1;
+		if(cellHead.length < size){
+			cellX = new int[size];
+			cellY = new int[size];
+			cellHead = new int[size];
+		}
+		Arrays.fill(cellHead, 0, size, -1);
+		int mask = size-1;
+		for(int i=0;i<n;i++){
+			float sumX = 0, sumY = 0;
+			for(int c=0;c<8;c+=2){
+				sumX += corners[8*i+c];
+				sumY += corners[8*i+c+1];
+			}
+			int x = (int)Math.floor(sumX/4/minDistance);
+			int y = (int)Math.floor(sumY/4/minDistance);
+			candCellX[i] = x;
+			candCellY[i] = y;
+			int slot = findCell(x, y, mask);
+			if(cellHead[slot] == -1){
+				cellX[slot] = x;
+				cellY[slot] = y;
+			}
+			candNext[i] = cellHead[slot];
+			cellHead[slot] = i;
+		}
+		for(int i=0;i<n;i++)
+			for(int dy=-1;dy<=1;dy++)
+				for(int dx=-1;dx<=1;dx++){
+					int slot = findCell(candCellX[i]+dx, candCellY[i]+dy, mask);
+					for(int j=cellHead[slot];j!=-1;j=candNext[j])
+						if(j > i)
+							removeIfNear(i, j);
+				}
+	}
+
+	/**
+	 * returns the slot of the spatial hash of a cell, or the empty slot where it would go.
+	 */
+	private int findCell(int x, int y, int mask){
+		int slot = (x*73856093 ^ y*19349663) & mask;
+		while(cellHead[slot] != -1 && (cellX[slot] != x || cellY[slot] != y))
+			slot = (slot+1) & mask;
+		return slot;
+	}
+}
@@ -37,7 +37,6 @@ public class FpsMeter {
             long time = Core.getTickCount();
             double fps = step * freq / (time - prevFrameTime);
             prevFrameTime = time;
-            DecimalFormat twoPlaces = new DecimalFormat("0.00");
             strfps = twoPlaces.format(fps) + " FPS";
             Log.i(TAG, strfps);
         }
@@ -0,0 +1,191 @@
+package es.ava.aruco.debug;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds with fixed buckets, which can be recorded to from
+ * any number of threads without locks or allocations. Values below 8 have a bucket each,
+ * and every power of two above is split in 8 buckets, so a value is known to within 12.5%
+ * from 8ns up to the longest latency that fits in a long.
+ */
+public final class LatencyHistogram {
+	// buckets per power of two, and its log2
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final String name;
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	LatencyHistogram(String name){
+		this.name = name;
+	}
+
+	/**
+	 * returns the name the histogram was registered with.
+	 * @return the name.
+	 */
+	public String getName(){
+		return name;
+	}
+
+	/**
+	 * records a latency, negative ones are recorded as 0.
+	 * @param nanos the latency in nanoseconds.
+	 */
+	public void record(long nanos){
+		if(nanos < 0)
+			nanos = 0;
+		buckets.incrementAndGet(bucketOf(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+		long m;
+		while(nanos > (m = max.get()))
+			if(max.compareAndSet(m, nanos))
+				break;
+	}
+
+	/**
+	 * records the time from a start time to now.
+	 * @param startNanos the start time from System.nanoTime().
+	 */
+	public void recordSince(long startNanos){
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * returns the number of latencies recorded.
+	 * @return the count.
+	 */
+	public long getCount(){
+		return count.get();
+	}
+
+	/**
+	 * clears the histogram. Latencies recorded at the same time may be partly cleared.
+	 */
+	public void reset(){
+		for(int i=0;i<BUCKETS;i++)
+			buckets.set(i, 0);
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * copies the current state of the histogram. Latencies recorded while copying may or may
+	 * not be included, so the percentiles of the copy can be off by those few values.
+	 * @return the copy.
+	 */
+	public Snapshot snapshot(){
+		long[] copy = new long[BUCKETS];
+		long total = 0;
+		for(int i=0;i<BUCKETS;i++){
+			copy[i] = buckets.get(i);
+			total += copy[i];
+		}
+		return new Snapshot(name, copy, total, sum.get(), max.get());
+	}
+
+	static int bucketOf(long value){
+		if(value < SUB_BUCKETS)
+			return (int)value;
+		int log2 = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int)(value >>> (log2 - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (log2 - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	// highest value that falls in the bucket
+	static long bucketTop(int bucket){
+		if(bucket < SUB_BUCKETS)
+			return bucket;
+		int log2 = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		long lowest = (SUB_BUCKETS + sub) << (log2 - SUB_BITS);
+		return lowest + (1L << (log2 - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * Copy of the state of a histogram at some point in time.
+	 */
+	public static final class Snapshot {
+		private final String name;
+		private final long[] buckets;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		Snapshot(String name, long[] buckets, long count, long sum, long max){
+			this.name = name;
+			this.buckets = buckets;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		public String getName(){
+			return name;
+		}
+
+		public long getCount(){
+			return count;
+		}
+
+		public long getMaxNanos(){
+			return max;
+		}
+
+		public long getMeanNanos(){
+			return count == 0? 0 : sum/count;
+		}
+
+		/**
+		 * returns the latency below which the given fraction of the latencies recorded fall,
+		 * rounded up to the top of its bucket.
+		 * @param fraction the fraction, i.e. 0.95 for the 95th percentile.
+		 * @return the latency in nanoseconds, 0 if nothing was recorded.
+		 */
+		public long getPercentileNanos(double fraction){
+			if(fraction < 0 || fraction > 1)
+				throw new IllegalArgumentException("The fraction must be between 0 and 1!");
+			if(count == 0)
+				return 0;
+			long rank = Math.max(1, (long)Math.ceil(fraction*count));
+			long seen = 0;
+			for(int i=0;i<buckets.length;i++){
+				seen += buckets[i];
+				if(seen >= rank)
+					return Math.min(bucketTop(i), max);
+			}
+			return max;
+		}
+
+		public long getP50Nanos(){
+			return getPercentileNanos(0.50);
+		}
+
+		public long getP95Nanos(){
+			return getPercentileNanos(0.95);
+		}
+
+		public long getP99Nanos(){
+			return getPercentileNanos(0.99);
+		}
+
+		@Override
+		public String toString(){
+			return name+" count="+count+" mean="+micros(getMeanNanos())+"us p50="+micros(getP50Nanos())
+					+"us p95="+micros(getP95Nanos())+"us p99="+micros(getP99Nanos())+"us max="+micros(max)+"us";
+		}
+
+		private static String micros(long nanos){
+			// one decimal without a formatter
+			long tenths = (nanos + 50) / 100;
+			return (tenths/10) + "." + (tenths%10);
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package es.ava.aruco.debug;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Set of named latency histograms, one per stage of the pipeline, that can be recorded to
+ * and read from any thread. Getting a histogram by name may allocate the first time, so the
+ * code recording to it keeps the histogram rather than looking it up every frame; recording
+ * itself never allocates nor locks. {@link #snapshot} copies all of them at once, i.e. to
+ * log them or to compare the latencies of two releases.
+ */
+public class MetricsRegistry {
+	// names of the stages recorded by the detector and the library
+	/** from the sensor timestamp of a camera image to it being taken for processing */
+	public static final String CAPTURE_TO_ACQUIRE = "capture_to_acquire";
+	/** thresholding the frame */
+	public static final String THRESHOLD = "threshold";
+	/** finding the contours of the thresholded frame and the candidates among them */
+	public static final String CONTOURS = "contours";
+	/** reading the codes of the candidates */
+	public static final String IDENTIFICATION = "identification";
+	/** calculating the extrinsics of the markers detected */
+	public static final String PNP = "pnp";
+	/** turning detected poses into model matrices */
+	public static final String POSE_TRANSFORM = "pose_transform";
+	/** the whole detection of a frame taken from a frame source */
+	public static final String FRAME = "frame";
+	/** the per frame work of the renderer before drawing the eyes */
+	public static final String ON_NEW_FRAME = "on_new_frame";
+	/** drawing one eye */
+	public static final String ON_DRAW_EYE = "on_draw_eye";
+
+	private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+	// histograms in the order they were created, for the snapshots
+	private final List<LatencyHistogram> ordered = new CopyOnWriteArrayList<LatencyHistogram>();
+
+	/**
+	 * returns the histogram with the given name, creating it if there is none.
+	 * @param name name of the histogram, usually one of the stage names of this class.
+	 * @return the histogram.
+	 */
+	public LatencyHistogram histogram(String name){
+		LatencyHistogram histogram = histograms.get(name);
+		if(histogram == null){
+			LatencyHistogram created = new LatencyHistogram(name);
+			histogram = histograms.putIfAbsent(name, created);
+			if(histogram == null){
+				histogram = created;
+				ordered.add(created);
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * clears all the histograms.
+	 */
+	public void reset(){
+		for(LatencyHistogram histogram : ordered)
+			histogram.reset();
+	}
+
+	/**
+	 * copies the current state of all the histograms.
+	 * @return the copy, with the histograms in the order they were created.
+	 */
+	public MetricsSnapshot snapshot(){
+		List<LatencyHistogram.Snapshot> snapshots = new ArrayList<LatencyHistogram.Snapshot>(ordered.size());
+		for(LatencyHistogram histogram : ordered)
+			snapshots.add(histogram.snapshot());
+		return new MetricsSnapshot(System.currentTimeMillis(), snapshots);
+	}
+}
@@ -0,0 +1,67 @@
+package es.ava.aruco.debug;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Copy of all the histograms of a {@link MetricsRegistry} at some point in time.
+ */
+public class MetricsSnapshot {
+	private final long timeMillis;
+	private final List<LatencyHistogram.Snapshot> histograms;
+
+	MetricsSnapshot(long timeMillis, List<LatencyHistogram.Snapshot> histograms){
+		this.timeMillis = timeMillis;
+		this.histograms = Collections.unmodifiableList(histograms);
+	}
+
+	/**
+	 * returns when the snapshot was taken.
+	 * @return the time in milliseconds since the epoch.
+	 */
+	public long getTimeMillis(){
+		return timeMillis;
+	}
+
+	/**
+	 * returns the histograms, in the order they were created in the registry.
+	 * @return the histograms.
+	 */
+	public List<LatencyHistogram.Snapshot> getHistograms(){
+		return histograms;
+	}
+
+	/**
+	 * returns the histogram with the given name.
+	 * @param name name of the histogram.
+	 * @return the histogram, or null if there was none with that name.
+	 */
+	public LatencyHistogram.Snapshot get(String name){
+		for(LatencyHistogram.Snapshot histogram : histograms)
+			if(histogram.getName().equals(name))
+				return histogram;
+		return null;
+	}
+
+	/**
+	 * writes the snapshot as comma separated values, with a header line and a line for each
+	 * histogram, with all the latencies in nanoseconds.
+	 * @return the values.
+	 */
+	public String toCsv(){
+		StringBuilder sb = new StringBuilder("stage,count,mean,p50,p95,p99,max\n");
+		for(LatencyHistogram.Snapshot h : histograms)
+			sb.append(h.getName()).append(',').append(h.getCount()).append(',').append(h.getMeanNanos())
+				.append(',').append(h.getP50Nanos()).append(',').append(h.getP95Nanos())
+				.append(',').append(h.getP99Nanos()).append(',').append(h.getMaxNanos()).append('\n');
+		return sb.toString();
+	}
+
+	@Override
+	public String toString(){
+		StringBuilder sb = new StringBuilder();
+		for(LatencyHistogram.Snapshot h : histograms)
+			sb.append(h).append('\n');
+		return sb.toString();
+	}
+}
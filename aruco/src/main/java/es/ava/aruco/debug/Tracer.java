@@ -0,0 +1,207 @@
+package es.ava.aruco.debug;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records timed spans of work from any number of threads into a ring buffer allocated up
+ * front, so tracing allocates nothing and keeps only the latest spans. The buffer can be
+ * dumped at any time as Chrome trace event JSON, which chrome://tracing and Perfetto open
+ * as a timeline with a row per thread. Nothing depends on Android, so traces can also be
+ * recorded and dumped on a plain JVM.
+ * <p>
+ * Span names should be constants, since the name is kept by reference.
+ */
+public class Tracer {
+	private final int capacity;
+	private final String[] names;
+	private final long[] starts;
+	private final long[] durations;
+	private final long[] threadIds;
+	private final String[] threadNames;
+	// number of the span held by each slot plus one, 0 while it is being written
+	private final AtomicLongArray sequence;
+	// number of spans ever recorded, the next one goes to slot next % capacity
+	private final AtomicLong next = new AtomicLong();
+
+	/**
+	 * creates a tracer.
+	 * @param capacity number of spans kept, older ones are overwritten.
+	 */
+	public Tracer(int capacity){
+		if(capacity <= 0)
+			throw new IllegalArgumentException("The capacity must be positive!");
+		this.capacity = capacity;
+		names = new String[capacity];
+		starts = new long[capacity];
+		durations = new long[capacity];
+		threadIds = new long[capacity];
+		threadNames = new String[capacity];
+		sequence = new AtomicLongArray(capacity);
+	}
+
+	/**
+	 * records a span of work done by the current thread.
+	 * @param name name of the span.
+	 * @param startNanos start of the span from System.nanoTime().
+	 * @param endNanos end of the span from System.nanoTime().
+	 */
+	public void span(String name, long startNanos, long endNanos){
+		long index = next.getAndIncrement();
+		int slot = (int)(index % capacity);
+		// the read and write of the sequence also keep the writes below after it
+		sequence.getAndSet(slot, 0);
+		Thread thread = Thread.currentThread();
+		names[slot] = name;
+		starts[slot] = startNanos;
+		durations[slot] = endNanos - startNanos;
+		threadIds[slot] = thread.getId();
+		threadNames[slot] = thread.getName();
+		sequence.set(slot, index + 1);
+	}
+
+	/**
+	 * records a span of work done by the current thread that ends now.
+	 * @param name name of the span.
+	 * @param startNanos start of the span from System.nanoTime().
+	 */
+	public void span(String name, long startNanos){
+		span(name, startNanos, System.nanoTime());
+	}
+
+	/**
+	 * returns the number of spans that can be kept.
+	 * @return the capacity.
+	 */
+	public int getCapacity(){
+		return capacity;
+	}
+
+	/**
+	 * returns the number of spans recorded since the tracer was created or cleared,
+	 * including the ones already overwritten.
+	 * @return the number of spans.
+	 */
+	public long getSpanCount(){
+		return next.get();
+	}
+
+	/**
+	 * forgets all the spans. Spans recorded at the same time may be kept.
+	 */
+	public void clear(){
+		next.set(0);
+		for(int i=0;i<capacity;i++)
+			sequence.set(i, 0);
+	}
+
+	/**
+	 * writes the spans kept as a Chrome trace event JSON object, oldest first. Spans being
+	 * recorded while writing are left out, so it can be called while tracing.
+	 * @param out where to write the JSON.
+	 * @throws IOException if writing fails.
+	 */
+	public void writeJson(Writer out) throws IOException{
+		long end = next.get();
+		long first = Math.max(0, end - capacity);
+		Map<Long, String> threads = new HashMap<Long, String>();
+		out.write("{\"traceEvents\":[");
+		boolean firstEvent = true;
+		for(long index=first;index<end;index++){
+			int slot = (int)(index % capacity);
+			if(sequence.get(slot) != index + 1)
+				continue;
+			String name = names[slot];
+			long start = starts[slot];
+			long duration = durations[slot];
+			long tid = threadIds[slot];
+			String threadName = threadNames[slot];
+			// unchanged if it was not overwritten while reading, and keeps the reads before it
+			if(!sequence.compareAndSet(slot, index + 1, index + 1))
+				continue;
+			threads.put(tid, threadName);
+			if(!firstEvent)
+				out.write(',');
+			firstEvent = false;
+			out.write("\n{\"name\":");
+			writeString(out, name);
+			out.write(",\"ph\":\"X\",\"pid\":1,\"tid\":");
+			out.write(Long.toString(tid));
+			out.write(",\"ts\":");
+			writeMicros(out, start);
+			out.write(",\"dur\":");
+			writeMicros(out, duration);
+			out.write('}');
+		}
+		for(Map.Entry<Long, String> thread : threads.entrySet()){
+			if(!firstEvent)
+				out.write(',');
+			firstEvent = false;
+			out.write("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":");
+			out.write(Long.toString(thread.getKey()));
+			out.write(",\"args\":{\"name\":");
+			writeString(out, thread.getValue());
+			out.write("}}");
+		}
+		out.write("\n],\"displayTimeUnit\":\"ms\"}\n");
+		out.flush();
+	}
+
+	/**
+	 * returns the spans kept as a Chrome trace event JSON object, see writeJson.
+	 * @return the JSON.
+	 */
+	public String toJson(){
+		StringWriter out = new StringWriter();
+		try{
+			writeJson(out);
+		}
+		catch(IOException e){
+			// a StringWriter does not throw
+			throw new IllegalStateException(e);
+		}
+		return out.toString();
+	}
+
+	// trace event times are in microseconds, written with the nanoseconds as decimals
+	private static void writeMicros(Writer out, long nanos) throws IOException{
+		if(nanos < 0){
+			out.write('-');
+			nanos = -nanos;
+		}
+		out.write(Long.toString(nanos/1000));
+		long frac = nanos%1000;
+		out.write('.');
+		out.write((char)('0' + frac/100));
+		out.write((char)('0' + frac/10%10));
+		out.write((char)('0' + frac%10));
+	}
+
+	private static void writeString(Writer out, String s) throws IOException{
+		if(s == null)
+			s = "";
+		out.write('"');
+		for(int i=0;i<s.length();i++){
+			char c = s.charAt(i);
+			if(c == '"' || c == '\\'){
+				out.write('\\');
+				out.write(c);
+			}
+			else if(c < 0x20){
+				String hex = Integer.toHexString(c);
+				out.write("\\u");
+				for(int j=hex.length();j<4;j++)
+					out.write('0');
+				out.write(hex);
+			}
+			else
+				out.write(c);
+		}
+		out.write('"');
+	}
+}
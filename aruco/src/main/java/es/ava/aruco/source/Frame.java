@@ -0,0 +1,80 @@
+package es.ava.aruco.source;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Luminance (grayscale) frame given by a {@link FrameSource}. A frame is reused for every
+ * call of {@link FrameSource#next}, and its buffer is only valid until the next call or until
+ * the source is closed, so nothing should be kept from it.
+ */
+public class Frame {
+	private ByteBuffer luma;
+	private int width;
+	private int height;
+	private int rowStride;
+	private long timestampNanos;
+	private long index = -1;
+
+	/**
+	 * sets the contents of the frame, called by the sources.
+	 * @param luma buffer with the luminance values, one byte per pixel.
+	 * @param width width of the frame in pixels.
+	 * @param height height of the frame in pixels.
+	 * @param rowStride distance in bytes between the start of two consecutive rows.
+	 * @param timestampNanos capture time of the frame in the System.nanoTime() time base.
+	 */
+	public void set(ByteBuffer luma, int width, int height, int rowStride, long timestampNanos){
+		if(width <= 0 || height <= 0)
+			throw new IllegalArgumentException("The frame size must be positive!");
+		if(rowStride < width)
+			throw new IllegalArgumentException("The row stride can not be smaller than the width!");
+		this.luma = luma;
+		this.width = width;
+		this.height = height;
+		this.rowStride = rowStride;
+		this.timestampNanos = timestampNanos;
+		index++;
+	}
+
+	/**
+	 * returns the buffer with the luminance values, one byte per pixel, starting at position 0.
+	 * @return the buffer.
+	 */
+	public ByteBuffer getLuma(){
+		return luma;
+	}
+
+	public int getWidth(){
+		return width;
+	}
+
+	public int getHeight(){
+		return height;
+	}
+
+	/**
+	 * returns the distance in bytes between the start of two consecutive rows, which is
+	 * larger than the width if the rows are padded.
+	 * @return the row stride.
+	 */
+	public int getRowStride(){
+		return rowStride;
+	}
+
+	/**
+	 * returns when the frame was captured, in the System.nanoTime() time base so it can be
+	 * compared with the current time whatever the source.
+	 * @return the timestamp in nanoseconds.
+	 */
+	public long getTimestampNanos(){
+		return timestampNanos;
+	}
+
+	/**
+	 * returns the number of frames set before this one, i.e. 0 for the first frame.
+	 * @return the index of the frame, -1 if it was never set.
+	 */
+	public long getIndex(){
+		return index;
+	}
+}
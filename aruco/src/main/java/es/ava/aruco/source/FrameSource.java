@@ -0,0 +1,22 @@
+package es.ava.aruco.source;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sequence of luminance frames to run detection on, i.e. a camera or a recording. The
+ * detection path only needs the luminance of the frames, so the same detectors can be
+ * driven from a camera on a device or from files on a plain JVM, see {@link FrameSourceRunner}.
+ * A source is used from a single thread.
+ */
+public interface FrameSource extends Closeable {
+
+	/**
+	 * waits for the next frame and puts it in the given one. The buffer of the frame given
+	 * by the previous call may be reused or released.
+	 * @param frame the frame to fill.
+	 * @return true if there was a frame, false if the source has ended or was closed.
+	 * @throws IOException if the frame could not be read.
+	 */
+	boolean next(Frame frame) throws IOException;
+}
@@ -0,0 +1,186 @@
+package es.ava.aruco.source;
+
+import java.io.IOException;
+import java.util.Vector;
+
+import es.ava.aruco.Board;
+import es.ava.aruco.BoardConfiguration;
+import es.ava.aruco.BoardDetector;
+import es.ava.aruco.CameraParameters;
+import es.ava.aruco.Marker;
+import es.ava.aruco.MarkerDetector;
+import es.ava.aruco.debug.LatencyHistogram;
+import es.ava.aruco.debug.MetricsRegistry;
+import es.ava.aruco.debug.Tracer;
+
+/**
+ * Runs marker detection, and optionally board detection, on every frame of a
+ * {@link FrameSource} on the calling thread. Nothing depends on Android, so with the desktop
+ * OpenCV bindings a recording can be replayed on a plain JVM to measure the throughput and
+ * the latencies of the detection, with a {@link MetricsRegistry} and a {@link Tracer}. Further
+ * stages, i.e. building cubes from the markers, can be run by a {@link Listener}.
+ */
+public class FrameSourceRunner {
+
+	/**
+	 * Receives the result of every frame, on the thread running the source.
+	 */
+	public interface Listener {
+		/**
+		 * called after detecting a frame.
+		 * @param frame the frame, only valid during the call.
+		 * @param markers the markers detected, only valid during the call.
+		 * @param board the board detected, or null if no board is detected.
+		 * @param boardLikelihood how likely the board was found, from 0 to 1.
+		 */
+		void onFrame(Frame frame, Vector<Marker> markers, Board board, float boardLikelihood);
+	}
+
+	private final MarkerDetector detector;
+	private final CameraParameters cp;
+	private final float markerSizeMeters;
+	private BoardConfiguration boardConf;
+	private final BoardDetector boardDetector = new BoardDetector();
+	private final Board board = new Board();
+	private Listener listener;
+	private MetricsRegistry metrics;
+	private LatencyHistogram captureToAcquireLatency;
+	private LatencyHistogram frameLatency;
+	private Tracer tracer;
+	private volatile boolean stopped;
+	private long frames;
+	private long elapsedNanos;
+
+	/**
+	 * creates a runner.
+	 * @param detector the detector to run, configured as wanted.
+	 * @param cp camera parameters matching the resolution of the frames.
+	 * @param markerSizeMeters size of the markers.
+	 */
+	public FrameSourceRunner(MarkerDetector detector, CameraParameters cp, float markerSizeMeters){
+		this.detector = detector;
+		this.cp = cp;
+		this.markerSizeMeters = markerSizeMeters;
+	}
+
+	/**
+	 * sets the board to detect among the markers of every frame.
+	 * @param conf the configuration of the board, or null to detect markers only.
+	 */
+	public void setBoardConfiguration(BoardConfiguration conf){
+		boardConf = conf;
+		boardDetector.resetPose();
+	}
+
+	/**
+	 * sets who receives the result of every frame.
+	 * @param listener the listener, or null.
+	 */
+	public void setListener(Listener listener){
+		this.listener = listener;
+	}
+
+	/**
+	 * sets the registry the latencies are recorded to: the time from the capture of every frame
+	 * to it being taken from the source, the whole detection of the frame, and the stages of the
+	 * marker detector.
+	 * @param metrics the registry, or null to stop recording.
+	 */
+	public void setMetrics(MetricsRegistry metrics){
+		this.metrics = metrics;
+		captureToAcquireLatency = metrics == null? null : metrics.histogram(MetricsRegistry.CAPTURE_TO_ACQUIRE);
+		frameLatency = metrics == null? null : metrics.histogram(MetricsRegistry.FRAME);
+	}
+
+	/**
+	 * sets the tracer the detection of every frame is recorded to, with the spans of the marker
+	 * detector inside.
+	 * @param tracer the tracer, or null to stop tracing.
+	 */
+	public void setTracer(Tracer tracer){
+		this.tracer = tracer;
+	}
+
+	/**
+	 * runs detection on the frames of a source until it ends or {@link #stop} is called. The
+	 * source is not closed.
+	 * @param source the source.
+	 * @return the number of frames detected.
+	 * @throws IOException if the source fails to give a frame.
+	 */
+	public long run(FrameSource source) throws IOException{
+		stopped = false;
+		detector.setMetrics(metrics);
+		detector.setTracer(tracer);
+		Frame frame = new Frame();
+		Vector<Marker> markers = new Vector<Marker>();
+		long runStart = System.nanoTime();
+		long processed = 0;
+		try{
+			while(!stopped){
+				long wait = System.nanoTime();
+				if(!source.next(frame))
+					break;
+				long start = System.nanoTime();
+				if(captureToAcquireLatency != null)
+					captureToAcquireLatency.record(start - frame.getTimestampNanos());
+				if(tracer != null)
+					tracer.span("acquire", wait, start);
+				detector.detect(frame.getLuma(), frame.getWidth(), frame.getHeight(), frame.getRowStride(),
+						markers, cp, markerSizeMeters);
+				Board detected = null;
+				float likelihood = 0;
+				if(boardConf != null){
+					long boardStart = tracer == null? 0 : System.nanoTime();
+					likelihood = boardDetector.detect(markers, boardConf, board, cp, markerSizeMeters);
+					detected = board;
+					if(tracer != null)
+						tracer.span("board", boardStart);
+				}
+				if(listener != null)
+					listener.onFrame(frame, markers, detected, likelihood);
+				if(frameLatency != null)
+					frameLatency.recordSince(start);
+				if(tracer != null)
+					tracer.span("process_frame", start);
+				processed++;
+			}
+		}
+		finally{
+			frames += processed;
+			elapsedNanos += System.nanoTime() - runStart;
+		}
+		return processed;
+	}
+
+	/**
+	 * stops a run after the frame being detected, can be called from any thread.
+	 */
+	public void stop(){
+		stopped = true;
+	}
+
+	/**
+	 * returns the number of frames detected by all the runs.
+	 * @return the number of frames.
+	 */
+	public long getFrames(){
+		return frames;
+	}
+
+	/**
+	 * returns the time taken by all the runs, including the time waiting for the sources.
+	 * @return the time in nanoseconds.
+	 */
+	public long getElapsedNanos(){
+		return elapsedNanos;
+	}
+
+	/**
+	 * returns the frames detected per second by all the runs.
+	 * @return the throughput, 0 if nothing was run.
+	 */
+	public double getFramesPerSecond(){
+		return elapsedNanos == 0? 0 : frames*1e9/elapsedNanos;
+	}
+}
@@ -0,0 +1,106 @@
+package es.ava.aruco.source;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.opencv.core.Mat;
+import org.opencv.highgui.Highgui;
+
+/**
+ * Source that replays the images of a directory in the order of their names, i.e. frames
+ * dumped with numbered names. The images are decoded with OpenCV as grayscale, so any
+ * format it reads can be used, and they may have different sizes.
+ */
+public class ImageDirectorySource extends RecordedFrameSource {
+	private static final String[] EXTENSIONS = {".png", ".jpg", ".jpeg", ".bmp", ".pgm", ".ppm", ".tif", ".tiff"};
+
+	private final File[] files;
+	private int nextFile;
+	private byte[] pixels = new byte[0];
+	private ByteBuffer luma;
+	private int width;
+	private int height;
+
+	/**
+	 * creates a source replaying the images of a directory as fast as possible.
+	 * @param dir the directory.
+	 * @throws FileNotFoundException if the directory can not be listed.
+	 */
+	public ImageDirectorySource(File dir) throws FileNotFoundException{
+		this(dir, 0);
+	}
+
+	/**
+	 * creates a source replaying the images of a directory.
+	 * @param dir the directory.
+	 * @param fps frame rate to replay the images at, or 0 to replay them as fast as possible.
+	 * @throws FileNotFoundException if the directory can not be listed.
+	 */
+	public ImageDirectorySource(File dir, double fps) throws FileNotFoundException{
+		super(fps);
+		File[] listed = dir.listFiles(new FileFilter(){
+			@Override
+			public boolean accept(File file){
+				if(!file.isFile())
+					return false;
+				String name = file.getName().toLowerCase(Locale.US);
+				for(String extension : EXTENSIONS)
+					if(name.endsWith(extension))
+						return true;
+				return false;
+			}
+		});
+		if(listed == null)
+			throw new FileNotFoundException("Can not list the directory "+dir);
+		Arrays.sort(listed);
+		files = listed;
+	}
+
+	/**
+	 * returns the number of images to replay.
+	 * @return the number of images.
+	 */
+	public int getFrameCount(){
+		return files.length;
+	}
+
+	@Override
+	protected ByteBuffer read() throws IOException{
+		if(nextFile >= files.length)
+			return null;
+		File file = files[nextFile++];
+		Mat decoded = Highgui.imread(file.getPath(), Highgui.CV_LOAD_IMAGE_GRAYSCALE);
+		if(decoded.empty())
+			throw new IOException("Could not decode the image "+file);
+		width = decoded.cols();
+		height = decoded.rows();
+		int size = width*height;
+		if(pixels.length != size){
+			pixels = new byte[size];
+			luma = ByteBuffer.wrap(pixels);
+		}
+		decoded.get(0, 0, pixels);
+		decoded.release();
+		return luma;
+	}
+
+	@Override
+	protected int getWidth(){
+		return width;
+	}
+
+	@Override
+	protected int getHeight(){
+		return height;
+	}
+
+	@Override
+	protected int getRowStride(){
+		return width;
+	}
+}
@@ -0,0 +1,99 @@
+package es.ava.aruco.source;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Source that replays a recorded sequence of raw YUV 4:2:0 frames, stored one after the
+ * other with no header and no row padding, i.e. a dump of the camera images or the output
+ * of ffmpeg with -f rawvideo -pix_fmt yuv420p. I420, NV12 and NV21 frames all start with the
+ * full Y plane and take width*height*3/2 bytes, so any of them can be read. Only the Y plane
+ * is read, the chroma of every frame is skipped.
+ */
+public class RawYuvFileSource extends RecordedFrameSource {
+	private final FileInputStream in;
+	private final FileChannel channel;
+	private final int width;
+	private final int height;
+	private final long frameBytes;
+	private final ByteBuffer luma;
+
+	/**
+	 * creates a source replaying a sequence file as fast as possible.
+	 * @param file the sequence file.
+	 * @param width width of the frames in pixels.
+	 * @param height height of the frames in pixels.
+	 * @throws IOException if the file can not be opened.
+	 */
+	public RawYuvFileSource(File file, int width, int height) throws IOException{
+		this(file, width, height, 0);
+	}
+
+	/**
+	 * creates a source replaying a sequence file.
+	 * @param file the sequence file.
+	 * @param width width of the frames in pixels.
+	 * @param height height of the frames in pixels.
+	 * @param fps frame rate to replay the frames at, or 0 to replay them as fast as possible.
+	 * @throws IOException if the file can not be opened.
+	 */
+	public RawYuvFileSource(File file, int width, int height, double fps) throws IOException{
+		super(fps);
+		if(width <= 0 || height <= 0 || width%2 != 0 || height%2 != 0)
+			throw new IllegalArgumentException("The frame size must be positive and even!");
+		this.width = width;
+		this.height = height;
+		frameBytes = (long)width*height*3/2;
+		luma = ByteBuffer.allocate(width*height);
+		in = new FileInputStream(file);
+		channel = in.getChannel();
+	}
+
+	/**
+	 * returns the number of whole frames in the file.
+	 * @return the number of frames.
+	 * @throws IOException if the size of the file can not be read.
+	 */
+	public long getFrameCount() throws IOException{
+		return channel.size()/frameBytes;
+	}
+
+	@Override
+	protected ByteBuffer read() throws IOException{
+		long frameStart = channel.position();
+		// a truncated last frame, i.e. from a recording cut short, ends the sequence
+		if(channel.size() - frameStart < frameBytes)
+			return null;
+		luma.clear();
+		while(luma.hasRemaining())
+			if(channel.read(luma) < 0)
+				return null;
+		luma.flip();
+		channel.position(frameStart + frameBytes);
+		return luma;
+	}
+
+	@Override
+	protected int getWidth(){
+		return width;
+	}
+
+	@Override
+	protected int getHeight(){
+		return height;
+	}
+
+	@Override
+	protected int getRowStride(){
+		return width;
+	}
+
+	@Override
+	public void close() throws IOException{
+		super.close();
+		in.close();
+	}
+}
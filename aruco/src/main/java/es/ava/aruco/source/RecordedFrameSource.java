@@ -0,0 +1,78 @@
+package es.ava.aruco.source;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Base of the sources that replay recorded frames. They can be replayed at a frame rate,
+ * waiting for the time of each frame as a camera would, or as fast as they can be read to
+ * measure throughput. The frames are timestamped when they would have been captured, or
+ * when they are read if not paced.
+ */
+abstract class RecordedFrameSource implements FrameSource {
+	private final long frameNanos;
+	private long firstFrameTime;
+	private long frames;
+	private boolean closed;
+
+	/**
+	 * @param fps frame rate to replay the frames at, or 0 to replay them as fast as possible.
+	 */
+	RecordedFrameSource(double fps){
+		if(fps < 0)
+			throw new IllegalArgumentException("The frame rate can not be negative!");
+		frameNanos = fps == 0? 0 : (long)(1e9/fps);
+	}
+
+	@Override
+	public boolean next(Frame frame) throws IOException{
+		if(closed)
+			return false;
+		long timestamp;
+		if(frameNanos == 0)
+			timestamp = System.nanoTime();
+		else{
+			if(frames == 0)
+				firstFrameTime = System.nanoTime();
+			timestamp = firstFrameTime + frames*frameNanos;
+			long wait = timestamp - System.nanoTime();
+			if(wait > 0){
+				try{
+					Thread.sleep(wait/1000000, (int)(wait%1000000));
+				}
+				catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for the next frame");
+				}
+			}
+		}
+		ByteBuffer luma = read();
+		if(luma == null)
+			return false;
+		frame.set(luma, getWidth(), getHeight(), getRowStride(), timestamp);
+		frames++;
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException{
+		closed = true;
+	}
+
+	/**
+	 * reads the luminance of the next recorded frame.
+	 * @return the luminance, starting at position 0, or null if there are no more frames.
+	 * @throws IOException if the frame could not be read.
+	 */
+	protected abstract ByteBuffer read() throws IOException;
+
+	/** width of the frame last read */
+	protected abstract int getWidth();
+
+	/** height of the frame last read */
+	protected abstract int getHeight();
+
+	/** row stride of the frame last read */
+	protected abstract int getRowStride();
+}
@@ -0,0 +1,160 @@
+package es.ava.aruco;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the packed codes and the decode table against the brute force Hamming
+ * decode they replaced, which worked on the cells of the code one by one.
+ */
+public class CodeTest {
+	private static final int RANDOM_CODES = 2000000;
+
+	@Test
+	public void decodesEveryRotationOfEveryId(){
+		for(int id=0;id<1024;id++){
+			long bits = Code.encode(id);
+			for(int r=0;r<4;r++){
+				int expected = bruteForceDecode(bits);
+				assertEquals("id "+id+" rotated "+r, expected, Code.decode(bits));
+				assertTrue("id "+id+" rotated "+r, expected != -1);
+				bits = Code.rotate(bits);
+			}
+		}
+	}
+
+	@Test
+	public void decodesRandomCodesLikeBruteForce(){
+		Random random = new Random(42);
+		int valid = 0;
+		for(int i=0;i<RANDOM_CODES;i++){
+			long bits;
+			if(i%2 == 0)
+				bits = random.nextLong() & ((1L<<49)-1);
+			else{
+				// flip a few cells of a valid code, which is nearer to what the camera reads
+				bits = Code.encode(random.nextInt(1024));
+				for(int r=random.nextInt(4);r>0;r--)
+					bits = Code.rotate(bits);
+				for(int f=random.nextInt(3);f>0;f--)
+					bits ^= 1L << (7*(1+random.nextInt(5)) + 1+random.nextInt(5));
+			}
+			int expected = bruteForceDecode(bits);
+			assertEquals("code "+Long.toHexString(bits), expected, Code.decode(bits));
+			if(expected != -1)
+				valid++;
+		}
+		assertTrue(valid > 0);
+	}
+
+	@Test
+	public void rotatesLikeTheCellMatrix(){
+		Random random = new Random(7);
+		for(int i=0;i<100000;i++){
+			long bits = random.nextLong() & ((1L<<49)-1);
+			assertEquals(pack(rotateCells(unpack(bits))), Code.rotate(bits));
+		}
+	}
+
+	@Test
+	public void checksTheBorder(){
+		Random random = new Random(3);
+		for(int i=0;i<100000;i++){
+			long bits = random.nextLong() & ((1L<<49)-1);
+			if(i%2 == 0)
+				bits &= ~Code.BORDER_MASK;
+			int[][] cells = unpack(bits);
+			boolean black = true;
+			for(int x=0;x<7;x++)
+				for(int y=0;y<7;y++)
+					if((x == 0 || x == 6 || y == 0 || y == 6) && cells[x][y] == 1)
+						black = false;
+			assertEquals(black, Code.hasBlackBorder(bits));
+		}
+	}
+
+	// the decode of Marker before the codes were packed: the first rotation with the
+	// smallest Hamming distance to the valid words, valid only if the distance is 0
+	private static int bruteForceDecode(long bits){
+		int[][] cells = unpack(bits);
+		int minDist = Integer.MAX_VALUE;
+		int minRotation = 0;
+		int[][] minCells = cells;
+		for(int r=0;r<4;r++){
+			int dist = hammDist(cells);
+			if(dist < minDist){
+				minDist = dist;
+				minRotation = r;
+				minCells = cells;
+			}
+			cells = rotateCells(cells);
+		}
+		if(minDist != 0)
+			return -1;
+		return (mat2id(minCells)<<2)|minRotation;
+	}
+
+	private static int hammDist(int[][] cells){
+		int[][] words = {
+				{1,0,0,0,0},
+				{1,0,1,1,1},
+				{0,1,0,0,1},
+				{0,1,1,1,0}
+		};
+		int dist = 0;
+		for(int y=0;y<5;y++){
+			int minSum = Integer.MAX_VALUE;
+			for(int p=0;p<4;p++){
+				int sum = 0;
+				for(int x=0;x<5;x++)
+					sum += cells[y+1][x+1] == words[p][x]? 0:1;
+				minSum = Math.min(sum, minSum);
+			}
+			dist += minSum;
+		}
+		return dist;
+	}
+
+	private static int mat2id(int[][] cells){
+		int val = 0;
+		for(int y=1;y<6;y++){
+			val <<= 1;
+			if(cells[y][2] == 1)
+				val |= 1;
+			val <<= 1;
+			if(cells[y][4] == 1)
+				val |= 1;
+		}
+		return val;
+	}
+
+	private static int[][] rotateCells(int[][] in){
+		int[][] out = new int[7][7];
+		for(int i=0;i<7;i++)
+			for(int j=0;j<7;j++)
+				out[i][j] = in[6-j][i];
+		return out;
+	}
+
+	private static int[][] unpack(long bits){
+		Code code = new Code();
+		code.bits = bits;
+		int[][] cells = new int[7][7];
+		for(int x=0;x<7;x++)
+			for(int y=0;y<7;y++)
+				cells[x][y] = code.get(x, y);
+		return cells;
+	}
+
+	private static long pack(int[][] cells){
+		Code code = new Code();
+		for(int x=0;x<7;x++)
+			for(int y=0;y<7;y++)
+				code.set(x, y, cells[x][y]);
+		return code.bits;
+	}
+}
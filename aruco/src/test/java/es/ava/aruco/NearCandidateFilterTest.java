@@ -0,0 +1,88 @@
+package es.ava.aruco;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import es.ava.aruco.MarkerDetector.NearCandidateSearch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the spatial hash of the GRID search removes the same candidates as comparing
+ * every pair, on random sets of quads clustered so that many of them are near each other.
+ */
+public class NearCandidateFilterTest {
+	private static final double MIN_DISTANCE = 10;
+	private static final int SETS = 20000;
+
+	@Test
+	public void gridRemovesLikePairwise(){
+		Random random = new Random(11);
+		// both filters are reused like in the detector, so stale scratch values would show
+		NearCandidateFilter grid = new NearCandidateFilter(MIN_DISTANCE);
+		NearCandidateFilter pairwise = new NearCandidateFilter(MIN_DISTANCE);
+		int removedTotal = 0, keptTotal = 0;
+		for(int set=0;set<SETS;set++){
+			int n = random.nextInt(set%100 == 0? 400 : 40);
+			float[] corners = new float[8*n];
+			double[] perimeters = new double[n];
+			randomCandidates(random, corners, perimeters, n);
+
+			boolean[] expected = new boolean[n];
+			boolean[] actual = new boolean[n];
+			pairwise.filter(NearCandidateSearch.PAIRWISE, corners, perimeters, expected, n);
+			grid.filter(NearCandidateSearch.GRID, corners, perimeters, actual, n);
+			assertArrayEquals("set "+set+" of "+n+" candidates", expected, actual);
+			for(boolean r : expected)
+				if(r)
+					removedTotal++;
+				else
+					keptTotal++;
+		}
+		// the sets must exercise both outcomes
+		assertTrue(removedTotal > 0);
+		assertTrue(keptTotal > 0);
+	}
+
+	@Test
+	public void removesTheSmallerOfTwoNearQuads(){
+		float[] corners = {
+				0,0, 20,0, 20,20, 0,20,
+				1,1, 20,1, 20,20, 1,20,
+				100,100, 120,100, 120,120, 100,120
+		};
+		double[] perimeters = {80, 76, 80};
+		for(NearCandidateSearch search : NearCandidateSearch.values()){
+			boolean[] removed = new boolean[3];
+			new NearCandidateFilter(MIN_DISTANCE).filter(search, corners, perimeters, removed, 3);
+			assertArrayEquals(search.name(), new boolean[]{false, true, false}, removed);
+		}
+	}
+
+	// quads around a few cluster centers, some on cell borders and at negative coordinates,
+	// with a few repeated perimeters so ties are also compared
+	private static void randomCandidates(Random random, float[] corners, double[] perimeters, int n){
+		int clusters = 1+random.nextInt(Math.max(1, n/3)+1);
+		float[] centers = new float[2*clusters];
+		for(int c=0;c<2*clusters;c++)
+			centers[c] = random.nextBoolean()? (float)((random.nextInt(20)-2)*MIN_DISTANCE)
+					: random.nextFloat()*200-20;
+		for(int i=0;i<n;i++){
+			int c = random.nextInt(clusters);
+			float spread = (float)(random.nextFloat()*2*MIN_DISTANCE);
+			float cx = centers[2*c] + (random.nextFloat()*2-1)*spread;
+			float cy = centers[2*c+1] + (random.nextFloat()*2-1)*spread;
+			float half = 5+random.nextFloat()*30;
+			for(int k=0;k<4;k++){
+				float sx = k == 1 || k == 2? half : -half;
+				float sy = k >= 2? half : -half;
+				corners[8*i+2*k] = cx + sx + (random.nextFloat()*2-1)*3;
+				corners[8*i+2*k+1] = cy + sy + (random.nextFloat()*2-1)*3;
+			}
+			perimeters[i] = i > 0 && random.nextInt(10) == 0? perimeters[random.nextInt(i)]
+					: 8*half + random.nextDouble();
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package es.ava.aruco.source;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Vector;
+
+import org.opencv.core.Core;
+
+import es.ava.aruco.Board;
+import es.ava.aruco.CameraParameters;
+import es.ava.aruco.Marker;
+import es.ava.aruco.MarkerDetector;
+import es.ava.aruco.debug.MetricsRegistry;
+import es.ava.aruco.debug.Tracer;
+
+/**
+ * Replays a recording through a {@link FrameSourceRunner} on a plain JVM and prints the
+ * throughput and the latencies of the detection. The recording is either a directory of
+ * images or a raw YUV_420 sequence file, which also needs the frame size:
+ * <pre>
+ * java -Djava.library.path=&lt;dir of libopencv_java2411&gt; -cp &lt;classes&gt;:&lt;opencv-2411.jar&gt; \
+ *     es.ava.aruco.source.ReplayRecording [options] &lt;image dir&gt; | &lt;file.yuv&gt; &lt;width&gt; &lt;height&gt;
+ * </pre>
+ * Options:
+ * <ul>
+ * <li>-fps f replays the frames at f frames per second instead of as fast as possible.</li>
+ * <li>-calib file reads the camera parameters from a calibration file, see
+ * CameraParameters.readFromFile, so the pnp of the markers is also run.</li>
+ * <li>-size m sets the size of the markers in meters, 0.05 by default.</li>
+ * <li>-trace file writes the spans of the replay to a Chrome trace file.</li>
+ * </ul>
+ * Only markers are detected; cubes are built in the library module, on the device.
+ */
+public class ReplayRecording {
+
+	private static final int TRACE_CAPACITY = 1<<16;
+
+	public static void main(String[] args) throws IOException{
+		double fps = 0;
+		String calib = null;
+		float markerSize = 0.05f;
+		String trace = null;
+		int arg = 0;
+		while(arg < args.length && args[arg].startsWith("-")){
+			String option = args[arg++];
+			if(arg == args.length)
+				usage();
+			if(option.equals("-fps"))
+				fps = Double.parseDouble(args[arg++]);
+			else if(option.equals("-calib"))
+				calib = args[arg++];
+			else if(option.equals("-size"))
+				markerSize = Float.parseFloat(args[arg++]);
+			else if(option.equals("-trace"))
+				trace = args[arg++];
+			else
+				usage();
+		}
+		if(arg == args.length)
+			usage();
+		File recording = new File(args[arg++]);
+
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+		FrameSource source;
+		if(recording.isDirectory())
+			source = new ImageDirectorySource(recording, fps);
+		else{
+			if(args.length-arg != 2)
+				usage();
+			source = new RawYuvFileSource(recording, Integer.parseInt(args[arg]), Integer.parseInt(args[arg+1]), fps);
+		}
+
+		CameraParameters cp = new CameraParameters();
+		if(calib != null)
+			cp.readFromFile(calib);
+		FrameSourceRunner runner = new FrameSourceRunner(new MarkerDetector(), cp, markerSize);
+		MetricsRegistry metrics = new MetricsRegistry();
+		runner.setMetrics(metrics);
+		Tracer tracer = trace == null? null : new Tracer(TRACE_CAPACITY);
+		runner.setTracer(tracer);
+		final long[] markers = new long[1];
+		runner.setListener(new FrameSourceRunner.Listener(){
+			@Override
+			public void onFrame(Frame frame, Vector<Marker> detected, Board board, float boardLikelihood){
+				markers[0] += detected.size();
+			}
+		});
+		try{
+			runner.run(source);
+		}
+		finally{
+			source.close();
+		}
+
+		long frames = runner.getFrames();
+		System.out.println(frames+" frames, "+markers[0]+" markers, "
+				+String.format("%.1f", runner.getFramesPerSecond())+" fps");
+		System.out.print(metrics.snapshot().toCsv());
+		if(tracer != null){
+			Writer out = new FileWriter(trace);
+			try{
+				tracer.writeJson(out);
+			}
+			finally{
+				out.close();
+			}
+			System.out.println("trace written to "+trace);
+		}
+	}
+
+	private static void usage(){
+		System.err.println("usage: ReplayRecording [-fps f] [-calib file] [-size m] [-trace file] "
+				+"<image dir> | <file.yuv> <width> <height>");
+		System.exit(2);
+	}
+}
@@ -0,0 +1,127 @@
+package com.informatics.lehigh.cardboardarlibrary;
+
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import es.ava.aruco.source.Frame;
+import es.ava.aruco.source.FrameSource;
+
+/**
+ * {@link FrameSource} giving the images of a YUV_420_888 ImageReader fed by a Camera2
+ * session, like the processing reader of {@link GarActivity}. Each call takes the newest
+ * image, dropping older ones, and gives its Y plane, which already is the grayscale image,
+ * without copying it. The image is held until the next call or until the source is closed,
+ * so the reader needs a buffer of at least two images.
+ */
+public class Camera2FrameSource implements FrameSource {
+
+    /** Reader that images are taken from */
+    private final ImageReader mReader;
+    /** Whether image timestamps are in the SystemClock.elapsedRealtimeNanos() time base */
+    private final boolean mRealtimeTimestamps;
+    /** Guards the flags below, notified when an image arrives or the source is closed */
+    private final Object mLock = new Object();
+    /** Whether an image arrived since the last one was taken */
+    private boolean mImageAvailable;
+    /** Whether the source was closed */
+    private boolean mClosed;
+    /** Image given by the last call, only used on the thread taking the frames */
+    private Image mImage;
+    /** Thread taking the frames */
+    private volatile Thread mFrameThread;
+
+    /**
+     * Creates a source taking the images of a reader.
+     * @param reader the reader, which must produce images in YUV_420_888 format.
+     * @param handler the handler of a thread other than the one taking the frames, on which
+     *                the reader notifies new images, or null to use the looper of the calling thread.
+     * @param realtimeTimestamps true if the timestamps of the images are in the
+     *                           SystemClock.elapsedRealtimeNanos() time base, see
+     *                           CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE.
+     */
+    public Camera2FrameSource(ImageReader reader, Handler handler, boolean realtimeTimestamps) {
+        mReader = reader;
+        mRealtimeTimestamps = realtimeTimestamps;
+        mReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+                synchronized (mLock) {
+                    mImageAvailable = true;
+                    mLock.notifyAll();
+                }
+            }
+        }, handler);
+    }
+
+    @Override
+    public boolean next(Frame frame) throws IOException {
+        mFrameThread = Thread.currentThread();
+        releaseImage();
+        while (true) {
+            synchronized (mLock) {
+                while (!mImageAvailable && !mClosed) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the next image");
+                    }
+                }
+                if (mClosed) {
+                    return false;
+                }
+                mImageAvailable = false;
+            }
+            Image image;
+            try {
+                image = mReader.acquireLatestImage();
+            } catch (IllegalStateException ise) {
+                throw new IOException("Could not acquire image: " + ise.getMessage());
+            }
+            if (image == null) {
+                // the notification was for an image already taken
+                continue;
+            }
+            mImage = image;
+            long timestamp = image.getTimestamp();
+            if (mRealtimeTimestamps) {
+                timestamp += System.nanoTime() - SystemClock.elapsedRealtimeNanos();
+            }
+            Image.Plane yPlane = image.getPlanes()[0];
+            frame.set(yPlane.getBuffer(), image.getWidth(), image.getHeight(), yPlane.getRowStride(), timestamp);
+            return true;
+        }
+    }
+
+    /**
+     * Stops the source and wakes up a thread waiting for an image. Can be called from any
+     * thread, but the image given last is only released when called from the thread taking
+     * the frames, otherwise it is released by that thread on its next call.
+     */
+    @Override
+    public void close() {
+        mReader.setOnImageAvailableListener(null, null);
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+        }
+        if (mFrameThread == Thread.currentThread()) {
+            releaseImage();
+        }
+    }
+
+    /**
+     * Closes the image given by the last call, if any.
+     */
+    private void releaseImage() {
+        if (mImage != null) {
+            mImage.close();
+            mImage = null;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import android.app.Activity;
 import android.graphics.SurfaceTexture;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
+import android.opengl.Matrix;
 import android.util.Log;
 
 import com.google.vr.sdk.base.GvrView;
@@ -64,11 +65,14 @@ public class CameraTextureRenderer implements GLRenderer {
     private SurfaceTexture mSurfaceTexture;
     /** ID of screen texture that holds camera feed */
     private int mScreenTextureID;
+    /** Transform of the texture coordinates of the latest camera image */
+    private final float[] mTextureTransform = new float[16];
     /** GarUtil instance */
     private GarUtil garutil;
 
     public CameraTextureRenderer(Activity activity) {
         garutil = new GarUtil(activity.getResources());
+        Matrix.setIdentityM(mTextureTransform, 0);
     }
 
     /**
@@ -95,12 +99,12 @@ public class CameraTextureRenderer implements GLRenderer {
         int[] textures = new int[1];
         // Generate the texture to where android view will be rendered
         GLES20.glGenTextures(1, textures, 0);
-        garutil.checkGLError("Texture generate");
+        GLInstrumentation.check("Texture generate");
         mScreenTextureID = textures[0];
 
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mScreenTextureID);
-        garutil.checkGLError("Texture bind");
+        GLInstrumentation.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLInstrumentation.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mScreenTextureID);
+        GLInstrumentation.check("Texture bind");
 
         GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GL10.GL_TEXTURE_MIN_FILTER,GL10.GL_NEAREST);
         GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
@@ -122,9 +126,9 @@ public class CameraTextureRenderer implements GLRenderer {
         Log.d("texture", String.valueOf(mScreenTextureParam));
 
         GLES20.glLinkProgram(mCameraTexProgram);
-        GLES20.glUseProgram(mCameraTexProgram);
+        GLInstrumentation.glUseProgram(mCameraTexProgram);
 
-        garutil.checkGLError("Camera to texture program");
+        GLInstrumentation.check("Camera to texture program");
 
     }
 
@@ -152,33 +156,56 @@ public class CameraTextureRenderer implements GLRenderer {
      */
     @Override
     public void draw(float[] view, float[] perspective) {
-        GLES20.glUseProgram(mCameraTexProgram);
+        GLInstrumentation.glUseProgram(mCameraTexProgram);
 
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mScreenTextureID);
-        garutil.checkGLError("binding uniform texture");
+        GLInstrumentation.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLInstrumentation.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mScreenTextureID);
+        GLInstrumentation.check("binding uniform texture");
 
         // update the camera surface texture with the new image
-        mSurfaceTexture.updateTexImage();
+        updateCameraImage();
 
         // Set the position of the screen
         GLES20.glVertexAttribPointer(mScreenPositionParam, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, mScreenVertBuf);
-        garutil.checkGLError("set screen pos pointer");
+        GLInstrumentation.check("set screen pos pointer");
 
         // Set the texture coords for the screen
         GLES20.glVertexAttribPointer(mScreenTextureParam, 2, GLES20.GL_FLOAT, false, 0, mScreenTexBuf);
-        garutil.checkGLError("setting texture attribute pointers");
+        GLInstrumentation.check("setting texture attribute pointers");
 
         // Enable vertex arrays
         GLES20.glEnableVertexAttribArray(mScreenPositionParam);
         GLES20.glEnableVertexAttribArray(mScreenTextureParam);
 
         // actually draw
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, 6);
-        garutil.checkGLError("Drawing camera texture");
+        GLInstrumentation.glDrawArrays(GLES20.GL_TRIANGLES, 0, 6);
+        GLInstrumentation.check("Drawing camera texture");
 
         // free texture
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+        GLInstrumentation.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+    }
+
+    /**
+     * Updates the camera texture to the most recent camera frame, along with its
+     * {@link #getTextureTransform texture transform}. This is done by {@link #draw draw}, so
+     * only call it directly when sampling the camera texture without drawing through this
+     * renderer. Does nothing before the camera surface texture is set.
+     */
+    public void updateCameraImage() {
+        if (mSurfaceTexture == null) {
+            return;
+        }
+        mSurfaceTexture.updateTexImage();
+        mSurfaceTexture.getTransformMatrix(mTextureTransform);
+    }
+
+    /**
+     * @return the 4x4 matrix to transform texture coordinates with when sampling the latest
+     * camera image, as given by {@link SurfaceTexture#getTransformMatrix}. The array is
+     * updated in place with every new image.
+     */
+    public float[] getTextureTransform() {
+        return mTextureTransform;
     }
 
     /**
@@ -0,0 +1,275 @@
+package com.informatics.lehigh.cardboardarlibrary;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Range;
+import android.view.Surface;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the camera streaming with a repeating request instead of issuing a capture for
+ * every rendered frame, which decouples the camera rate from the render rate. The preview
+ * surface (the GL texture) receives every frame at the preview rate, while the processing
+ * surfaces only receive a subset of them so image processing can run at a lower rate. This
+ * is done with a repeating burst where only the first request of the burst also targets the
+ * processing surfaces. The sensor timestamp of each captured frame is reported.
+ */
+public class CaptureScheduler {
+
+    private static final String TAG = "CaptureScheduler";
+
+    /**
+     * Listener that is told about every frame captured by the scheduler. It is called on
+     * the camera callback thread of the scheduler.
+     */
+    public interface OnFrameCapturedListener {
+        /**
+         * Called when a frame has been captured.
+         * @param frameNumber The frame number of the capture result.
+         * @param timestamp The SENSOR_TIMESTAMP of the frame in nanoseconds.
+         * @param processing Whether the frame was also sent to the processing surfaces.
+         */
+        void onFrameCaptured(long frameNumber, long timestamp, boolean processing);
+    }
+
+    /** Tag of requests that target the processing surfaces */
+    private static final Object PROCESSING_TAG = new Object();
+
+    /** The session to capture with */
+    private final CameraCaptureSession mSession;
+    /** Builder holding the capture settings of all requests */
+    private final CaptureRequest.Builder mBuilder;
+    /** Surface that receives every frame */
+    private final Surface mPreviewSurface;
+    /** Surfaces that receive only the processing frames */
+    private final List<Surface> mProcessingSurfaces;
+    /** Frame rate ranges supported by the camera, may be null */
+    private final Range<Integer>[] mAvailableFpsRanges;
+    /** Target rate of the preview surface */
+    private int mPreviewFps = 30;
+    /** Target rate of the processing surfaces */
+    private int mProcessingFps = 30;
+    /** Thread that capture callbacks are delivered on */
+    private HandlerThread mCallbackThread;
+    /** Handler of the callback thread */
+    private Handler mCallbackHandler;
+    /** Optional listener for captured frames */
+    private OnFrameCapturedListener mListener;
+    /** Timestamp of the last captured frame */
+    private volatile long mLastTimestamp = -1;
+    /** Timestamp of the last captured frame sent to the processing surfaces */
+    private volatile long mLastProcessingTimestamp = -1;
+
+    private final CameraCaptureSession.CaptureCallback mCaptureCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (timestamp == null) {
+                return;
+            }
+            boolean processing = request.getTag() == PROCESSING_TAG;
+            mLastTimestamp = timestamp;
+            if (processing) {
+                mLastProcessingTimestamp = timestamp;
+            }
+            OnFrameCapturedListener listener = mListener;
+            if (listener != null) {
+                listener.onFrameCaptured(result.getFrameNumber(), timestamp, processing);
+            }
+        }
+
+        @Override
+        public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
+            Log.e(TAG, "CAPTURE FAILED " + String.valueOf(failure.getReason()));
+        }
+    };
+
+    /**
+     * Creates a new scheduler for a configured capture session.
+     * @param session The configured capture session.
+     * @param builder Builder holding the capture settings. Its targets are managed by the scheduler.
+     * @param previewSurface The surface that should receive every frame.
+     * @param processingSurfaces The surfaces that should only receive frames at the processing rate.
+     * @param availableFpsRanges The CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES of the camera, or null.
+     */
+    public CaptureScheduler(CameraCaptureSession session, CaptureRequest.Builder builder, Surface previewSurface,
+                            List<Surface> processingSurfaces, Range<Integer>[] availableFpsRanges) {
+        mSession = session;
+        mBuilder = builder;
+        mPreviewSurface = previewSurface;
+        mProcessingSurfaces = new ArrayList<Surface>(processingSurfaces);
+        mAvailableFpsRanges = availableFpsRanges;
+    }
+
+    /**
+     * Sets the target frame rates. The processing rate is rounded so that it evenly divides the
+     * preview rate, and can not be higher than it. Takes effect immediately if the scheduler is running.
+     * @param previewFps The rate the preview surface should receive frames at.
+     * @param processingFps The rate the processing surfaces should receive frames at.
+     */
+    public void setTargetFps(int previewFps, int processingFps) {
+        if (previewFps <= 0 || processingFps <= 0) {
+            throw new IllegalArgumentException("Frame rates must be positive!");
+        }
+        mPreviewFps = previewFps;
+        mProcessingFps = Math.min(processingFps, previewFps);
+        if (isRunning()) {
+            update();
+        }
+    }
+
+    /**
+     * Sets the listener that is told about every captured frame.
+     * @param listener The listener, or null to remove it.
+     */
+    public void setOnFrameCapturedListener(OnFrameCapturedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts streaming from the camera.
+     */
+    public void start() {
+        if (isRunning()) {
+            return;
+        }
+        mCallbackThread = new HandlerThread("GarCapture");
+        mCallbackThread.start();
+        mCallbackHandler = new Handler(mCallbackThread.getLooper());
+        update();
+    }
+
+    /**
+     * Stops streaming from the camera.
+     */
+    public void stop() {
+        if (!isRunning()) {
+            return;
+        }
+        try {
+            mSession.stopRepeating();
+        } catch (RuntimeException | CameraAccessException ex) {
+            Log.e(TAG, "Error stopping capture: " + ex.getMessage());
+        }
+        mCallbackThread.quitSafely();
+        mCallbackThread = null;
+        mCallbackHandler = null;
+    }
+
+    /**
+     * @return whether the scheduler is streaming from the camera.
+     */
+    public boolean isRunning() {
+        return mCallbackThread != null;
+    }
+
+    /**
+     * Rebuilds the repeating requests so changes to the capture settings of the builder
+     * or to the processing surfaces take effect.
+     */
+    public void update() {
+        if (!isRunning()) {
+            return;
+        }
+
+        Range<Integer> fpsRange = chooseFpsRange(mPreviewFps);
+        if (fpsRange != null) {
+            mBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+        }
+
+        // only the first request of the burst goes to the processing surfaces
+        int burstLength = Math.max(1, Math.round((float) mPreviewFps / (float) mProcessingFps));
+        List<CaptureRequest> burst = new ArrayList<CaptureRequest>(burstLength);
+        for (int i = 0; i < burstLength; i++) {
+            boolean processing = (i == 0) && !mProcessingSurfaces.isEmpty();
+            mBuilder.addTarget(mPreviewSurface);
+            for (Surface surface : mProcessingSurfaces) {
+                if (processing) {
+                    mBuilder.addTarget(surface);
+                } else {
+                    mBuilder.removeTarget(surface);
+                }
+            }
+            mBuilder.setTag(processing ? PROCESSING_TAG : null);
+            burst.add(mBuilder.build());
+        }
+
+        try {
+            if (burstLength == 1) {
+                mSession.setRepeatingRequest(burst.get(0), mCaptureCallback, mCallbackHandler);
+            } else {
+                mSession.setRepeatingBurst(burst, mCaptureCallback, mCallbackHandler);
+            }
+        } catch (RuntimeException | CameraAccessException ex) {
+            Log.e(TAG, "Error capturing: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Adds surfaces to the processing surfaces.
+     * @param surfaces The surfaces to add, they must have been part of the capture session.
+     */
+    public void enableSurfaces(List<Surface> surfaces) {
+        for (Surface surface : surfaces) {
+            if (!mProcessingSurfaces.contains(surface)) {
+                mProcessingSurfaces.add(surface);
+            }
+        }
+        update();
+    }
+
+    /**
+     * Removes surfaces from the processing surfaces.
+     * @param surfaces The surfaces to remove.
+     */
+    public void disableSurfaces(List<Surface> surfaces) {
+        mProcessingSurfaces.removeAll(surfaces);
+        for (Surface surface : surfaces) {
+            mBuilder.removeTarget(surface);
+        }
+        update();
+    }
+
+    /**
+     * @return the sensor timestamp in nanoseconds of the last captured frame, or -1 if none yet.
+     */
+    public long getLastTimestamp() {
+        return mLastTimestamp;
+    }
+
+    /**
+     * @return the sensor timestamp in nanoseconds of the last frame sent to the processing
+     * surfaces, or -1 if none yet.
+     */
+    public long getLastProcessingTimestamp() {
+        return mLastProcessingTimestamp;
+    }
+
+    /**
+     * Chooses the supported AE frame rate range best matching the target rate: one
+     * with the target as its upper bound, as narrow as possible.
+     * @param fps The target frame rate.
+     * @return the range, or null if the camera supports none with that upper bound.
+     */
+    private Range<Integer> chooseFpsRange(int fps) {
+        if (mAvailableFpsRanges == null) {
+            return null;
+        }
+        Range<Integer> best = null;
+        for (Range<Integer> range : mAvailableFpsRanges) {
+            if (range.getUpper() == fps && (best == null || range.getLower() > best.getLower())) {
+                best = range;
+            }
+        }
+        return best;
+    }
+}
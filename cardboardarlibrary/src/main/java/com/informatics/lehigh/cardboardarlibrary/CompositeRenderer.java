@@ -0,0 +1,246 @@
+package com.informatics.lehigh.cardboardarlibrary;
+
+import android.app.Activity;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+import com.google.vr.sdk.base.GvrView;
+import com.google.vr.sdk.base.HeadTransform;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Renderer for blending the camera feed texture and the 3D objects scene texture
+ * into a single composite texture, which can then be shown to both eyes by the
+ * {@link StereoScreenRenderer}. Draws a quad filling the bound framebuffer.
+ */
+public class CompositeRenderer implements GLRenderer {
+
+    //
+    // CONSTANTS
+    //
+    /** Number of coordinates per screen vertex */
+    private static final int COORDS_PER_VERTEX = 3;
+    /** Number of bytes in a float */
+    private static final int BYTES_PER_FLOAT = 4;
+    /** Vertices making up screen (just a plane of 2 triangles that fills screen) */
+    private final float[] SCREEN_COORDS = new float[] {
+            -1.0f, 1.0f, 0.0f,
+            -1.0f, -1.0f, 0.0f,
+            1.0f, 1.0f, 0.0f,
+            -1.0f, -1.0f, 0.0f,
+            1.0f, -1.0f, 0.0f,
+            1.0f, 1.0f, 0.0f
+    };
+    /** Texture coordinates for the screen plane, texels map to the same place in the composite */
+    private static final float[] SCREEN_TEX_COORDS = new float [] {
+            0.0f, 1.0f,
+            0.0f, 0.0f,
+            1.0f, 1.0f,
+            0.0f, 0.0f,
+            1.0f, 0.0f,
+            1.0f, 1.0f,
+    };
+
+    //
+    // OpenGL-related members
+    //
+    /** Buffer for screen vertices */
+    private FloatBuffer mScreenVertBuf;
+    /** Buffer for screen texture coordinates */
+    private FloatBuffer mScreenTexBuf;
+    /** Program using composite shaders */
+    private int mCompositeProgram;
+    /** Attribute location for screen position */
+    private int mScreenPositionParam;
+    /** Attribute location for screen texture coordinate */
+    private int mScreenTextureParam;
+    /** Uniform location for camera texture */
+    private int mCameraTextureParam;
+    /** Uniform location for objects texture */
+    private int mObjectsTextureParam;
+    /** ID of texture that holds camera feed */
+    private int mCameraTextureID;
+    /** ID of texture that holds the 3d objects scene */
+    private int mObjectsTextureID;
+    /** Program sampling the external camera texture directly */
+    private int mOesProgram;
+    /** Uniform location for external camera texture */
+    private int mOesCameraTextureParam;
+    /** Uniform location for objects texture of external camera program */
+    private int mOesObjectsTextureParam;
+    /** Uniform location for ModelViewProjection matrix of external camera program */
+    private int mOesModelViewProjectionParam;
+    /** Uniform location for camera texture transform of external camera program */
+    private int mOesTextureTransformParam;
+    /** ID of the external texture the camera feed is streamed to, 0 if not used */
+    private int mExternalCameraTextureID;
+    /** Transform of the camera texture coordinates for the external camera texture */
+    private float[] mExternalCameraTransform;
+    /** Identity matrix, the quad is already in clip space */
+    private final float[] mIdentity = new float[16];
+    /** GarUtil instance */
+    private GarUtil garutil;
+
+    public CompositeRenderer(Activity activity) {
+        garutil = new GarUtil(activity.getResources());
+        Matrix.setIdentityM(mIdentity, 0);
+    }
+
+    /**
+     * Initialize all GL elements of the renderer like buffers, textures,
+     * and shaders. Should be called from
+     * {@link GvrView.StereoRenderer#onSurfaceCreated onSurfaceCreated()}.
+     */
+    @Override
+    public void init() {
+        // make buffer for screen vertices
+        ByteBuffer bbScreenVertices = ByteBuffer.allocateDirect(SCREEN_COORDS.length * BYTES_PER_FLOAT);
+        bbScreenVertices.order(ByteOrder.nativeOrder());
+        mScreenVertBuf = bbScreenVertices.asFloatBuffer();
+        mScreenVertBuf.put(SCREEN_COORDS);
+        mScreenVertBuf.position(0);
+        // make buffer for screen texture coordinates
+        ByteBuffer bbScreenTex = ByteBuffer.allocateDirect(SCREEN_TEX_COORDS.length * BYTES_PER_FLOAT);
+        bbScreenTex.order(ByteOrder.nativeOrder());
+        mScreenTexBuf = bbScreenTex.asFloatBuffer();
+        mScreenTexBuf.put(SCREEN_TEX_COORDS);
+        mScreenTexBuf.position(0);
+
+        int vertexShader = garutil.loadGLShader(GLES20.GL_VERTEX_SHADER, R.raw.cameratex_vert);
+        int fragmentShader = garutil.loadGLShader(GLES20.GL_FRAGMENT_SHADER, R.raw.composite_frag);
+
+        mCompositeProgram = GLES20.glCreateProgram();
+        GLES20.glAttachShader(mCompositeProgram, vertexShader);
+        GLES20.glAttachShader(mCompositeProgram, fragmentShader);
+
+        mScreenPositionParam = 0;
+        GLES20.glBindAttribLocation(mCompositeProgram, mScreenPositionParam, "a_Position");
+        mScreenTextureParam = 1;
+        GLES20.glBindAttribLocation(mCompositeProgram, mScreenTextureParam, "a_TexCoordinate");
+
+        GLES20.glLinkProgram(mCompositeProgram);
+        GLInstrumentation.glUseProgram(mCompositeProgram);
+
+        GLInstrumentation.check("Composite program");
+
+        mCameraTextureParam = GLES20.glGetUniformLocation(mCompositeProgram, "u_cameraTexture");
+        mObjectsTextureParam = GLES20.glGetUniformLocation(mCompositeProgram, "u_objectsTexture");
+
+        GLInstrumentation.check("composite program params");
+
+        // same blending as the stereo screen sampling the external camera texture, the
+        // 2 component texture coordinates are extended to (s, t, 0, 1) for the transform
+        int oesVertexShader = garutil.loadGLShader(GLES20.GL_VERTEX_SHADER, R.raw.screen_oes_vert);
+        int oesFragmentShader = garutil.loadGLShader(GLES20.GL_FRAGMENT_SHADER, R.raw.screen_oes_frag);
+
+        mOesProgram = GLES20.glCreateProgram();
+        GLES20.glAttachShader(mOesProgram, oesVertexShader);
+        GLES20.glAttachShader(mOesProgram, oesFragmentShader);
+        GLES20.glBindAttribLocation(mOesProgram, mScreenPositionParam, "a_Position");
+        GLES20.glBindAttribLocation(mOesProgram, mScreenTextureParam, "a_TexCoordinate");
+        GLES20.glLinkProgram(mOesProgram);
+
+        GLInstrumentation.check("External camera composite program");
+
+        mOesModelViewProjectionParam = GLES20.glGetUniformLocation(mOesProgram, "u_MVP");
+        mOesTextureTransformParam = GLES20.glGetUniformLocation(mOesProgram, "u_STMatrix");
+        mOesCameraTextureParam = GLES20.glGetUniformLocation(mOesProgram, "u_cameraTexture");
+        mOesObjectsTextureParam = GLES20.glGetUniformLocation(mOesProgram, "u_objectsTexture");
+
+        GLInstrumentation.check("external camera composite program params");
+    }
+
+    /**
+     * Nothing depends on the head transform, the composite is the same for any pose.
+     * @param headTransform Unused.
+     */
+    @Override
+    public void update(HeadTransform headTransform) {
+        // Nothing to update
+        return;
+    }
+
+    /**
+     * Blends the camera feed and scene objects textures into the bound framebuffer.
+     * {@link #setCameraTexture setCameraTexture} and {@link #setObjectsTexture setObjectsTexture}
+     * should be called before using method.
+     * @param view Unused, the quad fills the framebuffer.
+     * @param perspective Unused, the quad fills the framebuffer.
+     */
+    @Override
+    public void draw(float[] view, float[] perspective) {
+        boolean external = mExternalCameraTextureID != 0;
+        if (external) {
+            GLInstrumentation.glUseProgram(mOesProgram);
+
+            GLInstrumentation.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLInstrumentation.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mExternalCameraTextureID);
+            GLES20.glUniform1i(mOesCameraTextureParam, 0);
+            GLES20.glUniformMatrix4fv(mOesTextureTransformParam, 1, false, mExternalCameraTransform, 0);
+            GLES20.glUniformMatrix4fv(mOesModelViewProjectionParam, 1, false, mIdentity, 0);
+
+            GLInstrumentation.glActiveTexture(GLES20.GL_TEXTURE1);
+            GLInstrumentation.glBindTexture(GLES20.GL_TEXTURE_2D, mObjectsTextureID);
+            GLES20.glUniform1i(mOesObjectsTextureParam, 1);
+        } else {
+            GLInstrumentation.glUseProgram(mCompositeProgram);
+
+            GLInstrumentation.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLInstrumentation.glBindTexture(GLES20.GL_TEXTURE_2D, mCameraTextureID);
+            GLES20.glUniform1i(mCameraTextureParam, 0);
+
+            GLInstrumentation.glActiveTexture(GLES20.GL_TEXTURE1);
+            GLInstrumentation.glBindTexture(GLES20.GL_TEXTURE_2D, mObjectsTextureID);
+            GLES20.glUniform1i(mObjectsTextureParam, 1);
+        }
+        GLInstrumentation.check("binding composite textures");
+
+        // Set the position and texture coords of the screen
+        GLES20.glVertexAttribPointer(mScreenPositionParam, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, mScreenVertBuf);
+        GLES20.glVertexAttribPointer(mScreenTextureParam, 2, GLES20.GL_FLOAT, false, 0, mScreenTexBuf);
+
+        // Enable vertex arrays
+        GLES20.glEnableVertexAttribArray(mScreenPositionParam);
+        GLES20.glEnableVertexAttribArray(mScreenTextureParam);
+
+        // actually draw
+        GLInstrumentation.glDrawArrays(GLES20.GL_TRIANGLES, 0, 6);
+        GLInstrumentation.check("Drawing composite");
+
+        // free textures
+        GLInstrumentation.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLInstrumentation.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLInstrumentation.glBindTexture(external ? GLES11Ext.GL_TEXTURE_EXTERNAL_OES : GLES20.GL_TEXTURE_2D, 0);
+    }
+
+    /**
+     * Sets the texture holding the camera feed.
+     * @param cameraTexId
+     */
+    public void setCameraTexture(int cameraTexId) {
+        mCameraTextureID = cameraTexId;
+    }
+
+    /**
+     * Sets the texture holding the 3D objects scene to blend over the camera feed.
+     * @param objectsTexId
+     */
+    public void setObjectsTexture(int objectsTexId) {
+        mObjectsTextureID = objectsTexId;
+    }
+
+    /**
+     * Sets the external (OES) texture the camera feed is streamed to, to be sampled directly
+     * instead of the camera texture, see {@link StereoScreenRenderer#setExternalCameraTexture}.
+     * @param cameraOesTexId The external camera texture, or 0 to go back to the camera texture.
+     * @param transform The 4x4 texture coordinate transform of the SurfaceTexture.
+     */
+    public void setExternalCameraTexture(int cameraOesTexId, float[] transform) {
+        mExternalCameraTextureID = cameraOesTexId;
+        mExternalCameraTransform = transform;
+    }
+}
@@ -30,6 +30,8 @@ public class Cube extends Vector<Marker> {
     //fields
     protected CubeConfiguration conf;
     protected Mat Rvec, Tvec;
+    protected final double[] rvec = new double[3];
+    protected final double[] tvec = new double[3];
     protected float markerSizeMeters;
     protected float paddingSizeMeters;
     private Object3dContainer object;
@@ -114,6 +116,13 @@ public class Cube extends Vector<Marker> {
         return createCubeImage(markerSize, paddingSizeMeters, cubeConf);
     }
 
+    /**
+     * @return the configuration of the cube, i.e. to tell detected cubes apart.
+     */
+    public CubeConfiguration getConfiguration() {
+        return conf;
+    }
+
     public Mat getRvec() {
         return Rvec;
     }
@@ -122,6 +131,22 @@ public class Cube extends Vector<Marker> {
         return Tvec;
     }
 
+    /**
+     * Copies the rvec of the cube without going through the Mat.
+     * @param out 3-vector to place the rvec in
+     */
+    public void getRvec(double[] out) {
+        System.arraycopy(rvec, 0, out, 0, 3);
+    }
+
+    /**
+     * Copies the tvec of the cube without going through the Mat.
+     * @param out 3-vector to place the tvec in
+     */
+    public void getTvec(double[] out) {
+        System.arraycopy(tvec, 0, out, 0, 3);
+    }
+
     public void set3dObject(Object3dContainer object) throws ExtParamException {
         this.object = object;
         double[] matrix = new double[16];
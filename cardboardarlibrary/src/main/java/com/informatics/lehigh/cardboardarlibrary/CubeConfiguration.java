@@ -1,8 +1,11 @@
 package com.informatics.lehigh.cardboardarlibrary;
 
+import com.informatics.lehigh.cardboardarlibrary.math.Rotations;
+
 import org.opencv.core.Mat;
 
 import java.security.InvalidParameterException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Vector;
 
@@ -19,7 +22,40 @@ import com.informatics.lehigh.cardboardarlibrary.CubeDetector;
  */
 public class CubeConfiguration {
 
+    /** Number of faces of a cube */
+    public static final int FACES = 6;
+    /** Number of corners of each face */
+    public static final int CORNERS_PER_FACE = 4;
+
+    /**
+     * Rotation of each face, row-major 3x3: the rotation of the cube is the rotation of the
+     * marker on the face (aligned to its id) times the rotation of the face.
+     */
+    private static final double[][] FACE_ROTATIONS = new double[FACES][9];
+
+    static {
+        for (int face = 0; face < FACES; face++) {
+            Rotations.setIdentity(FACE_ROTATIONS[face]);
+        }
+        Rotations.rotateX(FACE_ROTATIONS[1], 90);
+        Rotations.rotateY(FACE_ROTATIONS[1], 180);
+        Rotations.rotateX(FACE_ROTATIONS[2], -90);
+        Rotations.rotateZ(FACE_ROTATIONS[2], -90);
+        Rotations.rotateX(FACE_ROTATIONS[3], -90);
+        Rotations.rotateX(FACE_ROTATIONS[4], 90);
+        Rotations.rotateY(FACE_ROTATIONS[4], 180);
+        Rotations.rotateZ(FACE_ROTATIONS[4], -90);
+        Rotations.rotateX(FACE_ROTATIONS[5], 180);
+    }
+
+    /** Number of marker ids */
+    public static final int MARKER_IDS = 1024;
+
     protected HashMap<Integer, Integer> cubeLayout;
+    /** Face of each marker id, -1 for the ids that are not on the cube */
+    protected final int[] faceOfId = new int[MARKER_IDS];
+    /** Id of the marker on each face */
+    protected final int[] markerIds;
 
 
     //////////////////////////////////////////////////////
@@ -52,12 +88,15 @@ public class CubeConfiguration {
     public CubeConfiguration(int[] cubeLayout) throws InvalidParameterException{
         //TODO check that all ids are distinct
         this.cubeLayout = new HashMap<Integer, Integer>();
+        this.markerIds = cubeLayout.clone();
+        Arrays.fill(faceOfId, -1);
 
         for (int i = 0; i < cubeLayout.length; i++) {
             if (cubeLayout[i] > 1023 || cubeLayout[i] < 0) {
                 throw new InvalidParameterException("IDs must range from 0-1023");
             } else {
                 this.cubeLayout.put(cubeLayout[i], i);
+                faceOfId[cubeLayout[i]] = i;
             }
 
         }
@@ -67,4 +106,63 @@ public class CubeConfiguration {
     public HashMap<Integer, Integer> getCubeLayout() {
         return cubeLayout;
     }
+
+    /**
+     * Gets the face a marker is on without boxing the id.
+     * @param markerId The id of the marker.
+     * @return the position of the face, 0-5, or -1 if the marker is not on the cube.
+     */
+    public int getFace(int markerId) {
+        if (markerId < 0 || markerId >= MARKER_IDS) {
+            return -1;
+        }
+        return faceOfId[markerId];
+    }
+
+    /**
+     * @return the ids of the markers on the cube, in the order of their faces.
+     */
+    public int[] getMarkerIds() {
+        return markerIds.clone();
+    }
+
+    /**
+     * Gets the rotation of a face, which turns the rotation of the marker on that face
+     * (aligned to its id) into the rotation of the cube: Rcube = Rmarker * Rface.
+     * @param face The position of the face, 0-5.
+     * @param R The row-major 3x3 matrix to place the rotation in.
+     */
+    public static void getFaceRotation(int face, double[] R) {
+        System.arraycopy(FACE_ROTATIONS[face], 0, R, 0, 9);
+    }
+
+    /**
+     * Gets the 3D coordinates of the corners of the marker on a face in the cube frame, which
+     * has its origin at the center of the cube. The corners are in the order of the marker
+     * aligned to its id, (-s,s), (-s,-s), (s,-s), (s,s) in the marker plane with s half the
+     * marker size. A detected marker with rotations r has its i-th image corner at corner
+     * (i + r + 1) % 4.
+     * @param face The position of the face, 0-5.
+     * @param markerSizeMeters The size of the markers.
+     * @param paddingSizeMeters The size of the whitespace around each marker.
+     * @param corners The array to place the corners in, x, y, z of each corner.
+     * @param offset The index of corners to place the first corner at.
+     */
+    public static void getFaceCorners(int face, float markerSizeMeters, float paddingSizeMeters,
+                                      float[] corners, int offset) {
+        double[] F = FACE_ROTATIONS[face];
+        double half = markerSizeMeters / 2.0;
+        // the marker plane is markerSize/2 + padding above the center of the cube
+        double depth = half + paddingSizeMeters;
+        for (int k = 0; k < CORNERS_PER_FACE; k++) {
+            double x = (k == 0 || k == 1) ? -half : half;
+            double y = (k == 0 || k == 3) ? half : -half;
+            double z = -depth;
+            // cube coordinates are Rface^T * (corner - (0, 0, depth))
+            int o = offset + 3 * k;
+            corners[o] = (float) (F[0] * x + F[3] * y + F[6] * z);
+            corners[o + 1] = (float) (F[1] * x + F[4] * y + F[7] * z);
+            corners[o + 2] = (float) (F[2] * x + F[5] * y + F[8] * z);
+        }
+    }
 }
\ No newline at end of file
@@ -5,14 +5,15 @@ import android.util.Log;
 import com.informatics.lehigh.cardboardarlibrary.Cube;
 import com.informatics.lehigh.cardboardarlibrary.CubeConfiguration;
 
+import com.informatics.lehigh.cardboardarlibrary.math.Quaternions;
+import com.informatics.lehigh.cardboardarlibrary.math.Rotations;
+
 import org.opencv.calib3d.Calib3d;
-import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfPoint;
-import org.opencv.core.Point3;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
 
-import java.util.HashMap;
 import java.util.Vector;
 
 import es.ava.aruco.CameraParameters;
@@ -22,13 +23,106 @@ import es.ava.aruco.Utils;
 
 /**
  * Created by Josiah Smith on 6/30/2016.
+ * A detector keeps its marker detector and all its working values between calls, so it
+ * should be reused for every frame. It is not thread safe: each thread detecting cubes
+ * needs its own detector, which {@link #forCurrentThread} provides.
  */
 public class CubeDetector {
     private static final String TAG = "CubeDetector";
 
+    /** Detectors of the threads that have asked for one */
+    private static final ThreadLocal<CubeDetector> sThreadDetectors = new ThreadLocal<CubeDetector>() {
+        @Override
+        protected CubeDetector initialValue() {
+            return new CubeDetector();
+        }
+    };
+
+    /** Detector for the markers of the cube, reused between frames */
+    private final MarkerDetector mMarkerDetector = new MarkerDetector();
+    /** Markers detected in the current frame */
+    private final Vector<Marker> mDetectedMarkers = new Vector<Marker>();
+
+    //
+    // Scratch values for the pose math, so building cubes does not allocate
+    //
+    /** Rotation vector of a marker */
+    private final double[] mRvec = new double[3];
+    /** Translation vector of a marker */
+    private final double[] mTvec = new double[3];
+    /** Rotation matrix of a marker */
+    private final double[] mRot = new double[9];
+    /** Rotation of a marker as a quaternion */
+    private final double[] mQuat = new double[4];
+    /** Sum of the marker quaternions */
+    private final double[] mQuatSum = new double[4];
+    /** Rotation of a face */
+    private final double[] mFaceRot = new double[9];
+
+    //
+    // Joint pose estimation
+    //
+    /**
+     * How the pose of a cube is calculated from its markers.
+     */
+    public enum PoseMethod {
+        /** Average the poses of the markers, each estimated on its own */
+        AVERAGE,
+        /** Estimate the pose with a single solvePnP on the corners of all the visible markers */
+        JOINT
+    }
+
+    /** How poses are calculated */
+    private PoseMethod mPoseMethod = PoseMethod.AVERAGE;
+    /** Object points of the visible corners, 3 floats each */
+    private final float[] mObjectValues = new float[3 * CubeConfiguration.FACES * CubeConfiguration.CORNERS_PER_FACE];
+    /** Image points of the visible corners, 2 floats each */
+    private final float[] mImageValues = new float[2 * CubeConfiguration.FACES * CubeConfiguration.CORNERS_PER_FACE];
+    /** Image corners of a marker */
+    private final float[] mMarkerCorners = new float[2 * CubeConfiguration.CORNERS_PER_FACE];
+    /** Cube frame corners of a face */
+    private final float[] mFaceCorners = new float[3 * CubeConfiguration.CORNERS_PER_FACE];
+    private final MatOfPoint3f mObjectPoints = new MatOfPoint3f();
+    private final MatOfPoint2f mImagePoints = new MatOfPoint2f();
+    /** Pose of the last joint estimation, used as the guess for the next one */
+    private final JointPose mJointPose = new JointPose();
+    /** Configuration the last joint pose belongs to, null if there is none */
+    private CubeConfiguration mJointConf;
+    /** Camera parameters that make the marker detector skip the extrinsics of each marker */
+    private final CameraParameters mNoExtrinsics = new CameraParameters();
+
+    /**
+     * The pose of the last joint estimation of a cube, which seeds the next one. Each tracked
+     * cube needs its own, see {@link CubeRegistry}.
+     */
+    static final class JointPose {
+        final Mat rvec = new Mat(3, 1, CvType.CV_64FC1);
+        final Mat tvec = new Mat(3, 1, CvType.CV_64FC1);
+        /** Whether the pose can be used as a guess */
+        boolean valid;
+    }
+
     public CubeDetector() {
     }
 
+    /**
+     * Gets the detector of the calling thread, creating it the first time. This lets several
+     * worker threads run detection on their own frames without sharing any state.
+     * @return the detector confined to the calling thread.
+     */
+    public static CubeDetector forCurrentThread() {
+        return sThreadDetectors.get();
+    }
+
+    /**
+     * @return the marker detector used by this cube detector, i.e. to configure it or to detect
+     * markers that are then passed to {@link #detect(Vector, CubeConfiguration, Vector, float, float)}.
+     * It is confined to the same thread as this detector.
+     */
+    public MarkerDetector getMarkerDetector() {
+        return mMarkerDetector;
+    }
+
     /**
      * Method to find a marker cube in a given Mat frame.
      *
@@ -40,20 +134,103 @@ public class CubeDetector {
      * @param paddingSizeMeters The size of the whitespace around each markers
      */
     public void detect(Mat in, CubeConfiguration conf, Vector<Cube> cDetected, CameraParameters cp, float markerSizeMeters, float paddingSizeMeters) {
-        MarkerDetector mDetector = new MarkerDetector();
-        Vector<Marker> detectedMarkers = new Vector<Marker>();
-        mDetector.detect(in, detectedMarkers, cp, markerSizeMeters);
-        if (detectedMarkers.size() != 0) {
-            Log.d(TAG, "Cube detected with " + String.valueOf(detectedMarkers.size()) + " markers");
-            Mat cubeTvec = new Mat();
-            Mat cubeRvec = new Mat();
+        mDetectedMarkers.clear();
+        mMarkerDetector.detect(in, mDetectedMarkers, getMarkerCameraParameters(cp), markerSizeMeters);
+        detect(mDetectedMarkers, conf, cDetected, cp, markerSizeMeters, paddingSizeMeters);
+        mDetectedMarkers.clear();
+    }
+
+    /**
+     * Sets how the pose of cubes is calculated. The joint method only applies when camera
+     * parameters are given, see {@link #detect(Vector, CubeConfiguration, Vector, CameraParameters, float, float)}.
+     * @param method The pose method, AVERAGE by default.
+     */
+    public void setPoseMethod(PoseMethod method) {
+        mPoseMethod = method;
+        mJointConf = null;
+    }
+
+    /**
+     * @return how the pose of cubes is calculated.
+     */
+    public PoseMethod getPoseMethod() {
+        return mPoseMethod;
+    }
+
+    /**
+     * Gets the camera parameters to detect the markers of cubes with. The joint pose method
+     * does not need the pose of each marker, so with it the parameters returned are invalid and
+     * make the marker detector skip the solvePnP of every marker, leaving one per cube. The
+     * markers then have no pose of their own.
+     * @param cp The camera parameters the cubes are detected with.
+     * @return the parameters to pass to the marker detector.
+     */
+    public CameraParameters getMarkerCameraParameters(CameraParameters cp) {
+        boolean joint = mPoseMethod == PoseMethod.JOINT && cp != null && cp.isValid();
+        return joint ? mNoExtrinsics : cp;
+    }
+
+    /**
+     * Method to build a marker cube from markers that have already been detected in a frame,
+     * using the camera parameters for the joint pose method. With the average method the
+     * markers must have had their extrinsics calculated, with the joint method they don't need to.
+     *
+     * @param detectedMarkers The markers detected in the frame.
+     * @param conf The configuration of the cube.
+     * @param cDetected Output Vector with detected cubes
+     * @param cp The Camera Parameters
+     * @param markerSizeMeters The marker size meters
+     * @param paddingSizeMeters The size of the whitespace around each markers
+     */
+    public void detect(Vector<Marker> detectedMarkers, CubeConfiguration conf, Vector<Cube> cDetected, CameraParameters cp, float markerSizeMeters, float paddingSizeMeters) {
+        if (mJointConf != conf) {
+            mJointPose.valid = false;
+        }
+        detect(detectedMarkers, conf, cDetected, cp, markerSizeMeters, paddingSizeMeters, mJointPose);
+        mJointConf = mJointPose.valid ? conf : null;
+    }
 
-            cubeRvec = calculateCubeRvec(detectedMarkers, conf);
-            cubeTvec = calculateCubeTvec(detectedMarkers, paddingSizeMeters);
+    /**
+     * Builds a cube with the pose method of the detector, using and updating the given previous
+     * joint pose of the cube.
+     */
+    void detect(Vector<Marker> detectedMarkers, CubeConfiguration conf, Vector<Cube> cDetected, CameraParameters cp,
+                float markerSizeMeters, float paddingSizeMeters, JointPose jointPose) {
+        if (mPoseMethod == PoseMethod.JOINT && cp != null && cp.isValid()) {
+            detectJoint(detectedMarkers, conf, cDetected, cp, markerSizeMeters, paddingSizeMeters, jointPose);
+        } else {
+            jointPose.valid = false;
+            detect(detectedMarkers, conf, cDetected, markerSizeMeters, paddingSizeMeters);
+        }
+    }
 
+    /**
+     * Method to build a marker cube from markers that have already been detected
+     * (and had their extrinsics calculated) in a frame. This allows the same marker
+     * detection pass to be shared with other consumers. Markers that are not on the cube are
+     * ignored, and the extrinsics of the markers may have been calculated with a different marker
+     * size, since the translations are scaled to the size of the cube's markers.
+     *
+     * @param detectedMarkers The markers detected in the frame.
+     * @param conf The configuration of the cube.
+     * @param cDetected Output Vector with detected cubes
+     * @param markerSizeMeters The marker size meters
+     * @param paddingSizeMeters The size of the whitespace around each markers
+     */
+    public void detect(Vector<Marker> detectedMarkers, CubeConfiguration conf, Vector<Cube> cDetected, float markerSizeMeters, float paddingSizeMeters) {
+        if (detectedMarkers.size() != 0) {
             Cube detectedCube = new Cube();
-            detectedCube.Tvec = cubeTvec;
-            detectedCube.Rvec = cubeRvec;
+            int found = calculateCubeRvec(detectedMarkers, conf, detectedCube.rvec);
+            if (found == 0) {
+                return;
+            }
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Cube detected with " + String.valueOf(found) + " markers");
+            }
+            calculateCubeTvec(detectedMarkers, conf, markerSizeMeters, paddingSizeMeters, detectedCube.tvec);
+            detectedCube.conf = conf;
+            detectedCube.Rvec.put(0, 0, detectedCube.rvec);
+            detectedCube.Tvec.put(0, 0, detectedCube.tvec);
             detectedCube.markerSizeMeters = markerSizeMeters;
             detectedCube.paddingSizeMeters = paddingSizeMeters;
             cDetected.add(detectedCube);
@@ -61,136 +238,140 @@ public class CubeDetector {
     }
 
     /**
-     * Calculates the CubeRvec based on the input detected markers
+     * Builds a cube with a single solvePnP on the corners of all of its visible markers, placed in
+     * the cube frame by the configuration. The pose of the previous frame seeds the estimation.
+     */
+    private void detectJoint(Vector<Marker> detectedMarkers, CubeConfiguration conf, Vector<Cube> cDetected, CameraParameters cp,
+                             float markerSizeMeters, float paddingSizeMeters, JointPose jointPose) {
+        int n = 0;
+        for (int i = 0; i < detectedMarkers.size() && n < mImageValues.length / 2; i++) {
+            Marker marker = detectedMarkers.get(i);
+            int face = conf.getFace(marker.getMarkerId());
+            if (face < 0) {
+                continue;
+            }
+            marker.get(0, 0, mMarkerCorners);
+            CubeConfiguration.getFaceCorners(face, markerSizeMeters, paddingSizeMeters, mFaceCorners, 0);
+            int rotations = marker.getRotations();
+            for (int c = 0; c < CubeConfiguration.CORNERS_PER_FACE; c++) {
+                int k = (c + rotations + 1) % CubeConfiguration.CORNERS_PER_FACE;
+                System.arraycopy(mFaceCorners, 3 * k, mObjectValues, 3 * n, 3);
+                mImageValues[2 * n] = mMarkerCorners[2 * c];
+                mImageValues[2 * n + 1] = mMarkerCorners[2 * c + 1];
+                n++;
+            }
+        }
+        if (n == 0) {
+            jointPose.valid = false;
+            return;
+        }
+
+        mObjectPoints.create(n, 1, CvType.CV_32FC3);
+        mObjectPoints.put(0, 0, mObjectValues);
+        mImagePoints.create(n, 1, CvType.CV_32FC2);
+        mImagePoints.put(0, 0, mImageValues);
+        Calib3d.solvePnP(mObjectPoints, mImagePoints, cp.getCameraMatrix(), cp.getDistCoeff(), jointPose.rvec, jointPose.tvec,
+                jointPose.valid, Calib3d.ITERATIVE);
+
+        Cube detectedCube = new Cube();
+        jointPose.rvec.get(0, 0, detectedCube.rvec);
+        jointPose.tvec.get(0, 0, detectedCube.tvec);
+        if (detectedCube.tvec[2] <= 0) {
+            // behind the camera, don't let a bad solution seed the next frame
+            jointPose.valid = false;
+            return;
+        }
+        jointPose.valid = true;
+        detectedCube.conf = conf;
+        jointPose.rvec.copyTo(detectedCube.Rvec);
+        jointPose.tvec.copyTo(detectedCube.Tvec);
+        detectedCube.markerSizeMeters = markerSizeMeters;
+        detectedCube.paddingSizeMeters = paddingSizeMeters;
+        cDetected.add(detectedCube);
+    }
+
+    /**
+     * Calculates the rotation of the cube based on the input detected markers: the rotation of each
+     * marker is turned to the orientation of the cube according to its face, and the resulting
+     * rotations are averaged as quaternions. Markers that are not on the cube are skipped.
      * @param detectedMarkers input vector of the detected markers
      * @param conf the configuration of the cube to be detected
-     * @return the Rvec of the cube
+     * @param cubeRvec the 3-vector to place the rvec of the cube in
+     * @return the number of markers of the cube, if 0 the rvec is not set
      */
-    private static Mat calculateCubeRvec(Vector<Marker> detectedMarkers, CubeConfiguration conf) {
-        HashMap<Integer, Integer> cubeLayout = conf.getCubeLayout();
-        double[] totalQuat = {0,0,0,0};
-        Mat tempRvec = new Mat();
+    private int calculateCubeRvec(Vector<Marker> detectedMarkers, CubeConfiguration conf, double[] cubeRvec) {
+        mQuatSum[0] = mQuatSum[1] = mQuatSum[2] = mQuatSum[3] = 0.0;
+        int found = 0;
 
-        //Rotate Rvec based on marker position to align with the correct cubeRvec
+        //Rotate each marker based on its position to align with the cube
         for (int i = 0; i < detectedMarkers.size(); i++) {
-            detectedMarkers.get(i).getRvec().copyTo(tempRvec);
-            if (cubeLayout.get(detectedMarkers.get(i).getMarkerId()) == 1) {
-                CVUtil.rotateXAxis(tempRvec, 90);
-                CVUtil.rotateYAxis(tempRvec, 180);
-            } else if (cubeLayout.get(detectedMarkers.get(i).getMarkerId()) == 2) {
-                CVUtil.rotateXAxis(tempRvec, -90);
-                CVUtil.rotateZAxis(tempRvec, -90);
-            } else if (cubeLayout.get(detectedMarkers.get(i).getMarkerId()) == 3) {
-                CVUtil.rotateXAxis(tempRvec, -90);
-                //rotateYAxis(tempRvec, 180);
-                //rotateZAxis(tempRvec, 180);
-            } else if (cubeLayout.get(detectedMarkers.get(i).getMarkerId()) == 4) {
-                CVUtil.rotateXAxis(tempRvec, 90);
-                CVUtil.rotateYAxis(tempRvec, 180);
-                CVUtil.rotateZAxis(tempRvec, -90);
-            } else if (cubeLayout.get(detectedMarkers.get(i).getMarkerId()) == 5) {
-                CVUtil.rotateXAxis(tempRvec, 180);
+            int face = conf.getFace(detectedMarkers.get(i).getMarkerId());
+            if (face < 0) {
+                continue;
             }
+            found++;
+            detectedMarkers.get(i).getRvec().get(0, 0, mRvec);
+            Rotations.fromRodrigues(mRvec, mRot);
+            CubeConfiguration.getFaceRotation(face, mFaceRot);
+            Rotations.multiply(mRot, mFaceRot, mRot);
 
-            //Get Angle-Axis Representation
-            double x = tempRvec.get(0,0)[0];
-            double y = tempRvec.get(1,0)[0];
-            double z = tempRvec.get(2,0)[0];
-            double a = Math.sqrt((x*x) + (y*y) + (z*z));
-
-            //Normalize X,Y,Z
-            x /= a;
-            y /= a;
-            z /= a;
-
-            //Get Quaternions
-            double qw = Math.cos(a/2);
-            double qx = Math.sin(a/2)*x;
-            double qy = Math.sin(a/2)*y;
-            double qz = Math.sin(a/2)*z;
-
-            //Add Marker Quaternion Values to Total Values
-            totalQuat[0] += qw;
-            totalQuat[1] += qx;
-            totalQuat[2] += qy;
-            totalQuat[3] += qz;
+            //Add the marker quaternion to the total
+            Quaternions.fromMatrix(mRot, mQuat);
+            Quaternions.accumulate(mQuatSum, mQuat);
         }
 
-        //Normalize Total
-        double norm = Math.sqrt((totalQuat[0]*totalQuat[0]) + (totalQuat[1]*totalQuat[1]) + (totalQuat[2]*totalQuat[2]) + (totalQuat[3]*totalQuat[3]));
-        for (int i = 0; i < totalQuat.length; i++) {
-            totalQuat[i] /= norm;
+        if (found == 0) {
+            return 0;
         }
 
-        //Convert Quaternions back to Axis-Angle
-        double angle = 2* Math.acos(totalQuat[0]);
-        double finalX = totalQuat[1] / Math.sqrt(1 - (totalQuat[0] * totalQuat[0]));
-        double finalY = totalQuat[2] / Math.sqrt(1 - (totalQuat[0] * totalQuat[0]));
-        double finalZ = totalQuat[3] / Math.sqrt(1 - (totalQuat[0] * totalQuat[0]));
-
-        //Un-Normalize to Create cubeRvec
-        finalX *= angle;
-        finalY *= angle;
-        finalZ *= angle;
-
-        //Create, Populate, and return cubeRvec
-        Mat cubeRvec = new Mat(3,1, CvType.CV_64FC1);
-        cubeRvec.put(0,0,finalX);
-        cubeRvec.put(1,0,finalY);
-        cubeRvec.put(2,0,finalZ);
-
-        return cubeRvec;
+        //Normalize the total and convert back to axis-angle
+        Quaternions.normalize(mQuatSum);
+        Quaternions.toRodrigues(mQuatSum, cubeRvec);
+        return found;
     }
 
     /**
-     * Calculates the CubeTvec based on the input detected markers
-     * @param detectedMarkers  input vector of the detected markers
+     * Calculates the translation of the cube based on the input detected markers: the center of
+     * the cube as seen from each marker, averaged. Markers that are not on the cube are skipped.
+     * @param detectedMarkers input vector of the detected markers
+     * @param conf the configuration of the cube to be detected
+     * @param markerSize the size of the markers of the cube
      * @param paddingSize the size of the whitespace around the markers
-     * @return the Tvec of the cube
+     * @param cubeTvec the 3-vector to place the tvec of the cube in
      */
-    private static Mat calculateCubeTvec(Vector<Marker> detectedMarkers, float paddingSize) {
-
+    private void calculateCubeTvec(Vector<Marker> detectedMarkers, CubeConfiguration conf, float markerSize, float paddingSize, double[] cubeTvec) {
         //The center will be 1/2 markerSize + padding below each marker (-Z)
-        Mat centerPoint = new Mat(3,1,CvType.CV_64FC1);
-        centerPoint.put(0, 0, 0);
-        centerPoint.put(1, 0, 0);
-        centerPoint.put(2, 0, ((detectedMarkers.get(0).getSize() / 2) + paddingSize));
-
-        //Setup Matrices and Variables
-        Mat result = new Mat();
+        double centerZ = (markerSize / 2) + paddingSize;
         double x = 0;
         double y = 0;
         double z = 0;
+        int found = 0;
 
         for (int i = 0; i < detectedMarkers.size(); i++) {
+            Marker marker = detectedMarkers.get(i);
+            if (conf.getFace(marker.getMarkerId()) < 0) {
+                continue;
+            }
+            found++;
+            marker.getRvec().get(0, 0, mRvec);
+            marker.getTvec().get(0, 0, mTvec);
+            Rotations.fromRodrigues(mRvec, mRot);
 
-            //Get Marker Rotation Matrix
-            Mat rMat = new Mat(3, 3, CvType.CV_64FC1);
-            Calib3d.Rodrigues(detectedMarkers.get(i).getRvec(), rMat);
-
-            //Get Marker Translation Vector
-            Mat markerTvec = new Mat();
-            detectedMarkers.get(i).getTvec().convertTo(markerTvec, CvType.CV_64FC1);
-
-            //Transform CenterPoint to Cube Coordinates using Matrix Multiplication
-            Core.gemm(rMat, centerPoint, 1, markerTvec, 1, result, 0);
+            //The pose of a marker scales with the size it was detected with
+            double scale = markerSize / marker.getSize();
+            mTvec[0] *= scale;
+            mTvec[1] *= scale;
+            mTvec[2] *= scale;
 
-            //Add Coordinate Values to Total
-            x += result.get(0, 0)[0];
-            y += result.get(1, 0)[0];
-            z += result.get(2, 0)[0];
+            //Transform the center point to camera coordinates, R * (0, 0, centerZ) + t
+            x += mRot[2] * centerZ + mTvec[0];
+            y += mRot[5] * centerZ + mTvec[1];
+            z += mRot[8] * centerZ + mTvec[2];
         }
 
         //Average Coordinate Values
-        x /= detectedMarkers.size();
-        y /= detectedMarkers.size();
-        z /= detectedMarkers.size();
-
-        //Create, Populate, and Return cubeTvec
-        Mat cubeTvec = new Mat(3,1,CvType.CV_64FC1);
-        cubeTvec.put(0,0,x);
-        cubeTvec.put(1,0,y);
-        cubeTvec.put(2,0,z);
-        return cubeTvec;
+        cubeTvec[0] = x / found;
+        cubeTvec[1] = y / found;
+        cubeTvec[2] = z / found;
     }
-}
\ No newline at end of file
+}
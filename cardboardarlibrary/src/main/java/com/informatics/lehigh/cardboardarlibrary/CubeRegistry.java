@@ -0,0 +1,162 @@
+package com.informatics.lehigh.cardboardarlibrary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Vector;
+
+import es.ava.aruco.CameraParameters;
+import es.ava.aruco.Marker;
+
+/**
+ * A set of marker cubes that are tracked at the same time. Every marker id belongs to at most
+ * one registered cube, which is looked up in a flat table, so the markers of a frame are
+ * detected once and then sorted into all the cubes in a single pass, instead of running a
+ * detection per cube. Markers whose id is not on any registered cube are ignored.
+ * <p>
+ * Registering cubes is not thread safe and should be done before detection starts. Detection
+ * keeps per cube state (i.e. the previous joint pose) so a registry must only be used from
+ * one thread at a time, like the {@link CubeDetector} it is used with.
+ */
+public class CubeRegistry {
+
+    /** Value of the owner table for ids that are not on any cube */
+    private static final int NO_OWNER = -1;
+    /** Bits of an owner value that hold the face, the cube index is above them */
+    private static final int FACE_BITS = 3;
+    private static final int FACE_MASK = (1 << FACE_BITS) - 1;
+
+    /** Owner of each marker id, the cube index and face packed as (cube << FACE_BITS) | face */
+    private final int[] mOwners = new int[CubeConfiguration.MARKER_IDS];
+
+    /** Configurations of the registered cubes */
+    private final ArrayList<CubeConfiguration> mConfigurations = new ArrayList<CubeConfiguration>();
+    /** Marker size of each cube */
+    private float[] mMarkerSizes = new float[0];
+    /** Padding size of each cube */
+    private float[] mPaddingSizes = new float[0];
+    /** Previous joint pose of each cube */
+    private final ArrayList<CubeDetector.JointPose> mJointPoses = new ArrayList<CubeDetector.JointPose>();
+    /** Markers of each cube in the current frame, reused between frames */
+    private final ArrayList<Vector<Marker>> mGroups = new ArrayList<Vector<Marker>>();
+
+    public CubeRegistry() {
+        Arrays.fill(mOwners, NO_OWNER);
+    }
+
+    /**
+     * Adds a cube to the registry. The ids of its markers must be distinct and not on any
+     * cube registered before.
+     * @param conf The configuration of the cube.
+     * @param markerSizeMeters The size of the markers of the cube.
+     * @param paddingSizeMeters The size of the whitespace around each marker of the cube.
+     * @return the index of the cube, which is also its position in the order cubes are detected in.
+     */
+    public int register(CubeConfiguration conf, float markerSizeMeters, float paddingSizeMeters) {
+        int cube = mConfigurations.size();
+        if (cube > (Integer.MAX_VALUE >> FACE_BITS)) {
+            throw new IllegalStateException("Too many cubes registered!");
+        }
+        int[] ids = conf.getMarkerIds();
+        for (int face = 0; face < ids.length; face++) {
+            int id = ids[face];
+            for (int other = 0; other < face; other++) {
+                if (ids[other] == id) {
+                    throw new IllegalArgumentException("Marker " + id + " is on faces " + other
+                            + " and " + face + " of the cube!");
+                }
+            }
+            if (mOwners[id] != NO_OWNER) {
+                throw new IllegalArgumentException("Marker " + id + " already belongs to cube "
+                        + (mOwners[id] >> FACE_BITS) + "!");
+            }
+        }
+        for (int face = 0; face < ids.length; face++) {
+            mOwners[ids[face]] = (cube << FACE_BITS) | face;
+        }
+
+        mConfigurations.add(conf);
+        mMarkerSizes = Arrays.copyOf(mMarkerSizes, cube + 1);
+        mMarkerSizes[cube] = markerSizeMeters;
+        mPaddingSizes = Arrays.copyOf(mPaddingSizes, cube + 1);
+        mPaddingSizes[cube] = paddingSizeMeters;
+        mJointPoses.add(new CubeDetector.JointPose());
+        mGroups.add(new Vector<Marker>(CubeConfiguration.FACES));
+        return cube;
+    }
+
+    /**
+     * @return the number of registered cubes.
+     */
+    public int size() {
+        return mConfigurations.size();
+    }
+
+    /**
+     * @param cube The index of a cube.
+     * @return the configuration of the cube.
+     */
+    public CubeConfiguration getConfiguration(int cube) {
+        return mConfigurations.get(cube);
+    }
+
+    /**
+     * @param markerId The id of a marker.
+     * @return the index of the cube the marker is on, or -1 if it is not on any registered cube.
+     */
+    public int getCube(int markerId) {
+        int owner = owner(markerId);
+        return owner == NO_OWNER ? NO_OWNER : owner >> FACE_BITS;
+    }
+
+    /**
+     * @param markerId The id of a marker.
+     * @return the face of its cube the marker is on, or -1 if it is not on any registered cube.
+     */
+    public int getFace(int markerId) {
+        int owner = owner(markerId);
+        return owner == NO_OWNER ? NO_OWNER : owner & FACE_MASK;
+    }
+
+    /**
+     * Builds all the registered cubes that are visible from markers detected in a frame. The
+     * markers are sorted into their cubes in one pass, and each cube with at least one marker is
+     * built with the pose method of the detector. Cubes are added in the order they were registered,
+     * and {@link Cube#getConfiguration} tells them apart.
+     *
+     * @param detector The detector to build cubes with.
+     * @param detectedMarkers The markers detected in the frame. With the average pose method they
+     *                        must have had their extrinsics calculated, with any marker size.
+     * @param cp The Camera Parameters, used by the joint pose method.
+     * @param cDetected Output Vector with detected cubes
+     */
+    public void detect(CubeDetector detector, Vector<Marker> detectedMarkers, CameraParameters cp, Vector<Cube> cDetected) {
+        int cubes = mConfigurations.size();
+        for (int i = 0; i < detectedMarkers.size(); i++) {
+            Marker marker = detectedMarkers.get(i);
+            int owner = owner(marker.getMarkerId());
+            if (owner != NO_OWNER) {
+                mGroups.get(owner >> FACE_BITS).add(marker);
+            }
+        }
+
+        for (int cube = 0; cube < cubes; cube++) {
+            Vector<Marker> group = mGroups.get(cube);
+            CubeDetector.JointPose jointPose = mJointPoses.get(cube);
+            if (group.isEmpty()) {
+                // lost the cube, its old pose is no guess for when it comes back
+                jointPose.valid = false;
+                continue;
+            }
+            detector.detect(group, mConfigurations.get(cube), cDetected, cp,
+                    mMarkerSizes[cube], mPaddingSizes[cube], jointPose);
+            group.clear();
+        }
+    }
+
+    private int owner(int markerId) {
+        if (markerId < 0 || markerId >= mOwners.length) {
+            return NO_OWNER;
+        }
+        return mOwners[markerId];
+    }
+}
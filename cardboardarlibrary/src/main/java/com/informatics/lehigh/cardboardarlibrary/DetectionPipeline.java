@@ -0,0 +1,463 @@
+package com.informatics.lehigh.cardboardarlibrary;
+
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import es.ava.aruco.CameraParameters;
+import es.ava.aruco.Marker;
+import es.ava.aruco.MarkerDetector;
+import es.ava.aruco.debug.LatencyHistogram;
+import es.ava.aruco.debug.MetricsRegistry;
+import es.ava.aruco.debug.Tracer;
+import es.ava.aruco.source.Frame;
+import es.ava.aruco.source.FrameSource;
+
+/**
+ * Runs marker (and optionally cube) detection on the images of a YUV_420_888
+ * ImageReader, like the processing reader of {@link GarActivity}, on a dedicated
+ * worker thread. Only the most recent image is ever processed, older ones are dropped,
+ * so detection never holds back the rendering loop. The latest detections are published
+ * as a {@link DetectionResult} which can be read from the render thread with
+ * {@link #getLatestResult getLatestResult}. The pipeline can also be driven by any
+ * {@link FrameSource}, i.e. a {@link Camera2FrameSource} or a recording replayed from files.
+ */
+public class DetectionPipeline {
+
+    private static final String TAG = "DetectionPipeline";
+
+    /**
+     * Stages of the pipeline which have latency counters.
+     */
+    public enum Stage {
+        /** Acquiring the latest image from the reader, or waiting for the next frame of a source */
+        ACQUIRE,
+        /** Detecting markers and calculating their extrinsics */
+        MARKERS,
+        /** Building cubes from the detected markers */
+        CUBES,
+        /** The whole processing of a frame */
+        TOTAL
+    }
+
+    //
+    // Detection related members
+    //
+    /** Camera parameters matching the resolution of the processed images */
+    private CameraParameters mCamParams;
+    /** Size of the markers to detect */
+    private final float mMarkerSizeMeters;
+    /** Cubes to detect, null if only markers are detected */
+    private CubeRegistry mCubeRegistry;
+    /** How the pose of the cube is calculated */
+    private volatile CubeDetector.PoseMethod mCubePoseMethod = CubeDetector.PoseMethod.AVERAGE;
+
+    //
+    // Threading related members
+    //
+    /** Thread that detection runs on */
+    private HandlerThread mWorkerThread;
+    /** Handler of the worker thread */
+    private Handler mWorkerHandler;
+    /** Reader that images are taken from, null if taken from a frame source */
+    private ImageReader mReader;
+    /** Thread taking frames from a frame source, null if taken from a reader */
+    private Thread mSourceThread;
+    /** Whether the thread taking frames from a frame source must stop */
+    private volatile boolean mSourceStopped;
+    /** Most recently published result */
+    private final AtomicReference<DetectionResult> mLatestResult = new AtomicReference<DetectionResult>();
+
+    //
+    // Latency counters
+    //
+    /** Duration in nanoseconds of each stage for the last processed frame */
+    private final AtomicLongArray mLastStageNanos = new AtomicLongArray(Stage.values().length);
+    /** Accumulated duration in nanoseconds of each stage */
+    private final AtomicLongArray mTotalStageNanos = new AtomicLongArray(Stage.values().length);
+    /** Number of frames processed */
+    private final AtomicLong mFramesProcessed = new AtomicLong();
+    /** Number of image notifications that found no new image because it was already dropped */
+    private final AtomicLong mFramesDropped = new AtomicLong();
+    /** Registry the stage latencies are recorded to, null if not recording */
+    private volatile MetricsRegistry mMetrics;
+    /** Latency from the capture of an image to it being acquired, null if not recording */
+    private volatile LatencyHistogram mCaptureToAcquireLatency;
+    /** Tracer the stages are recorded to as spans, null if not tracing */
+    private volatile Tracer mTracer;
+    /** Whether image timestamps are in the SystemClock.elapsedRealtimeNanos() time base */
+    private volatile boolean mRealtimeTimestamps = false;
+
+    /**
+     * Creates a pipeline that detects markers only.
+     * @param markerSizeMeters the size of the markers to detect.
+     */
+    public DetectionPipeline(float markerSizeMeters) {
+        mMarkerSizeMeters = markerSizeMeters;
+    }
+
+    /**
+     * Creates a pipeline that detects markers and builds a marker cube from them.
+     * @param markerSizeMeters the size of the markers to detect.
+     * @param cubeConf the configuration of the cube to detect.
+     * @param paddingSizeMeters the size of the whitespace around each marker of the cube.
+     */
+    public DetectionPipeline(float markerSizeMeters, CubeConfiguration cubeConf, float paddingSizeMeters) {
+        this(markerSizeMeters);
+        mCubeRegistry = new CubeRegistry();
+        mCubeRegistry.register(cubeConf, markerSizeMeters, paddingSizeMeters);
+    }
+
+    /**
+     * Creates a pipeline that detects markers once per frame and builds all the cubes of a
+     * registry from them. The registry is used on the worker thread, so no cubes may be
+     * registered after the pipeline has started.
+     * @param markerSizeMeters the size the markers are detected with.
+     * @param cubeRegistry the cubes to detect.
+     */
+    public DetectionPipeline(float markerSizeMeters, CubeRegistry cubeRegistry) {
+        this(markerSizeMeters);
+        mCubeRegistry = cubeRegistry;
+    }
+
+    /**
+     * Sets the camera parameters used to calculate the extrinsics of detected markers. They must
+     * be resized to the resolution of the images of the reader or source. Must be called before
+     * {@link #start start}.
+     * @param camParams the camera parameters.
+     */
+    public void setCameraParameters(CameraParameters camParams) {
+        mCamParams = camParams;
+    }
+
+    /**
+     * Sets how the pose of the cube is calculated from its markers. Takes effect from the next
+     * processed frame. With the joint method the markers are detected without their own pose,
+     * so there is a single solvePnP per visible cube, and the markers of the published results
+     * have no pose.
+     * @param method the pose method, AVERAGE by default.
+     */
+    public void setCubePoseMethod(CubeDetector.PoseMethod method) {
+        mCubePoseMethod = method;
+    }
+
+    /**
+     * Sets the registry the latencies of the pipeline are recorded to: the time from the
+     * capture of each image to it being acquired, and the stages of the marker detector.
+     * Takes effect from the next processed frame.
+     * @param metrics the registry, or null to stop recording.
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        mCaptureToAcquireLatency = metrics == null ? null : metrics.histogram(MetricsRegistry.CAPTURE_TO_ACQUIRE);
+        mMetrics = metrics;
+    }
+
+    /**
+     * @return the registry the latencies of the pipeline are recorded to, or null if not recording.
+     */
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Sets the tracer the processing of every frame is recorded to, as spans for acquiring
+     * the image, detecting the markers (with the spans of the marker detector inside) and
+     * building the cubes. Takes effect from the next processed frame.
+     * @param tracer the tracer, or null to stop tracing.
+     */
+    public void setTracer(Tracer tracer) {
+        mTracer = tracer;
+    }
+
+    /**
+     * @return the tracer the processing of every frame is recorded to, or null if not tracing.
+     */
+    public Tracer getTracer() {
+        return mTracer;
+    }
+
+    /**
+     * Sets the time base of the timestamps of the images, which is needed to measure the time
+     * from their capture. See CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE.
+     * @param realtime true if the timestamps are in the SystemClock.elapsedRealtimeNanos()
+     *                 time base, false (the default) if they are in the System.nanoTime() one.
+     */
+    public void setRealtimeTimestamps(boolean realtime) {
+        mRealtimeTimestamps = realtime;
+    }
+
+    /**
+     * Starts processing images from the given reader on a new worker thread. The reader must
+     * produce images in YUV_420_888 format.
+     * @param reader the reader to take images from.
+     */
+    public void start(ImageReader reader) {
+        if (mWorkerThread != null || mSourceThread != null) {
+            throw new IllegalStateException("Pipeline has already been started!");
+        }
+        if (mCamParams == null) {
+            throw new IllegalStateException("Camera parameters must be set before starting!");
+        }
+
+        mReader = reader;
+        mWorkerThread = new HandlerThread("GarDetection");
+        mWorkerThread.start();
+        mWorkerHandler = new Handler(mWorkerThread.getLooper());
+        mReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+                processLatestImage(reader);
+            }
+        }, mWorkerHandler);
+    }
+
+    /**
+     * Starts processing frames from the given source on a new worker thread, as fast as the
+     * source gives them. The source is closed when it ends or the pipeline is stopped.
+     * @param source the source to take frames from.
+     */
+    public void start(final FrameSource source) {
+        if (mWorkerThread != null || mSourceThread != null) {
+            throw new IllegalStateException("Pipeline has already been started!");
+        }
+        if (mCamParams == null) {
+            throw new IllegalStateException("Camera parameters must be set before starting!");
+        }
+
+        mSourceStopped = false;
+        mSourceThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processFrames(source);
+            }
+        }, "GarDetection");
+        mSourceThread.start();
+    }
+
+    /**
+     * Stops processing images and waits for the worker thread to finish the frame currently
+     * being processed, so the pipeline can be started again right away without two threads
+     * detecting at once. A thread waiting for the next frame of a source is interrupted.
+     */
+    public void stop() {
+        Thread worker;
+        if (mSourceThread != null) {
+            mSourceStopped = true;
+            mSourceThread.interrupt();
+            worker = mSourceThread;
+            mSourceThread = null;
+        } else if (mWorkerThread != null) {
+            mReader.setOnImageAvailableListener(null, null);
+            mWorkerThread.quitSafely();
+            worker = mWorkerThread;
+            mWorkerThread = null;
+            mWorkerHandler = null;
+            mReader = null;
+        } else {
+            return;
+        }
+        try {
+            worker.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return whether the pipeline was started and not stopped since.
+     */
+    public boolean isRunning() {
+        return mWorkerThread != null || mSourceThread != null;
+    }
+
+    /**
+     * @return the result of the most recently processed frame, or null if no frame
+     * has been processed yet. May be called from any thread.
+     */
+    public DetectionResult getLatestResult() {
+        return mLatestResult.get();
+    }
+
+    /**
+     * @param stage the stage to query.
+     * @return the duration in nanoseconds of the given stage for the last processed frame.
+     */
+    public long getLastStageNanos(Stage stage) {
+        return mLastStageNanos.get(stage.ordinal());
+    }
+
+    /**
+     * @param stage the stage to query.
+     * @return the average duration in nanoseconds of the given stage over all processed frames.
+     */
+    public long getAverageStageNanos(Stage stage) {
+        long frames = mFramesProcessed.get();
+        return frames == 0 ? 0 : mTotalStageNanos.get(stage.ordinal()) / frames;
+    }
+
+    /**
+     * @return the number of frames that have been processed.
+     */
+    public long getFramesProcessed() {
+        return mFramesProcessed.get();
+    }
+
+    /**
+     * @return the number of camera images that were dropped because a newer one was
+     * available by the time the worker thread got to them.
+     */
+    public long getFramesDropped() {
+        return mFramesDropped.get();
+    }
+
+    /**
+     * Acquires the newest image of the reader, dropping any older ones, and runs detection on it.
+     * Called on the worker thread.
+     * @param reader the reader to take the image from.
+     */
+    private void processLatestImage(ImageReader reader) {
+        long start = System.nanoTime();
+        Image image;
+        try {
+            image = reader.acquireLatestImage();
+        } catch (IllegalStateException ise) {
+            Log.e(TAG, "Could not acquire image: " + ise.getMessage());
+            return;
+        }
+        if (image == null) {
+            // a previous notification already took this image
+            mFramesDropped.incrementAndGet();
+            return;
+        }
+        long acquired = System.nanoTime();
+        LatencyHistogram captureToAcquire = mCaptureToAcquireLatency;
+        if (captureToAcquire != null) {
+            long now = mRealtimeTimestamps ? SystemClock.elapsedRealtimeNanos() : acquired;
+            captureToAcquire.record(now - image.getTimestamp());
+        }
+
+        try {
+            Image.Plane yPlane = image.getPlanes()[0];
+            processFrame(yPlane.getBuffer(), image.getWidth(), image.getHeight(), yPlane.getRowStride(),
+                    image.getTimestamp(), start, acquired);
+        } finally {
+            image.close();
+        }
+    }
+
+    /**
+     * Takes frames from the source and runs detection on them until it ends or the pipeline
+     * is stopped. Called on the worker thread.
+     * @param source the source to take frames from.
+     */
+    private void processFrames(FrameSource source) {
+        Frame frame = new Frame();
+        try {
+            while (!mSourceStopped) {
+                long start = System.nanoTime();
+                if (!source.next(frame)) {
+                    break;
+                }
+                long acquired = System.nanoTime();
+                LatencyHistogram captureToAcquire = mCaptureToAcquireLatency;
+                if (captureToAcquire != null) {
+                    // frame timestamps are always in the System.nanoTime() time base
+                    captureToAcquire.record(acquired - frame.getTimestampNanos());
+                }
+                processFrame(frame.getLuma(), frame.getWidth(), frame.getHeight(), frame.getRowStride(),
+                        frame.getTimestampNanos(), start, acquired);
+            }
+        } catch (IOException ioe) {
+            // waiting for a frame is interrupted when stopping
+            if (!mSourceStopped) {
+                Log.e(TAG, "Could not take a frame from the source: " + ioe.getMessage());
+            }
+        } finally {
+            try {
+                source.close();
+            } catch (IOException ioe) {
+                Log.e(TAG, "Could not close the frame source: " + ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs detection on a luminance frame and publishes the result. Called on the worker thread.
+     * @param luma buffer with the luminance values, one byte per pixel.
+     * @param width width of the frame in pixels.
+     * @param height height of the frame in pixels.
+     * @param rowStride distance in bytes between the start of two consecutive rows.
+     * @param timestamp timestamp of the frame, published with the result.
+     * @param start when the pipeline started waiting for the frame.
+     * @param acquired when the frame was acquired.
+     */
+    private void processFrame(ByteBuffer luma, int width, int height, int rowStride, long timestamp,
+                              long start, long acquired) {
+        // looked up every frame, since a restarted pipeline runs on a new thread while the old
+        // one may still be finishing its last frame with its own detector
+        CubeDetector cubeDetector = CubeDetector.forCurrentThread();
+        MarkerDetector markerDetector = cubeDetector.getMarkerDetector();
+        MetricsRegistry metrics = mMetrics;
+        if (markerDetector.getMetrics() != metrics) {
+            markerDetector.setMetrics(metrics);
+        }
+        Tracer tracer = mTracer;
+        markerDetector.setTracer(tracer);
+
+        CameraParameters markerParams = mCamParams;
+        if (mCubeRegistry != null) {
+            CubeDetector.PoseMethod poseMethod = mCubePoseMethod;
+            if (cubeDetector.getPoseMethod() != poseMethod) {
+                cubeDetector.setPoseMethod(poseMethod);
+            }
+            // with the joint pose method only the cubes get a solvePnP
+            markerParams = cubeDetector.getMarkerCameraParameters(mCamParams);
+        }
+
+        // the Y plane already is the grayscale image
+        Vector<Marker> markers = new Vector<Marker>();
+        markerDetector.detect(luma, width, height, rowStride, markers, markerParams, mMarkerSizeMeters);
+        long markersDone = System.nanoTime();
+
+        Vector<Cube> cubes = new Vector<Cube>();
+        if (mCubeRegistry != null) {
+            mCubeRegistry.detect(cubeDetector, markers, mCamParams, cubes);
+        }
+        long cubesDone = System.nanoTime();
+
+        long sequence = mFramesProcessed.get() + 1;
+        mLatestResult.set(new DetectionResult(sequence, timestamp, markers, cubes));
+
+        recordStage(Stage.ACQUIRE, acquired - start);
+        recordStage(Stage.MARKERS, markersDone - acquired);
+        recordStage(Stage.CUBES, cubesDone - markersDone);
+        recordStage(Stage.TOTAL, cubesDone - start);
+        if (tracer != null) {
+            tracer.span("acquire", start, acquired);
+            tracer.span("markers", acquired, markersDone);
+            tracer.span("cubes", markersDone, cubesDone);
+            tracer.span("process_frame", start, cubesDone);
+        }
+        mFramesProcessed.incrementAndGet();
+    }
+
+    /**
+     * Updates the latency counters of a stage.
+     * @param stage the stage to update.
+     * @param nanos the duration of the stage for the current frame.
+     */
+    private void recordStage(Stage stage, long nanos) {
+        mLastStageNanos.set(stage.ordinal(), nanos);
+        mTotalStageNanos.addAndGet(stage.ordinal(), nanos);
+    }
+}
@@ -0,0 +1,61 @@
+package com.informatics.lehigh.cardboardarlibrary;
+
+import java.util.Vector;
+
+import es.ava.aruco.Marker;
+
+/**
+ * The markers and cubes found in a single camera frame by a {@link DetectionPipeline}.
+ * Once published a result is never modified by the pipeline again, so it is safe to
+ * read from the render thread.
+ */
+public class DetectionResult {
+
+    /** Increasing number of the processed frame this result came from */
+    private final long mSequence;
+    /** Timestamp of the camera image, in the same base as SENSOR_TIMESTAMP or of the frame source */
+    private final long mTimestamp;
+    /** Markers detected in the frame */
+    private final Vector<Marker> mMarkers;
+    /** Cubes detected in the frame */
+    private final Vector<Cube> mCubes;
+
+    DetectionResult(long sequence, long timestamp, Vector<Marker> markers, Vector<Cube> cubes) {
+        mSequence = sequence;
+        mTimestamp = timestamp;
+        mMarkers = markers;
+        mCubes = cubes;
+    }
+
+    /**
+     * @return the sequence number of the processed frame. Larger numbers are newer
+     * results, which lets the render thread tell whether anything has changed.
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * @return the timestamp (in nanoseconds) of the camera image the result was detected in.
+     * This is the same time base as the SENSOR_TIMESTAMP of the capture result, or the
+     * System.nanoTime() one if the pipeline was driven by a frame source.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * @return the markers detected in the frame, with their extrinsics calculated.
+     */
+    public Vector<Marker> getMarkers() {
+        return mMarkers;
+    }
+
+    /**
+     * @return the cubes detected in the frame, empty if no cube configuration was given
+     * to the pipeline.
+     */
+    public Vector<Cube> getCubes() {
+        return mCubes;
+    }
+}
@@ -0,0 +1,296 @@
+package com.informatics.lehigh.cardboardarlibrary;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.Buffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Facade over the GLES20 calls of the render loop that checks for GL errors and
+ * counts and times the work of every frame.
+ * <p>
+ * Error checking has two modes chosen at compile time with {@link #STRICT}. In strict mode
+ * every call made through the facade, and every {@link #check check}, reads glGetError and
+ * throws on an error. In production mode (the default) the checks are compiled out, since
+ * each glGetError can force the driver to sync with the GPU on tile-based GPUs.
+ * <p>
+ * Counting and timing is always on and cheap. Calls made through the facade are counted
+ * per frame as draw calls, clears, state changes and texture binds, and the time between
+ * {@link #beginStage beginStage} and {@link #endStage endStage} is added up per stage. When a
+ * frame ends the totals are published, to be read from any thread with
+ * {@link #getLastCount getLastCount} and {@link #getLastStageNanos getLastStageNanos}, e.g.
+ * to log or graph them. Stage times are measured on the CPU, so since GL calls are
+ * asynchronous they are the time taken to submit the work rather than for the GPU to do it.
+ * <p>
+ * Apart from the getters, the facade must only be used from the GL thread. {@link GarActivity}
+ * begins and ends the frames and times its stages, so drawing the 3D scene in
+ * {@link GarActivity#drawObjects drawObjects} through the facade is enough to have it counted.
+ */
+public final class GLInstrumentation {
+
+    private static final String TAG = "GLInstrumentation";
+
+    /**
+     * Whether GL errors are checked after every call and thrown. Set to true to debug
+     * rendering, with false all the checks are compiled out.
+     */
+    public static final boolean STRICT = false;
+
+    /**
+     * Stages of rendering a frame which are timed.
+     */
+    public enum Stage {
+        /** Bringing the latest camera image to a texture */
+        CAMERA,
+        /** Drawing the 3D scene, once per eye or once per frame in mono composite mode */
+        OBJECTS,
+        /** Blending the camera feed and 3D scene in mono composite mode */
+        COMPOSITE,
+        /** Drawing the screen in front of the eyes */
+        SCREEN,
+        /** The whole frame, from onNewFrame to onFinishFrame */
+        FRAME
+    }
+
+    /**
+     * Kinds of calls which are counted every frame.
+     */
+    public enum Counter {
+        /** glDrawArrays and glDrawElements */
+        DRAW_CALLS,
+        /** glClear */
+        CLEARS,
+        /** Changes of program, framebuffer, capabilities, viewport and other fixed state */
+        STATE_CHANGES,
+        /** glBindTexture */
+        TEXTURE_BINDS
+    }
+
+    private static final int STAGES = Stage.values().length;
+    private static final int COUNTERS = Counter.values().length;
+
+    //
+    // Current frame, only used on the GL thread
+    //
+    /** Start time of each stage running, 0 if not running */
+    private static final long[] sStageStart = new long[STAGES];
+    /** Time spent in each stage so far this frame */
+    private static final long[] sStageNanos = new long[STAGES];
+    /** Calls of each kind so far this frame */
+    private static final long[] sCounts = new long[COUNTERS];
+
+    //
+    // Published frames
+    //
+    /** Duration in nanoseconds of each stage for the last frame */
+    private static final AtomicLongArray sLastStageNanos = new AtomicLongArray(STAGES);
+    /** Accumulated duration in nanoseconds of each stage */
+    private static final AtomicLongArray sTotalStageNanos = new AtomicLongArray(STAGES);
+    /** Calls of each kind in the last frame */
+    private static final AtomicLongArray sLastCounts = new AtomicLongArray(COUNTERS);
+    /** Number of frames ended */
+    private static final AtomicLong sFrames = new AtomicLong();
+
+    private GLInstrumentation() {}
+
+    //
+    // FRAMES AND STAGES
+    //
+
+    /**
+     * Starts counting and timing a new frame, discarding anything recorded since the last
+     * frame ended. Also starts the {@link Stage#FRAME FRAME} stage.
+     */
+    public static void beginFrame() {
+        for (int i = 0; i < STAGES; i++) {
+            sStageStart[i] = 0;
+            sStageNanos[i] = 0;
+        }
+        for (int i = 0; i < COUNTERS; i++) {
+            sCounts[i] = 0;
+        }
+        beginStage(Stage.FRAME);
+    }
+
+    /**
+     * Ends the frame and publishes its counts and stage times. Stages still running are ended.
+     */
+    public static void endFrame() {
+        long now = System.nanoTime();
+        for (int i = 0; i < STAGES; i++) {
+            if (sStageStart[i] != 0) {
+                sStageNanos[i] += now - sStageStart[i];
+                sStageStart[i] = 0;
+            }
+            sLastStageNanos.set(i, sStageNanos[i]);
+            sTotalStageNanos.addAndGet(i, sStageNanos[i]);
+        }
+        for (int i = 0; i < COUNTERS; i++) {
+            sLastCounts.set(i, sCounts[i]);
+        }
+        sFrames.incrementAndGet();
+    }
+
+    /**
+     * Starts timing a stage. A stage can run several times a frame, i.e. once per eye, and
+     * its times are added up.
+     * @param stage The stage starting.
+     */
+    public static void beginStage(Stage stage) {
+        sStageStart[stage.ordinal()] = System.nanoTime();
+    }
+
+    /**
+     * Stops timing a stage, does nothing if it was not started.
+     * @param stage The stage ending.
+     */
+    public static void endStage(Stage stage) {
+        int i = stage.ordinal();
+        if (sStageStart[i] != 0) {
+            sStageNanos[i] += System.nanoTime() - sStageStart[i];
+            sStageStart[i] = 0;
+        }
+    }
+
+    /**
+     * @param counter A kind of call.
+     * @return the number of calls of the kind in the last frame.
+     */
+    public static long getLastCount(Counter counter) {
+        return sLastCounts.get(counter.ordinal());
+    }
+
+    /**
+     * @param stage A stage of rendering.
+     * @return the time in nanoseconds spent in the stage in the last frame.
+     */
+    public static long getLastStageNanos(Stage stage) {
+        return sLastStageNanos.get(stage.ordinal());
+    }
+
+    /**
+     * @param stage A stage of rendering.
+     * @return the average time in nanoseconds spent in the stage per frame.
+     */
+    public static long getAverageStageNanos(Stage stage) {
+        long frames = sFrames.get();
+        return frames == 0 ? 0 : sTotalStageNanos.get(stage.ordinal()) / frames;
+    }
+
+    /**
+     * @return the number of frames ended.
+     */
+    public static long getFrames() {
+        return sFrames.get();
+    }
+
+    //
+    // ERROR CHECKING
+    //
+
+    /**
+     * Checks if we've had an error inside of OpenGL ES, and if so throws it. Compiled out
+     * unless {@link #STRICT} is set.
+     * @param label Label to report in case of error.
+     */
+    public static void check(String label) {
+        if (STRICT) {
+            int error = GLES20.glGetError();
+            if (error != GLES20.GL_NO_ERROR) {
+                Log.e(TAG, label + ": glError " + error);
+                throw new RuntimeException(label + ": glError " + error);
+            }
+        }
+    }
+
+    //
+    // COUNTED CALLS
+    // Same as the GLES20 calls, but counted and checked in strict mode.
+    //
+
+    public static void glDrawArrays(int mode, int first, int count) {
+        GLES20.glDrawArrays(mode, first, count);
+        sCounts[Counter.DRAW_CALLS.ordinal()]++;
+        check("glDrawArrays");
+    }
+
+    public static void glDrawElements(int mode, int count, int type, Buffer indices) {
+        GLES20.glDrawElements(mode, count, type, indices);
+        sCounts[Counter.DRAW_CALLS.ordinal()]++;
+        check("glDrawElements");
+    }
+
+    public static void glDrawElements(int mode, int count, int type, int offset) {
+        GLES20.glDrawElements(mode, count, type, offset);
+        sCounts[Counter.DRAW_CALLS.ordinal()]++;
+        check("glDrawElements");
+    }
+
+    public static void glClear(int mask) {
+        GLES20.glClear(mask);
+        sCounts[Counter.CLEARS.ordinal()]++;
+        check("glClear");
+    }
+
+    public static void glBindTexture(int target, int texture) {
+        GLES20.glBindTexture(target, texture);
+        sCounts[Counter.TEXTURE_BINDS.ordinal()]++;
+        check("glBindTexture");
+    }
+
+    public static void glActiveTexture(int texture) {
+        GLES20.glActiveTexture(texture);
+        sCounts[Counter.STATE_CHANGES.ordinal()]++;
+        check("glActiveTexture");
+    }
+
+    public static void glUseProgram(int program) {
+        GLES20.glUseProgram(program);
+        sCounts[Counter.STATE_CHANGES.ordinal()]++;
+        check("glUseProgram");
+    }
+
+    public static void glBindFramebuffer(int target, int framebuffer) {
+        GLES20.glBindFramebuffer(target, framebuffer);
+        sCounts[Counter.STATE_CHANGES.ordinal()]++;
+        check("glBindFramebuffer");
+    }
+
+    public static void glEnable(int cap) {
+        GLES20.glEnable(cap);
+        sCounts[Counter.STATE_CHANGES.ordinal()]++;
+        check("glEnable");
+    }
+
+    public static void glDisable(int cap) {
+        GLES20.glDisable(cap);
+        sCounts[Counter.STATE_CHANGES.ordinal()]++;
+        check("glDisable");
+    }
+
+    public static void glViewport(int x, int y, int width, int height) {
+        GLES20.glViewport(x, y, width, height);
+        sCounts[Counter.STATE_CHANGES.ordinal()]++;
+        check("glViewport");
+    }
+
+    public static void glScissor(int x, int y, int width, int height) {
+        GLES20.glScissor(x, y, width, height);
+        sCounts[Counter.STATE_CHANGES.ordinal()]++;
+        check("glScissor");
+    }
+
+    public static void glClearColor(float red, float green, float blue, float alpha) {
+        GLES20.glClearColor(red, green, blue, alpha);
+        sCounts[Counter.STATE_CHANGES.ordinal()]++;
+        check("glClearColor");
+    }
+
+    public static void glBlendFunc(int sfactor, int dfactor) {
+        GLES20.glBlendFunc(sfactor, dfactor);
+        sCounts[Counter.STATE_CHANGES.ordinal()]++;
+        check("glBlendFunc");
+    }
+}
@@ -9,19 +9,18 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
-import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
-import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.ImageReader;
 import android.opengl.GLES20;
 import android.opengl.Matrix;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
-import android.os.Handler;
-import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.util.SizeF;
 import android.view.Surface;
@@ -47,6 +46,9 @@ import java.util.ArrayList;
 import java.util.List;
 
 import es.ava.aruco.CameraParameters;
+import es.ava.aruco.debug.LatencyHistogram;
+import es.ava.aruco.debug.MetricsRegistry;
+import es.ava.aruco.debug.Tracer;
 import es.ava.aruco.exceptions.CPException;
 
 public abstract class GarActivity extends GvrActivity implements GvrView.StereoRenderer {
@@ -83,8 +85,16 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
     private Size mProcessingSize = new Size(-1, -1);
     /** Surface texture attached to GL screen */
     private SurfaceTexture mSurfaceTexture;
-    /** Callback function for camera capture */
-    private CameraCaptureSession.CaptureCallback mCapCall;
+    /** Keeps the camera streaming to the GL and processing surfaces */
+    private CaptureScheduler mCaptureScheduler;
+    /** Whether the activity is paused, so the camera must not stream. Only used on the main thread */
+    private boolean mPaused = false;
+    /** Frame rates supported by the camera */
+    private Range<Integer>[] mAvailableFpsRanges;
+    /** Target rate of the GL preview surface */
+    private int mPreviewFps = 30;
+    /** Target rate of the additional (processing) surfaces */
+    private int mProcessingFps = 30;
     /** The GL texture surface to draw camera view to */
     private Surface mGlSurface;
     /** ImageReader used to access camera feed for image processing */
@@ -97,6 +107,8 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
     Point mFov;
     /** Physical size of the camera sensor */
     SizeF mSensorSize;
+    /** Whether camera timestamps are in the SystemClock.elapsedRealtimeNanos() time base */
+    private boolean mRealtimeTimestamps = false;
 
     //
     // OpenGL-related members
@@ -113,14 +125,53 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
     private int mScreenCameraTextureID;
     /** ID of screen texture that holds overlaid 3D scene */
     private int mScreenObjectsTextureID;
+    /** Frame buffer for camera feed and 3d scene blended together in mono composite mode */
+    private int mFboIdComposite;
+    /** ID of screen texture that holds the camera feed and 3D scene blended together */
+    private int mScreenCompositeTextureID;
+    /** Whether the 3d scene is rendered once per frame and shown to both eyes */
+    private volatile boolean mMonoComposite = false;
+    /** Whether the current frame is rendered in mono composite mode, fixed for both eyes */
+    private boolean mMonoCompositeFrame = false;
+    /** Whether the camera texture is sampled directly rather than copied to a texture every frame */
+    private volatile boolean mDirectCameraSampling = false;
+    /** Perspective matrix with the physical camera field of view, for mono composite mode */
+    private final float[] mCameraPerspective = new float[16];
+    /** Head view of the current frame, for mono composite mode */
+    private final float[] mHeadView = new float[16];
+    /** View matrix of the head or eye being drawn, only used on the GL thread */
+    private final float[] mView = new float[16];
+    /** Identity matrix, for renderers that need no view or perspective */
+    private final float[] mIdentity = new float[16];
     /** GarUtil instance */
     protected GarUtil garutil;
 
+    //
+    // Image processing related members
+    //
+    /** Pipeline running marker detection on the processing reader, null if not enabled */
+    private DetectionPipeline mDetectionPipeline;
+    /** Whether the pipeline was stopped when pausing and must be started again when resuming */
+    private boolean mRestartDetectionPipeline = false;
+    /** Head poses of past frames, keyed by time in the camera timestamp base */
+    private HeadPoseHistory mHeadPoseHistory = new HeadPoseHistory();
+    /** Builder of object transformations, started with the head pose of the latest detection every frame */
+    private final TransformBuilder mTransformBuilder = new TransformBuilder();
+    /** Registry the latencies of rendering and detection are recorded to, null if not recording */
+    private MetricsRegistry mMetrics;
+    /** Latency of onNewFrame, null if not recording */
+    private volatile LatencyHistogram mNewFrameLatency;
+    /** Latency of onDrawEye, null if not recording */
+    private volatile LatencyHistogram mDrawEyeLatency;
+    /** Tracer the frames are recorded to as spans, null if not tracing */
+    private volatile Tracer mTracer;
+
     //
     // Renderers
     //
     CameraTextureRenderer camTexRenderer;
     StereoScreenRenderer screenRenderer;
+    CompositeRenderer compositeRenderer;
 
     private BaseLoaderCallback mLoaderCallback = new BaseLoaderCallback(this) {
         @Override
@@ -148,11 +199,13 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
         //
         camTexRenderer = new CameraTextureRenderer(this);
         screenRenderer = new StereoScreenRenderer(this);
+        compositeRenderer = new CompositeRenderer(this);
 
         //
         // Setup OpenGL-related things
         //
         mCamera = new float[16];
+        Matrix.setIdentityM(mIdentity, 0);
         garutil = new GarUtil(getResources());
 
         // Initialize physical camera-related things
@@ -226,6 +279,13 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
 
             // store camera characteristics for rendering purposes
             mSensorSize = camChars.get(CameraCharacteristics.SENSOR_INFO_PHYSICAL_SIZE);
+            mAvailableFpsRanges = camChars.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+            // the time base of camera timestamps is needed to match head poses to camera frames
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                Integer timestampSource = camChars.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+                mRealtimeTimestamps = timestampSource != null
+                        && timestampSource == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+            }
 
         } catch (CameraAccessException cae) {
             Log.e(TAG, "COULD NOT ACCESS CAMERA");
@@ -245,18 +305,6 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
         //
         // First initialize all callback functions
         //
-        mCapCall = new CameraCaptureSession.CaptureCallback() {
-            @Override
-            public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
-                //Log.d(TAG, "CAPTURED FRAME " + String.valueOf(result.getFrameNumber()));
-            }
-
-            @Override
-            public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
-                Log.e(TAG, "CAPTURE FAILED " + String.valueOf(failure.getReason()));
-            }
-        };
-
         final CameraCaptureSession.StateCallback ccCall = new CameraCaptureSession.StateCallback() {
 
             @Override
@@ -266,6 +314,14 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
                 mCameraCaptureSession = session;
                 // automatically focus and white-balance
                 mPreviewBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+
+                // stream to the surfaces with a repeating request rather than capturing every frame
+                mCaptureScheduler = new CaptureScheduler(session, mPreviewBuilder, mGlSurface, addSurfaces, mAvailableFpsRanges);
+                mCaptureScheduler.setTargetFps(mPreviewFps, mProcessingFps);
+                // the session can be configured after the activity was paused, onResume starts it then
+                if (!mPaused) {
+                    mCaptureScheduler.start();
+                }
             }
 
             @Override
@@ -302,11 +358,6 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
                 } catch (CameraAccessException e) {
                     e.printStackTrace();
                 }
-
-                // add surfaces to builder
-                for (int i = 0; i < allSurfaces.size(); i++) {
-                    mPreviewBuilder.addTarget(allSurfaces.get(i));
-                }
             }
             @Override
             public void onDisconnected(CameraDevice camera) {
@@ -385,6 +436,16 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
     @Override
     protected void onPause() {
         super.onPause();
+        mPaused = true;
+        // stop streaming before the pipeline stops draining the processing reader
+        if (mCaptureScheduler != null) {
+            mCaptureScheduler.stop();
+        }
+        // don't detect on images nobody will see, start again when resuming
+        if (mDetectionPipeline != null && mDetectionPipeline.isRunning()) {
+            mDetectionPipeline.stop();
+            mRestartDetectionPipeline = true;
+        }
     }
 
     @Override
@@ -398,6 +459,26 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
             Log.d("OpenCV", "OpenCV library found inside package. Using it!");
             mLoaderCallback.onManagerConnected(LoaderCallbackInterface.SUCCESS);
         }
+
+        // the first start waits for onSurfaceCreated, when OpenCV is known to be loaded
+        if (mRestartDetectionPipeline) {
+            mRestartDetectionPipeline = false;
+            startDetectionPipeline();
+        }
+        mPaused = false;
+        // the first start waits for the capture session to be configured
+        if (mCaptureScheduler != null) {
+            mCaptureScheduler.start();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        // also quits the callback thread of the scheduler
+        if (mCaptureScheduler != null) {
+            mCaptureScheduler.stop();
+        }
+        super.onDestroy();
     }
 
     @Override
@@ -408,6 +489,9 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
     @Override
     public void onRendererShutdown() {
         Log.i(TAG, "onRendererShutdown");
+        if (mDetectionPipeline != null) {
+            mDetectionPipeline.stop();
+        }
     }
 
     @Override
@@ -417,26 +501,28 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
         // We will render both the camera feed and 3D scene to be augmented
         // from the user to different textures using framebuffers. Then
         // render those textures to the stereo screen.
-        int[] fbos = new int[2];
-        GLES20.glGenFramebuffers(2, fbos, 0);
+        int[] fbos = new int[3];
+        GLES20.glGenFramebuffers(3, fbos, 0);
         mFboIdCamera = fbos[0];
         mFboIdObjects = fbos[1];
+        mFboIdComposite = fbos[2];
 
-        garutil.checkGLError("generate framebuffers");
+        GLInstrumentation.check("generate framebuffers");
 
-        int[] textures = new int[2];
-        GLES20.glGenTextures(2, textures, 0);
+        int[] textures = new int[3];
+        GLES20.glGenTextures(3, textures, 0);
         mScreenCameraTextureID = textures[0];
         mScreenObjectsTextureID = textures[1];
+        mScreenCompositeTextureID = textures[2];
 
-        garutil.checkGLError("generate textures");
+        GLInstrumentation.check("generate textures");
 
         //
         // First set up framebuffer for the camera feed texture
         //
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFboIdCamera);
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mScreenCameraTextureID);
+        GLInstrumentation.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFboIdCamera);
+        GLInstrumentation.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLInstrumentation.glBindTexture(GLES20.GL_TEXTURE_2D, mScreenCameraTextureID);
         // want same width and height as image form camera
         GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mPreviewSize.getWidth(),
                 mPreviewSize.getHeight(), 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
@@ -448,10 +534,10 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
         GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
                 GLES20.GL_TEXTURE_2D, mScreenCameraTextureID, 0);
         // cleanup
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, DEFAULT_FBO_ID);
+        GLInstrumentation.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLInstrumentation.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, DEFAULT_FBO_ID);
 
-        garutil.checkGLError("set up camera feed texture");
+        GLInstrumentation.check("set up camera feed texture");
 
         //
         // Next set up framebuffer for the 3D objects texture, need depth component
@@ -460,9 +546,9 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
         GLES20.glGenRenderbuffers(1, renderBufArr, 0);
         int renderBuffID = renderBufArr[0];
 
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFboIdObjects);
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mScreenObjectsTextureID);
+        GLInstrumentation.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFboIdObjects);
+        GLInstrumentation.glActiveTexture(GLES20.GL_TEXTURE1);
+        GLInstrumentation.glBindTexture(GLES20.GL_TEXTURE_2D, mScreenObjectsTextureID);
         // want same width and height as image form camera
         GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mPreviewSize.getWidth(),
                 mPreviewSize.getHeight(), 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
@@ -480,11 +566,33 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
         GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT,
                 GLES20.GL_RENDERBUFFER, renderBuffID);
         // cleanup
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLInstrumentation.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
         GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, 0);
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, DEFAULT_FBO_ID);
+        GLInstrumentation.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, DEFAULT_FBO_ID);
 
-        garutil.checkGLError("set up scene objects texture");
+        GLInstrumentation.check("set up scene objects texture");
+
+        //
+        // Last set up framebuffer for the composite texture used in mono composite mode
+        //
+        GLInstrumentation.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFboIdComposite);
+        GLInstrumentation.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLInstrumentation.glBindTexture(GLES20.GL_TEXTURE_2D, mScreenCompositeTextureID);
+        // want same width and height as image form camera
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mPreviewSize.getWidth(),
+                mPreviewSize.getHeight(), 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER,GL10.GL_NEAREST);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
+        // bind to framebuffer
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mScreenCompositeTextureID, 0);
+        // cleanup
+        GLInstrumentation.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLInstrumentation.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, DEFAULT_FBO_ID);
+
+        GLInstrumentation.check("set up composite texture");
 
         // Initialize renderers
         camTexRenderer.init();
@@ -494,20 +602,14 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
         // give textures to use for rendering screen
         screenRenderer.setCameraTexture(mScreenCameraTextureID);
         screenRenderer.setObjectsTexture(mScreenObjectsTextureID);
+        compositeRenderer.init();
+        compositeRenderer.setCameraTexture(mScreenCameraTextureID);
+        compositeRenderer.setObjectsTexture(mScreenObjectsTextureID);
 
-        garutil.checkGLError("initRenderers");
+        GLInstrumentation.check("initRenderers");
 
         // get instrinsic camera parameters from saved calibration
-        CameraParameters camParams = new CameraParameters();
-        String externalDir = Environment.getExternalStorageDirectory().toString();
-        camParams.readFromFile(externalDir + "/camCalib/camCalibData.csv");
-        // resize to full res since calibrated at 1920x1080
-        camParams.setCamSize(new org.opencv.core.Size(1920, 1080));
-        try {
-            camParams.resize(new org.opencv.core.Size(mPreviewSize.getWidth(), mPreviewSize.getHeight()));
-        } catch (CPException e) {
-            Log.e(TAG, "CAMERA PARAMS NOT VALID");
-        }
+        CameraParameters camParams = loadCameraParameters(mPreviewSize);
         Mat camMat = camParams.getCameraMatrix();
 
         double[] fovx = new double[1];
@@ -518,44 +620,182 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
                 mSensorSize.getWidth(), mSensorSize.getHeight(), fovx, fovy, focalLength, new Point(), aspectRatio);
 
         mFov = new Point(fovx[0], fovy[0]);
+        // projection of the physical camera, used when the scene is rendered once for both eyes
+        FieldOfView physFov = new FieldOfView((float)mFov.x / 2.0f, (float)mFov.x / 2.0f,
+                (float)mFov.y / 2.0f, (float)mFov.y / 2.0f);
+        physFov.toPerspectiveMatrix(Z_NEAR, Z_FAR, mCameraPerspective, 0);
 
+        // start detecting on the processing images now that OpenCV is available
+        startDetectionPipeline();
+    }
+
+    /**
+     * Starts the detection pipeline on the processing reader, if it is enabled and not already
+     * running. onSurfaceCreated is called again whenever the EGL context is recreated, i.e.
+     * after resuming, while the pipeline may still be running.
+     */
+    private void startDetectionPipeline() {
+        if (mDetectionPipeline == null || mDetectionPipeline.isRunning()) {
+            return;
+        }
+        if (mProcessingReader == null) {
+            throw new IllegalStateException("Detection pipeline needs the default processing reader!");
+        }
+        mDetectionPipeline.setCameraParameters(loadCameraParameters(mProcessingSize));
+        mDetectionPipeline.setRealtimeTimestamps(mRealtimeTimestamps);
+        mDetectionPipeline.start(mProcessingReader);
+    }
+
+    /**
+     * Reads the intrinsic camera parameters from the saved calibration and resizes
+     * them to the given image resolution.
+     * @param size The resolution of the images the parameters will be used with.
+     * @return the camera parameters.
+     */
+    private CameraParameters loadCameraParameters(Size size) {
+        CameraParameters camParams = new CameraParameters();
+        String externalDir = Environment.getExternalStorageDirectory().toString();
+        camParams.readFromFile(externalDir + "/camCalib/camCalibData.csv");
+        // resize to full res since calibrated at 1920x1080
+        camParams.setCamSize(new org.opencv.core.Size(1920, 1080));
+        try {
+            camParams.resize(new org.opencv.core.Size(size.getWidth(), size.getHeight()));
+        } catch (CPException e) {
+            Log.e(TAG, "CAMERA PARAMS NOT VALID");
+        }
+        return camParams;
     }
 
     @Override
     public void onNewFrame(HeadTransform headTransform) {
-        // capture image to use
-        try {
-            mCameraCaptureSession.capture(mPreviewBuilder.build(), mCapCall, new Handler(Looper.getMainLooper()));
-        } catch (RuntimeException | CameraAccessException ex) {
-            Log.e(TAG, "Error capturing: " + ex.getMessage());
+        LatencyHistogram newFrameLatency = mNewFrameLatency;
+        long start = newFrameLatency == null ? 0 : System.nanoTime();
+        long frameTrace = traceStart();
+        GLInstrumentation.beginFrame();
+        // remember the head pose so it can be matched to the camera frames poses are detected in
+        mHeadPoseHistory.record(getCameraTimeNanos(), headTransform);
+        // objects are placed with the head pose from when their image was captured, if known
+        DetectionResult result = mDetectionPipeline == null ? null : mDetectionPipeline.getLatestResult();
+        if (result == null || !mTransformBuilder.begin(mHeadPoseHistory, result.getTimestamp())) {
+            mTransformBuilder.begin(headTransform);
         }
 
         // Update the renderers
         camTexRenderer.update(headTransform);
         screenRenderer.update(headTransform);
 
-        // Draw current camera view to texture through frame buffer
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFboIdCamera);
-        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
-        GLES20.glViewport(0, 0, mPreviewSize.getWidth(), mPreviewSize.getHeight());
-
-        float[] iden = new float[16];
-        Matrix.setIdentityM(iden, 0);
-        // don't need view or perspective so just pass in identity
-        camTexRenderer.draw(iden, iden);
-
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, DEFAULT_FBO_ID);
+        GLInstrumentation.beginStage(GLInstrumentation.Stage.CAMERA);
+        long cameraTrace = traceStart();
+        if (mDirectCameraSampling) {
+            // Just latch the current camera view, the screen samples it directly
+            camTexRenderer.updateCameraImage();
+            screenRenderer.setExternalCameraTexture(mCameraTextureID, camTexRenderer.getTextureTransform());
+            compositeRenderer.setExternalCameraTexture(mCameraTextureID, camTexRenderer.getTextureTransform());
+        } else {
+            // Draw current camera view to texture through frame buffer
+            GLInstrumentation.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFboIdCamera);
+            GLInstrumentation.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+            GLInstrumentation.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            GLInstrumentation.glDisable(GLES20.GL_DEPTH_TEST);
+            GLInstrumentation.glViewport(0, 0, mPreviewSize.getWidth(), mPreviewSize.getHeight());
+
+            // don't need view or perspective so just pass in identity
+            camTexRenderer.draw(mIdentity, mIdentity);
+
+            GLInstrumentation.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, DEFAULT_FBO_ID);
+            screenRenderer.setExternalCameraTexture(0, null);
+            compositeRenderer.setExternalCameraTexture(0, null);
+        }
+        GLInstrumentation.endStage(GLInstrumentation.Stage.CAMERA);
+        traceEnd("camera_texture", cameraTrace);
 
         // Build the camera matrix.
         Matrix.setLookAtM(mCamera, 0, 0.0f, 0.0f, CAMERA_Z, 0.0f, 0.0f, 0.0f, 0.0f, 1.0f, 0.0f);
 
-        garutil.checkGLError("onReadyToDraw");
+        mMonoCompositeFrame = mMonoComposite;
+        if (mMonoCompositeFrame) {
+            drawComposite(headTransform);
+            screenRenderer.setCompositeTexture(mScreenCompositeTextureID);
+        } else {
+            screenRenderer.setCompositeTexture(0);
+        }
+
+        GLInstrumentation.check("onReadyToDraw");
+
+        if (newFrameLatency != null) {
+            newFrameLatency.recordSince(start);
+        }
+        traceEnd("onNewFrame", frameTrace);
+    }
+
+    /**
+     * Renders the 3D scene once from the head (between the eyes) and blends it with the
+     * camera feed into the composite texture, which is then shown to both eyes.
+     * @param headTransform The head transform of the current frame.
+     */
+    private void drawComposite(HeadTransform headTransform) {
+        GLInstrumentation.glViewport(0, 0, mPreviewSize.getWidth(), mPreviewSize.getHeight());
+        GLInstrumentation.glScissor(0, 0, mPreviewSize.getWidth(), mPreviewSize.getHeight());
+
+        // Apply the head transformation to the camera.
+        headTransform.getHeadView(mHeadView, 0);
+        Matrix.multiplyMM(mView, 0, mHeadView, 0, mCamera, 0);
+
+        // First draw object scene texture through frame buffer
+        GLInstrumentation.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFboIdObjects);
+        GLInstrumentation.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        GLInstrumentation.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        GLInstrumentation.glEnable(GLES20.GL_DEPTH_TEST);
+
+        GLInstrumentation.beginStage(GLInstrumentation.Stage.OBJECTS);
+        long objectsTrace = traceStart();
+        drawObjects(mView, mCameraPerspective);
+        GLInstrumentation.endStage(GLInstrumentation.Stage.OBJECTS);
+        traceEnd("draw_objects", objectsTrace);
+
+        // Then blend it over the camera feed
+        GLInstrumentation.beginStage(GLInstrumentation.Stage.COMPOSITE);
+        long compositeTrace = traceStart();
+        GLInstrumentation.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFboIdComposite);
+        GLInstrumentation.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLInstrumentation.glDisable(GLES20.GL_DEPTH_TEST);
+
+        // the composite fills the framebuffer so view and perspective are not used
+        compositeRenderer.draw(mView, mCameraPerspective);
+        GLInstrumentation.endStage(GLInstrumentation.Stage.COMPOSITE);
+        traceEnd("composite", compositeTrace);
+
+        GLInstrumentation.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, DEFAULT_FBO_ID);
+
+        GLInstrumentation.check("drawComposite");
     }
 
     @Override
     public void onDrawEye(Eye eye) {
+        LatencyHistogram drawEyeLatency = mDrawEyeLatency;
+        long start = drawEyeLatency == null ? 0 : System.nanoTime();
+        long eyeTrace = traceStart();
+        if (mMonoCompositeFrame) {
+            // the scene was already rendered into the composite texture for both eyes
+            Matrix.multiplyMM(mView, 0, eye.getEyeView(), 0, mCamera, 0);
+            float[] perspective = eye.getPerspective(Z_NEAR, Z_FAR);
+
+            GLInstrumentation.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+            GLInstrumentation.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+            GLInstrumentation.glEnable(GLES20.GL_DEPTH_TEST);
+
+            GLInstrumentation.beginStage(GLInstrumentation.Stage.SCREEN);
+            long screenTrace = traceStart();
+            screenRenderer.draw(mView, perspective);
+            GLInstrumentation.endStage(GLInstrumentation.Stage.SCREEN);
+            traceEnd("screen_draw", screenTrace);
+            if (drawEyeLatency != null) {
+                drawEyeLatency.recordSince(start);
+            }
+            traceEnd("onDrawEye", eyeTrace);
+            return;
+        }
+
         Viewport curView = eye.getViewport();
         Viewport initViewport = new Viewport();
         initViewport.setViewport(curView.x, curView.y, curView.width, curView.height);
@@ -571,8 +811,7 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
         eye.setProjectionChanged();
 
         // Apply the eye transformation to the camera.
-        float[] viewMat = new float[16];
-        Matrix.multiplyMM(viewMat, 0, eye.getEyeView(), 0, mCamera, 0);
+        Matrix.multiplyMM(mView, 0, eye.getEyeView(), 0, mCamera, 0);
         // Get the perspective matrix for 3D objects rendering
         // Create FOV identical to physical
         float[] perspective = new float[16];
@@ -582,20 +821,24 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
 //        physFov.toPerspectiveMatrix(Z_NEAR, Z_FAR, perspective, 0);
 
         // First draw object scene texture through frame buffer
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFboIdObjects);
+        GLInstrumentation.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFboIdObjects);
         if (eye.getType() == Eye.Type.LEFT) {
-            GLES20.glClearColor(1.0f, 0.0f, 0.0f, 0.0f);
+            GLInstrumentation.glClearColor(1.0f, 0.0f, 0.0f, 0.0f);
         } else {
-            GLES20.glClearColor(0.0f, 0.0f, 1.0f, 0.0f);
+            GLInstrumentation.glClearColor(0.0f, 0.0f, 1.0f, 0.0f);
         }
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-        GLES20.glEnable(GLES20.GL_DEPTH_TEST);
-        //GLES20.glViewport(0, 0, mPreviewSize.getWidth(), mPreviewSize.getHeight());
-        //GLES20.glViewport(0, 0, 100, 100);
+        GLInstrumentation.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        GLInstrumentation.glEnable(GLES20.GL_DEPTH_TEST);
+        //GLInstrumentation.glViewport(0, 0, mPreviewSize.getWidth(), mPreviewSize.getHeight());
+        //GLInstrumentation.glViewport(0, 0, 100, 100);
 
-        drawObjects(viewMat, perspective);
+        GLInstrumentation.beginStage(GLInstrumentation.Stage.OBJECTS);
+        long objectsTrace = traceStart();
+        drawObjects(mView, perspective);
+        GLInstrumentation.endStage(GLInstrumentation.Stage.OBJECTS);
+        traceEnd("draw_objects", objectsTrace);
 
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, DEFAULT_FBO_ID);
+        GLInstrumentation.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, DEFAULT_FBO_ID);
 
         // Change back to initial res
         eye.getViewport().setViewport(initViewport.x, initViewport.y, initViewport.width, initViewport.height);
@@ -609,18 +852,28 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
        // Matrix.perspectiveM(perspective, 0, eye.getFov().getTop(), (float)eye.getViewport().width / (float)eye.getViewport().height, Z_NEAR, Z_FAR);
 
         // Now draw actual screen for cardboard viewer
-        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-        GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+        GLInstrumentation.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        GLInstrumentation.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        GLInstrumentation.glEnable(GLES20.GL_DEPTH_TEST);
         //eye.getViewport().setGLViewport();
 
-        screenRenderer.draw(viewMat, perspective);
+        GLInstrumentation.beginStage(GLInstrumentation.Stage.SCREEN);
+        long screenTrace = traceStart();
+        screenRenderer.draw(mView, perspective);
+        GLInstrumentation.endStage(GLInstrumentation.Stage.SCREEN);
+        traceEnd("screen_draw", screenTrace);
+
+        if (drawEyeLatency != null) {
+            drawEyeLatency.recordSince(start);
+        }
+        traceEnd("onDrawEye", eyeTrace);
     }
 
     /**
      * Draws the 3D scene to be laid over the current back-facing camera view.
      * These are the augmented portions of the application. This will be called
-     * twice per frame, one for the left eye, and again for the right. Anything
+     * twice per frame, one for the left eye, and again for the right, or only once
+     * per frame from the head in mono composite mode (see {@link #setMonoComposite}). Anything
      * drawn with an alpha value of 0.0 will be treated as background and filtered
      * from the final render to show the camera view in the background.
      * @param view The view matrix to use for eye being drawn.
@@ -628,8 +881,29 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
      */
     abstract protected void drawObjects(float[] view, float[] perspective);
 
+    /**
+     * @return the start time of a span, or 0 if not tracing.
+     */
+    private long traceStart() {
+        return mTracer == null ? 0 : System.nanoTime();
+    }
+
+    /**
+     * Records a span that ends now, unless tracing was off when it started.
+     * @param name The name of the span.
+     * @param start The start time returned by {@link #traceStart}.
+     */
+    private void traceEnd(String name, long start) {
+        Tracer tracer = mTracer;
+        if (tracer != null && start != 0) {
+            tracer.span(name, start);
+        }
+    }
+
     @Override
-    public void onFinishFrame(Viewport viewport) {}
+    public void onFinishFrame(Viewport viewport) {
+        GLInstrumentation.endFrame();
+    }
 
     /**
      * Called when the Cardboard trigger is pulled.
@@ -649,6 +923,101 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
      */
     public <T> void setCaptureParam(@NonNull CaptureRequest.Key<T> key, T value) {
         mPreviewBuilder.set(key, value);
+        if (mCaptureScheduler != null) {
+            mCaptureScheduler.update();
+        }
+    }
+
+    /**
+     * Sets the rates at which the back-facing camera streams to the GL preview surface and to
+     * the additional (processing) surfaces. The camera streams continuously at the preview rate,
+     * and every n-th frame is also sent to the processing surfaces, so the processing rate is
+     * rounded to evenly divide the preview rate. Both default to 30 fps.
+     * @param previewFps The rate the camera view in front of the viewer is updated at.
+     * @param processingFps The rate images are sent to the processing surfaces at.
+     */
+    public void setCaptureRates(int previewFps, int processingFps) {
+        mPreviewFps = previewFps;
+        mProcessingFps = processingFps;
+        if (mCaptureScheduler != null) {
+            mCaptureScheduler.setTargetFps(previewFps, processingFps);
+        }
+    }
+
+    /**
+     * Sets whether the 3D scene is rendered once per frame and shown to both eyes instead
+     * of once for each eye. In mono composite mode {@link #drawObjects drawObjects} is called
+     * a single time from the head position with the physical camera projection, the result is
+     * blended with the camera feed into one texture and that texture is put on the screen in
+     * front of both eyes. This halves the scene rendering and blending work at the cost of
+     * the objects having no stereo depth of their own, which matches the camera feed they
+     * are laid over since it is mono too. Off by default.
+     * @param monoComposite true to render the scene once per frame.
+     */
+    public void setMonoComposite(boolean monoComposite) {
+        mMonoComposite = monoComposite;
+    }
+
+    /**
+     * @return whether the 3D scene is rendered once per frame and shown to both eyes.
+     */
+    public boolean isMonoComposite() {
+        return mMonoComposite;
+    }
+
+    /**
+     * Sets whether the camera feed is sampled directly from the external texture the camera
+     * streams to, with the SurfaceTexture transform applied, by the shader blending it with
+     * the 3D scene. Otherwise every frame the camera image is first copied to a full resolution
+     * texture through a framebuffer, which costs a render pass and its memory bandwidth. Off
+     * by default.
+     * @param directCameraSampling true to sample the camera texture directly.
+     */
+    public void setDirectCameraSampling(boolean directCameraSampling) {
+        mDirectCameraSampling = directCameraSampling;
+    }
+
+    /**
+     * @return whether the camera feed is sampled directly from the camera texture.
+     */
+    public boolean isDirectCameraSampling() {
+        return mDirectCameraSampling;
+    }
+
+    /**
+     * @return the history of head poses recorded every frame. Use it with the timestamp of the
+     * camera image a pose was detected in, i.e. {@link DetectionResult#getTimestamp}, to place
+     * objects using the head pose from when the image was captured, see
+     * {@link GarUtil#getTransformationFromTrackingParams(float[], Mat, Mat, HeadPoseHistory, long)}.
+     */
+    public HeadPoseHistory getHeadPoseHistory() {
+        return mHeadPoseHistory;
+    }
+
+    /**
+     * @return a builder already started for the current frame, to fill in the model matrices of all
+     * tracked objects without allocating. When the detection pipeline is enabled and has a result,
+     * it is started with the head pose from when the image of that result was captured, otherwise
+     * with the head transform of the current frame. Only use it on the render thread.
+     */
+    public TransformBuilder getTransformBuilder() {
+        return mTransformBuilder;
+    }
+
+    /**
+     * @return the current time in nanoseconds in the same time base as the camera timestamps.
+     */
+    public long getCameraTimeNanos() {
+        // camera timestamps are either realtime or, when the source is unknown, in practice monotonic
+        return mRealtimeTimestamps ? SystemClock.elapsedRealtimeNanos() : System.nanoTime();
+    }
+
+    /**
+     * @return the scheduler streaming the camera to the surfaces, or null if the capture
+     * session has not been configured yet. It reports the sensor timestamp of each frame.
+     */
+    public CaptureScheduler getCaptureScheduler() {
+        return mCaptureScheduler;
     }
 
     /**
@@ -703,15 +1072,88 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
         return mProcessingSurface;
     }
 
+    /**
+     * Enables the built-in detection pipeline, which runs marker (and cube) detection
+     * on the images of the default processing ImageReader on a worker thread. Results
+     * can then be read every frame from {@link DetectionPipeline#getLatestResult getLatestResult}
+     * without blocking rendering. The pipeline is stopped while the activity is paused. It is
+     * first started once the GL surface is created, so
+     * this method must be called before then, i.e. in {@link #onCreate onCreate}, and
+     * {@link #setupCaptureSurfaces setupCaptureSurfaces} must still create the default processing reader.
+     * @param pipeline The pipeline to run on the processing images.
+     */
+    public void enableDetectionPipeline(DetectionPipeline pipeline) {
+        mDetectionPipeline = pipeline;
+        if (mMetrics != null) {
+            pipeline.setMetrics(mMetrics);
+        }
+        if (mTracer != null) {
+            pipeline.setTracer(mTracer);
+        }
+    }
+
+    /**
+     * Sets the registry the latencies of the frame are recorded to: onNewFrame, onDrawEye,
+     * building model matrices with the {@link #getTransformBuilder transform builder} and,
+     * if enabled, the stages of the detection pipeline. Take a
+     * {@link MetricsRegistry#snapshot snapshot} of it to read the percentiles of each stage.
+     * @param metrics The registry, or null to stop recording, which is the default.
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        mMetrics = metrics;
+        mNewFrameLatency = metrics == null ? null : metrics.histogram(MetricsRegistry.ON_NEW_FRAME);
+        mDrawEyeLatency = metrics == null ? null : metrics.histogram(MetricsRegistry.ON_DRAW_EYE);
+        mTransformBuilder.setMetrics(metrics);
+        if (mDetectionPipeline != null) {
+            mDetectionPipeline.setMetrics(metrics);
+        }
+    }
+
+    /**
+     * @return the registry the latencies of the frame are recorded to, or null if not recording.
+     */
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Sets the tracer the frames are recorded to, to see on a timeline which part of a frame
+     * took too long. Spans are recorded for onNewFrame and onDrawEye, and inside them for
+     * bringing the camera image to a texture, {@link #drawObjects drawObjects}, the mono
+     * composite and drawing the screen, as well as for building model matrices with the
+     * {@link #getTransformBuilder transform builder} and, if enabled, the stages of the
+     * detection pipeline on its own thread. Dump it with {@link Tracer#writeJson}.
+     * @param tracer The tracer, or null to stop tracing, which is the default.
+     */
+    public void setTracer(Tracer tracer) {
+        mTracer = tracer;
+        mTransformBuilder.setTracer(tracer);
+        if (mDetectionPipeline != null) {
+            mDetectionPipeline.setTracer(tracer);
+        }
+    }
+
+    /**
+     * @return the tracer the frames are recorded to, or null if not tracing.
+     */
+    public Tracer getTracer() {
+        return mTracer;
+    }
+
+    /**
+     * @return the built-in detection pipeline, or null if it has not been enabled.
+     */
+    public DetectionPipeline getDetectionPipeline() {
+        return mDetectionPipeline;
+    }
+
     /**
      * Disables the surfaces in the given list from being drawn to
      * by the back-facing camera capture.
      * @param surfaces
      */
     public void disableSurfaces(List<Surface> surfaces) {
-        for (Surface surface : surfaces) {
-            mPreviewBuilder.removeTarget(surface);
-        }
+        mCaptureScheduler.disableSurfaces(surfaces);
     }
 
     /**
@@ -720,9 +1162,7 @@ public abstract class GarActivity extends GvrActivity implements GvrView.StereoR
      * @param surfaces
      */
     public void enableSurfaces(List<Surface> surfaces) {
-        for (Surface surface : surfaces) {
-            mPreviewBuilder.addTarget(surface);
-        }
+        mCaptureScheduler.enableSurfaces(surfaces);
     }
 }
 
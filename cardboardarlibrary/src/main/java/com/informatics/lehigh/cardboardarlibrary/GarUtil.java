@@ -7,7 +7,8 @@ import android.content.res.Resources;
 
 import com.google.vr.sdk.base.HeadTransform;
 
-import org.opencv.core.Core;
+import com.informatics.lehigh.cardboardarlibrary.math.Rotations;
+
 import org.opencv.core.Mat;
 
 import java.io.BufferedReader;
@@ -62,6 +63,8 @@ public class GarUtil {
 
     /**
      * Checks if we've had an error inside of OpenGL ES, and if so what that error is.
+     * This always reads the error, which can stall the GPU, so in the render loop prefer
+     * {@link GLInstrumentation#check}, which is compiled out of production builds.
      *
      * @param label Label to report in case of error.
      */
@@ -116,17 +119,31 @@ public class GarUtil {
         headTransform.getUpVector(upVec, 0);
         headTransform.getRightVector(rightVec, 0);
 
+        setCardboardToWorldTransform(M, forwardVec, upVec, rightVec);
+    }
+
+    /**
+     * Same as {@link #getCardboardToWorldTransform getCardboardToWorldTransform} but from the forward,
+     * up, and right vectors of a head pose, i.e. one taken from a {@link HeadPoseHistory}.
+     * @param M The 4x4 matrix to place the transformation in.
+     * @param forwardVec The forward vector of the head pose.
+     * @param upVec The up vector of the head pose.
+     * @param rightVec The right vector of the head pose.
+     */
+    public static void setCardboardToWorldTransform(float[] M, float[] forwardVec, float[] upVec, float[] rightVec) {
         // transform to world coordinates from camera
-        // create m in column major order
-        // invert forward vec because in opengl -z is forward
-        float[] m = new float[] {
-                rightVec[0], upVec[0], -forwardVec[0], 0.0f,
-                rightVec[1], upVec[1], -forwardVec[1], 0.0f,
-                rightVec[2], upVec[2], -forwardVec[2], 0.0f,
-                0.0f, 0.0f, 0.0f, 1.0f
-        };
-        // a = m^T * b where b is vector representation in camera (cardboard) basis
-        Matrix.transposeM(M, 0, m, 0);
+        // m in column major order would be
+        //   rightVec[0], upVec[0], -forwardVec[0], 0,
+        //   rightVec[1], upVec[1], -forwardVec[1], 0,
+        //   rightVec[2], upVec[2], -forwardVec[2], 0,
+        //   0, 0, 0, 1
+        // inverting forward vec because in opengl -z is forward.
+        // a = m^T * b where b is vector representation in camera (cardboard) basis,
+        // so write m^T directly
+        M[0] = rightVec[0];    M[1] = rightVec[1];    M[2] = rightVec[2];    M[3] = 0.0f;
+        M[4] = upVec[0];       M[5] = upVec[1];       M[6] = upVec[2];       M[7] = 0.0f;
+        M[8] = -forwardVec[0]; M[9] = -forwardVec[1]; M[10] = -forwardVec[2]; M[11] = 0.0f;
+        M[12] = 0.0f;          M[13] = 0.0f;          M[14] = 0.0f;          M[15] = 1.0f;
     }
 
     /**
@@ -165,14 +182,25 @@ public class GarUtil {
      * @param tvec The OpenCV tvec to use.
      */
     public static void tvecToCardboardCoords(float[] cardTvec, Mat tvec) {
+        double[] t = new double[3];
+        tvec.get(0, 0, t);
+        tvecToCardboardCoords(cardTvec, t);
+    }
+
+    /**
+     * Same as {@link #tvecToCardboardCoords(float[], Mat)} but with the tvec in an array.
+     * @param cardTvec The 4 element array to place the new translation vector in. glTvec[3] is just 1.0
+     * @param tvec The OpenCV tvec to use, as a 3-vector.
+     */
+    public static void tvecToCardboardCoords(float[] cardTvec, double[] tvec) {
         if (cardTvec.length != 4) {
             throw new IllegalArgumentException("Destination array must be a 4-vector!");
         }
 
         // negate y and z for opengl coordinates
-        cardTvec[0] = (float) tvec.get(0, 0)[0];
-        cardTvec[1] = -(float) tvec.get(1, 0)[0];
-        cardTvec[2] = -(float) tvec.get(2, 0)[0];
+        cardTvec[0] = (float) tvec[0];
+        cardTvec[1] = -(float) tvec[1];
+        cardTvec[2] = -(float) tvec[2];
         cardTvec[3] = 1.0f;
     }
 
@@ -187,19 +215,42 @@ public class GarUtil {
      * @param headTransform The HeadTransform for the current frame.
      */
     public static void getRotationMatFromRvec(float[] rotMat, Mat rvec, HeadTransform headTransform) {
+        float[] mt = new float[16];
+        getCardboardToWorldTransform(mt, headTransform);
+        getRotationMatFromRvec(rotMat, rvec, mt);
+    }
+
+    /**
+     * Same as {@link #getRotationMatFromRvec(float[], Mat, HeadTransform)} but with an already
+     * calculated cardboard to world transformation.
+     * @param rotMat The 4x4 matrix to place the rotation in.
+     * @param rvec OpenCV rvec.
+     * @param cardboardToWorld The cardboard to world transformation of the head pose to use.
+     */
+    public static void getRotationMatFromRvec(float[] rotMat, Mat rvec, float[] cardboardToWorld) {
+        double[] r = new double[3];
+        rvec.get(0, 0, r);
+        getRotationMatFromRvec(rotMat, r, cardboardToWorld);
+    }
+
+    /**
+     * Same as {@link #getRotationMatFromRvec(float[], Mat, float[])} but with the rvec in an array.
+     * @param rotMat The 4x4 matrix to place the rotation in.
+     * @param rvec OpenCV rvec, as a 3-vector.
+     * @param cardboardToWorld The cardboard to world transformation of the head pose to use.
+     */
+    public static void getRotationMatFromRvec(float[] rotMat, double[] rvec, float[] cardboardToWorld) {
         if (rotMat.length != 16) {
             throw new IllegalArgumentException("Destination matrix array must be 4x4 (length 16)!");
         }
 
         // must use rvec to find rotation matrix
         // transform rotation axis to world space
-        float angleRad = (float) Core.norm(rvec, Core.NORM_L2);
+        float angleRad = (float) Rotations.norm(rvec);
         float angle = (float)Math.toDegrees(angleRad);
-        float rvecCam[] = {(float)rvec.get(0, 0)[0] / angleRad, -1.0f * (float)rvec.get(1, 0)[0] / angleRad, -1.0f * (float)rvec.get(2, 0)[0] / angleRad, 0.0f};
+        float rvecCam[] = {(float)rvec[0] / angleRad, -1.0f * (float)rvec[1] / angleRad, -1.0f * (float)rvec[2] / angleRad, 0.0f};
         float rvecArr[] = new float[4];
-        float[] mt = new float[16];
-        getCardboardToWorldTransform(mt, headTransform);
-        Matrix.multiplyMV(rvecArr, 0, mt, 0, rvecCam, 0);
+        Matrix.multiplyMV(rvecArr, 0, cardboardToWorld, 0, rvecCam, 0);
 
         // Build rotation matrix
         Matrix.setIdentityM(rotMat, 0);
@@ -211,19 +262,73 @@ public class GarUtil {
      * an object defined in the Cardboard coordinate system (defined by up, right, and forward vectors from the HeadTransform)
      * in the pose and location defined by the tvec and rvec. <br></br><br></br>
      * <b>Note: this method is recommended for drawing augmented objects in the scene.</b>
+     * It allocates temporary matrices on every call, to build the transformations of many objects
+     * every frame use a {@link TransformBuilder} instead.
      * @param transMat The 4x4 matrix to place the transformation in.
      * @param tvec The OpenCV tvec to use.
      * @param rvec The OpenCV rvec to use.
      * @param headTransform The head transformation from the same frame as tvec and rvec.
      */
     public static void getTransformationFromTrackingParams(float[] transMat, Mat tvec, Mat rvec, HeadTransform headTransform) {
+        float[] mt = new float[16];
+        getCardboardToWorldTransform(mt, headTransform);
+        getTransformationFromTrackingParams(transMat, tvec, rvec, mt);
+    }
+
+    /**
+     * Same as {@link #getTransformationFromTrackingParams(float[], Mat, Mat, HeadTransform)} but
+     * using the head pose from when the camera image that produced tvec and rvec was captured.
+     * The camera frame is usually tens of milliseconds older than the current HeadTransform, so
+     * this keeps augmented objects from swimming when the head turns.
+     * @param transMat The 4x4 matrix to place the transformation in.
+     * @param tvec The OpenCV tvec to use.
+     * @param rvec The OpenCV rvec to use.
+     * @param history The recorded head poses, i.e. from {@link GarActivity#getHeadPoseHistory}.
+     * @param timestamp The SENSOR_TIMESTAMP of the camera image tvec and rvec come from.
+     * @return false if the history is empty, in which case transMat is unchanged.
+     */
+    public static boolean getTransformationFromTrackingParams(float[] transMat, Mat tvec, Mat rvec,
+                                                              HeadPoseHistory history, long timestamp) {
+        float[] mt = new float[16];
+        if (!history.getCardboardToWorldTransform(mt, timestamp)) {
+            return false;
+        }
+        getTransformationFromTrackingParams(transMat, tvec, rvec, mt);
+        return true;
+    }
+
+    /**
+     * Same as {@link #getTransformationFromTrackingParams(float[], Mat, Mat, HeadTransform)} but with
+     * an already calculated cardboard to world transformation.
+     * @param transMat The 4x4 matrix to place the transformation in.
+     * @param tvec The OpenCV tvec to use.
+     * @param rvec The OpenCV rvec to use.
+     * @param cardboardToWorld The cardboard to world transformation of the head pose to use.
+     */
+    public static void getTransformationFromTrackingParams(float[] transMat, Mat tvec, Mat rvec, float[] cardboardToWorld) {
+        double[] t = new double[3];
+        double[] r = new double[3];
+        tvec.get(0, 0, t);
+        rvec.get(0, 0, r);
+        getTransformationFromTrackingParams(transMat, t, r, cardboardToWorld);
+    }
+
+    /**
+     * Same as {@link #getTransformationFromTrackingParams(float[], Mat, Mat, float[])} but with the
+     * tvec and rvec in arrays, i.e. from {@link Cube#getTvec(double[])} and {@link Cube#getRvec(double[])}.
+     * @param transMat The 4x4 matrix to place the transformation in.
+     * @param tvec The OpenCV tvec to use, as a 3-vector.
+     * @param rvec The OpenCV rvec to use, as a 3-vector.
+     * @param cardboardToWorld The cardboard to world transformation of the head pose to use.
+     */
+    public static void getTransformationFromTrackingParams(float[] transMat, double[] tvec, double[] rvec, float[] cardboardToWorld) {
         if (transMat.length != 16) {
             throw new IllegalArgumentException("Destination matrix array must be 4x4 (length 16)!");
         }
 
         // Get the rotation matrix
         float[] rot = new float[16];
-        getRotationMatFromRvec(rot, rvec, headTransform);
+        getRotationMatFromRvec(rot, rvec, cardboardToWorld);
 
         // Turn tvec into a cardboard basis coordinate system
         float[] tvecCam = new float[4];
@@ -249,10 +354,8 @@ public class GarUtil {
         Matrix.scaleM(scale, 0, scaleFact, scaleFact, scaleFact);
 
         // transform to world coords
-        float[] mt = new float[16];
-        getCardboardToWorldTransform(mt, headTransform);
         float tvecWorld[] = new float[4];
-        Matrix.multiplyMV(tvecWorld, 0, mt, 0, tvecCam, 0);
+        Matrix.multiplyMV(tvecWorld, 0, cardboardToWorld, 0, tvecCam, 0);
         // Build translation matrix
         float trans[] = new float[16];
         Matrix.setIdentityM(trans, 0);
@@ -261,7 +364,7 @@ public class GarUtil {
         // multiply together, we want v' = TSRM^T v
         float[] basisChangeRot = new float[16];
         float[] addScale = new float[16];
-        Matrix.multiplyMM(basisChangeRot, 0, rot, 0, mt, 0);
+        Matrix.multiplyMM(basisChangeRot, 0, rot, 0, cardboardToWorld, 0);
         Matrix.multiplyMM(addScale, 0, scale, 0, basisChangeRot, 0);
 
         Matrix.setIdentityM(transMat, 0);
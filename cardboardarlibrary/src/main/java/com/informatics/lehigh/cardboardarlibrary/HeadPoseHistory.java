@@ -0,0 +1,185 @@
+package com.informatics.lehigh.cardboardarlibrary;
+
+import com.google.vr.sdk.base.HeadTransform;
+
+/**
+ * Fixed-size history of the head pose (forward, up, and right vectors of the HeadTransform)
+ * keyed by a nanosecond timestamp. Camera images are usually tens of milliseconds old by the
+ * time a pose has been detected in them, so combining the pose with the current HeadTransform
+ * makes augmented objects swim when the head turns. This history gives the head pose from when
+ * the image was captured instead. Recording and lookups do not allocate; both are meant to be
+ * done from the render thread.
+ */
+public class HeadPoseHistory {
+
+    /** Default number of poses kept, a bit more than a second at 60 fps */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /** Timestamps of the recorded poses */
+    private final long[] mTimestamps;
+    /** Forward vectors, 3 floats per pose */
+    private final float[] mForward;
+    /** Up vectors, 3 floats per pose */
+    private final float[] mUp;
+    /** Right vectors, 3 floats per pose */
+    private final float[] mRight;
+    /** Index the next pose will be written to */
+    private int mNext;
+    /** Number of poses recorded, up to the capacity */
+    private int mCount;
+    /** Scratch vectors for building transforms */
+    private final float[] mScratchForward = new float[3];
+    private final float[] mScratchUp = new float[3];
+    private final float[] mScratchRight = new float[3];
+
+    /**
+     * Creates a history keeping the {@link #DEFAULT_CAPACITY default} number of poses.
+     */
+    public HeadPoseHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a history keeping the given number of poses.
+     * @param capacity The number of poses to keep. At the render rate this should
+     *                 cover more than the worst camera-to-pose latency.
+     */
+    public HeadPoseHistory(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("History must hold at least 2 poses!");
+        }
+        mTimestamps = new long[capacity];
+        mForward = new float[3 * capacity];
+        mUp = new float[3 * capacity];
+        mRight = new float[3 * capacity];
+    }
+
+    /**
+     * Records the head pose at the given time, replacing the oldest one if the history is full.
+     * Timestamps must be increasing.
+     * @param timestamp The time of the pose in nanoseconds, in the same base as the camera SENSOR_TIMESTAMP.
+     * @param headTransform The head transform to record.
+     */
+    public void record(long timestamp, HeadTransform headTransform) {
+        int offset = 3 * mNext;
+        headTransform.getForwardVector(mForward, offset);
+        headTransform.getUpVector(mUp, offset);
+        headTransform.getRightVector(mRight, offset);
+        mTimestamps[mNext] = timestamp;
+        mNext = (mNext + 1) % mTimestamps.length;
+        if (mCount < mTimestamps.length) {
+            mCount++;
+        }
+    }
+
+    /**
+     * Removes all recorded poses.
+     */
+    public void clear() {
+        mNext = 0;
+        mCount = 0;
+    }
+
+    /**
+     * @return the number of poses currently recorded.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Gets the head pose at the given time, linearly interpolated between the two recorded poses
+     * around it and re-orthonormalized. Times outside of the history are clamped to the oldest
+     * or newest pose.
+     * @param timestamp The time in nanoseconds, i.e. the SENSOR_TIMESTAMP of a camera frame.
+     * @param forward The 3-vector to place the forward vector in.
+     * @param up The 3-vector to place the up vector in.
+     * @param right The 3-vector to place the right vector in.
+     * @return false if no pose has been recorded yet, in which case the vectors are unchanged.
+     */
+    public boolean getHeadPose(long timestamp, float[] forward, float[] up, float[] right) {
+        if (mCount == 0) {
+            return false;
+        }
+
+        int capacity = mTimestamps.length;
+        int newest = (mNext - 1 + capacity) % capacity;
+        int oldest = (mNext - mCount + capacity) % capacity;
+
+        // walk back from the newest pose to find the first one not after the timestamp
+        int after = newest;
+        int before = -1;
+        for (int i = 0; i < mCount; i++) {
+            int idx = (newest - i + capacity) % capacity;
+            if (mTimestamps[idx] <= timestamp) {
+                before = idx;
+                break;
+            }
+            after = idx;
+        }
+
+        if (before == -1) {
+            // older than anything recorded
+            copyPose(oldest, forward, up, right);
+            return true;
+        }
+        if (before == newest || mTimestamps[after] == mTimestamps[before]) {
+            copyPose(before, forward, up, right);
+            return true;
+        }
+
+        float t = (float) (timestamp - mTimestamps[before]) / (float) (mTimestamps[after] - mTimestamps[before]);
+        int b = 3 * before;
+        int a = 3 * after;
+        for (int k = 0; k < 3; k++) {
+            forward[k] = mForward[b + k] + t * (mForward[a + k] - mForward[b + k]);
+            up[k] = mUp[b + k] + t * (mUp[a + k] - mUp[b + k]);
+        }
+
+        // re-orthonormalize: keep forward, make up perpendicular to it, and right = forward x up
+        normalize(forward);
+        float dot = forward[0] * up[0] + forward[1] * up[1] + forward[2] * up[2];
+        for (int k = 0; k < 3; k++) {
+            up[k] -= dot * forward[k];
+        }
+        normalize(up);
+        right[0] = forward[1] * up[2] - forward[2] * up[1];
+        right[1] = forward[2] * up[0] - forward[0] * up[2];
+        right[2] = forward[0] * up[1] - forward[1] * up[0];
+        return true;
+    }
+
+    /**
+     * Calculates the column-major cardboard to world transformation (see
+     * {@link GarUtil#getCardboardToWorldTransform GarUtil.getCardboardToWorldTransform}) from the
+     * head pose at the given time.
+     * @param M The 4x4 matrix to place the transformation in.
+     * @param timestamp The time in nanoseconds, i.e. the SENSOR_TIMESTAMP of a camera frame.
+     * @return false if no pose has been recorded yet, in which case M is unchanged.
+     */
+    public boolean getCardboardToWorldTransform(float[] M, long timestamp) {
+        if (M.length != 16) {
+            throw new IllegalArgumentException("Destination matrix array must be 4x4 (length 16)!");
+        }
+        if (!getHeadPose(timestamp, mScratchForward, mScratchUp, mScratchRight)) {
+            return false;
+        }
+        GarUtil.setCardboardToWorldTransform(M, mScratchForward, mScratchUp, mScratchRight);
+        return true;
+    }
+
+    private void copyPose(int idx, float[] forward, float[] up, float[] right) {
+        System.arraycopy(mForward, 3 * idx, forward, 0, 3);
+        System.arraycopy(mUp, 3 * idx, up, 0, 3);
+        System.arraycopy(mRight, 3 * idx, right, 0, 3);
+    }
+
+    private static void normalize(float[] v) {
+        float len = (float) Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+        if (len > 0.0f) {
+            v[0] /= len;
+            v[1] /= len;
+            v[2] /= len;
+        }
+    }
+}
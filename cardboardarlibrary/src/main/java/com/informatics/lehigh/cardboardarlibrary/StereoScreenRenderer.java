@@ -2,6 +2,7 @@ package com.informatics.lehigh.cardboardarlibrary;
 
 
 import android.app.Activity;
+import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.opengl.Matrix;
 import android.util.Log;
@@ -70,6 +71,28 @@ public class StereoScreenRenderer implements GLRenderer {
     private int mScreenCameraTextureID;
     /** ID of screen texture that holds the 3d objects screne */
     private int mScreenObjectsTextureID;
+    /** Program using the mono composite shaders */
+    private int mMonoProgram;
+    /** Attribute location for mono composite texture */
+    private int mMonoCompositeTextureParam;
+    /** Attribute location for ModelViewProjection matrix of mono program */
+    private int mMonoModelViewProjectionParam;
+    /** ID of texture that holds camera feed and objects already blended, 0 if not used */
+    private int mCompositeTextureID;
+    /** Program sampling the external camera texture directly */
+    private int mOesProgram;
+    /** Attribute location for external camera texture */
+    private int mOesCameraTextureParam;
+    /** Attribute location for objects texture of external camera program */
+    private int mOesObjectsTextureParam;
+    /** Attribute location for ModelViewProjection matrix of external camera program */
+    private int mOesModelViewProjectionParam;
+    /** Attribute location for camera texture transform of external camera program */
+    private int mOesTextureTransformParam;
+    /** ID of the external texture the camera feed is streamed to, 0 if not used */
+    private int mExternalCameraTextureID;
+    /** Transform of the camera texture coordinates for the external camera texture */
+    private float[] mExternalCameraTransform;
     /** GarUtil instance */
     private GarUtil garutil;
 
@@ -114,15 +137,52 @@ public class StereoScreenRenderer implements GLRenderer {
         Log.d("texture", String.valueOf(mScreenTextureParam));
 
         GLES20.glLinkProgram(mScreenProgram);
-        GLES20.glUseProgram(mScreenProgram);
+        GLInstrumentation.glUseProgram(mScreenProgram);
 
-        garutil.checkGLError("Screen program");
+        GLInstrumentation.check("Screen program");
 
         mScreenModelViewProjectionParam = GLES20.glGetUniformLocation(mScreenProgram, "u_MVP");
         mScreenCameraTextureParam = GLES20.glGetUniformLocation(mScreenProgram, "u_cameraTexture");
         mScreenObjectsTextureParam = GLES20.glGetUniformLocation(mScreenProgram, "u_objectsTexture");
 
-        garutil.checkGLError("screen program params");
+        GLInstrumentation.check("screen program params");
+
+        // the mono program shares the vertex shader and attribute locations
+        int monoFragmentShader = garutil.loadGLShader(GLES20.GL_FRAGMENT_SHADER, R.raw.screen_mono_frag);
+
+        mMonoProgram = GLES20.glCreateProgram();
+        GLES20.glAttachShader(mMonoProgram, vertexShader);
+        GLES20.glAttachShader(mMonoProgram, monoFragmentShader);
+        GLES20.glBindAttribLocation(mMonoProgram, mScreenPositionParam, "a_Position");
+        GLES20.glBindAttribLocation(mMonoProgram, mScreenTextureParam, "a_TexCoordinate");
+        GLES20.glLinkProgram(mMonoProgram);
+
+        GLInstrumentation.check("Mono screen program");
+
+        mMonoModelViewProjectionParam = GLES20.glGetUniformLocation(mMonoProgram, "u_MVP");
+        mMonoCompositeTextureParam = GLES20.glGetUniformLocation(mMonoProgram, "u_compositeTexture");
+
+        GLInstrumentation.check("mono screen program params");
+
+        // the external camera program needs its own vertex shader to apply the texture transform
+        int oesVertexShader = garutil.loadGLShader(GLES20.GL_VERTEX_SHADER, R.raw.screen_oes_vert);
+        int oesFragmentShader = garutil.loadGLShader(GLES20.GL_FRAGMENT_SHADER, R.raw.screen_oes_frag);
+
+        mOesProgram = GLES20.glCreateProgram();
+        GLES20.glAttachShader(mOesProgram, oesVertexShader);
+        GLES20.glAttachShader(mOesProgram, oesFragmentShader);
+        GLES20.glBindAttribLocation(mOesProgram, mScreenPositionParam, "a_Position");
+        GLES20.glBindAttribLocation(mOesProgram, mScreenTextureParam, "a_TexCoordinate");
+        GLES20.glLinkProgram(mOesProgram);
+
+        GLInstrumentation.check("External camera screen program");
+
+        mOesModelViewProjectionParam = GLES20.glGetUniformLocation(mOesProgram, "u_MVP");
+        mOesTextureTransformParam = GLES20.glGetUniformLocation(mOesProgram, "u_STMatrix");
+        mOesCameraTextureParam = GLES20.glGetUniformLocation(mOesProgram, "u_cameraTexture");
+        mOesObjectsTextureParam = GLES20.glGetUniformLocation(mOesProgram, "u_objectsTexture");
+
+        GLInstrumentation.check("external camera screen program params");
     }
 
     @Override
@@ -152,7 +212,10 @@ public class StereoScreenRenderer implements GLRenderer {
      * Draws a 3D screen in front of the user that is textured with the live camera
      * feed and provided scene objects.
      * {@link #setCameraTexture setCameraTexture} and {@link #setObjectsTexture setObjectsTexture}
-     * should be called before using method.
+     * should be called before using method, unless a composite texture is set with
+     * {@link #setCompositeTexture setCompositeTexture}, in which case only that is drawn. The
+     * camera texture is replaced by the one set with
+     * {@link #setExternalCameraTexture setExternalCameraTexture}, if any.
      * @param view The 4x4 view matrix to use for rendering.
      * @param perspective The 4x4 projection matrix to user for rendering.
      */
@@ -167,41 +230,73 @@ public class StereoScreenRenderer implements GLRenderer {
         // get MVP
         Matrix.multiplyMM(mModelViewProjection, 0, perspective, 0, modelView, 0);
 
-        GLES20.glUseProgram(mScreenProgram);
-        garutil.checkGLError("using screen program");
-
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mScreenCameraTextureID);
-        GLES20.glUniform1i(mScreenCameraTextureParam, 0);
-        garutil.checkGLError("binding camera texture");
-
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mScreenObjectsTextureID);
-        GLES20.glUniform1i(mScreenObjectsTextureParam, 1);
-        garutil.checkGLError("binding objects texture");
+        int mvpParam;
+        if (mCompositeTextureID != 0) {
+            GLInstrumentation.glUseProgram(mMonoProgram);
+            GLInstrumentation.check("using mono screen program");
+
+            GLInstrumentation.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLInstrumentation.glBindTexture(GLES20.GL_TEXTURE_2D, mCompositeTextureID);
+            GLES20.glUniform1i(mMonoCompositeTextureParam, 0);
+            GLInstrumentation.check("binding composite texture");
+            mvpParam = mMonoModelViewProjectionParam;
+        } else if (mExternalCameraTextureID != 0) {
+            GLInstrumentation.glUseProgram(mOesProgram);
+            GLInstrumentation.check("using external camera screen program");
+
+            GLInstrumentation.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLInstrumentation.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mExternalCameraTextureID);
+            GLES20.glUniform1i(mOesCameraTextureParam, 0);
+            GLES20.glUniformMatrix4fv(mOesTextureTransformParam, 1, false, mExternalCameraTransform, 0);
+            GLInstrumentation.check("binding external camera texture");
+
+            GLInstrumentation.glActiveTexture(GLES20.GL_TEXTURE1);
+            GLInstrumentation.glBindTexture(GLES20.GL_TEXTURE_2D, mScreenObjectsTextureID);
+            GLES20.glUniform1i(mOesObjectsTextureParam, 1);
+            GLInstrumentation.check("binding objects texture");
+            mvpParam = mOesModelViewProjectionParam;
+        } else {
+            GLInstrumentation.glUseProgram(mScreenProgram);
+            GLInstrumentation.check("using screen program");
+
+            GLInstrumentation.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLInstrumentation.glBindTexture(GLES20.GL_TEXTURE_2D, mScreenCameraTextureID);
+            GLES20.glUniform1i(mScreenCameraTextureParam, 0);
+            GLInstrumentation.check("binding camera texture");
+
+            GLInstrumentation.glActiveTexture(GLES20.GL_TEXTURE1);
+            GLInstrumentation.glBindTexture(GLES20.GL_TEXTURE_2D, mScreenObjectsTextureID);
+            GLES20.glUniform1i(mScreenObjectsTextureParam, 1);
+            GLInstrumentation.check("binding objects texture");
+            mvpParam = mScreenModelViewProjectionParam;
+        }
 
         // Set the position of the screen
         GLES20.glVertexAttribPointer(mScreenPositionParam, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, mScreenVertBuf);
-        garutil.checkGLError("set screen pos pointer");
+        GLInstrumentation.check("set screen pos pointer");
 
         // Set the texture coords for the screen
         GLES20.glVertexAttribPointer(mScreenTextureParam, 4, GLES20.GL_FLOAT, false, 0, mScreenTexBuf);
-        garutil.checkGLError("setting texture attribute pointers");
+        GLInstrumentation.check("setting texture attribute pointers");
 
         // Set the ModelViewProjection matrix in the shader.
-        GLES20.glUniformMatrix4fv(mScreenModelViewProjectionParam, 1, false, mModelViewProjection, 0);
-        garutil.checkGLError("set modelviewprojection uniform");
+        GLES20.glUniformMatrix4fv(mvpParam, 1, false, mModelViewProjection, 0);
+        GLInstrumentation.check("set modelviewprojection uniform");
 
         // Enable vertex arrays
         GLES20.glEnableVertexAttribArray(mScreenPositionParam);
         GLES20.glEnableVertexAttribArray(mScreenTextureParam);
 
         // actually draw
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, 6);
-        garutil.checkGLError("Drawing bill");
+        GLInstrumentation.glDrawArrays(GLES20.GL_TRIANGLES, 0, 6);
+        GLInstrumentation.check("Drawing bill");
 
         // free texture
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLInstrumentation.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        if (mCompositeTextureID == 0 && mExternalCameraTextureID != 0) {
+            GLInstrumentation.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLInstrumentation.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+        }
     }
 
     /**
@@ -220,4 +315,29 @@ public class StereoScreenRenderer implements GLRenderer {
     public void setObjectsTexture(int objectsTexId) {
         mScreenObjectsTextureID = objectsTexId;
     }
+
+    /**
+     * Sets a texture that already has the 3D objects scene blended over the camera
+     * feed, i.e. rendered by a {@link CompositeRenderer}. While set, the screen is textured
+     * with it alone and the camera and objects textures are not sampled.
+     * @param compositeTexId The composite texture, or 0 to go back to blending the camera
+     *                       and objects textures.
+     */
+    public void setCompositeTexture(int compositeTexId) {
+        mCompositeTextureID = compositeTexId;
+    }
+
+    /**
+     * Sets the external (OES) texture the camera feed is streamed to by a SurfaceTexture,
+     * to be sampled directly instead of the camera texture, so the camera image doesn't have
+     * to be copied to a texture first. It is not updated by this renderer, i.e.
+     * {@link CameraTextureRenderer#updateCameraImage} must be called every frame.
+     * @param cameraOesTexId The external camera texture, or 0 to go back to the camera texture.
+     * @param transform The 4x4 texture coordinate transform of the SurfaceTexture, read every
+     *                  time the screen is drawn so it can be updated in place.
+     */
+    public void setExternalCameraTexture(int cameraOesTexId, float[] transform) {
+        mExternalCameraTextureID = cameraOesTexId;
+        mExternalCameraTransform = transform;
+    }
 }
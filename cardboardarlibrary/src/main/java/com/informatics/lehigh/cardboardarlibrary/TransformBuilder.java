@@ -0,0 +1,221 @@
+package com.informatics.lehigh.cardboardarlibrary;
+
+import android.opengl.Matrix;
+
+import com.google.vr.sdk.base.HeadTransform;
+
+import org.opencv.core.Mat;
+
+import es.ava.aruco.debug.LatencyHistogram;
+import es.ava.aruco.debug.MetricsRegistry;
+import es.ava.aruco.debug.Tracer;
+
+/**
+ * Builds the model matrices of augmented objects from OpenCV tracking parameters, like
+ * {@link GarUtil#getTransformationFromTrackingParams GarUtil.getTransformationFromTrackingParams},
+ * without allocating. The cardboard to world transformation is calculated once per frame with one
+ * of the begin methods, after which any number of poses can be turned into model matrices, one
+ * at a time or as a batch written into a single caller-supplied array. A builder holds scratch
+ * state so it must only be used from one thread, normally the render thread.
+ */
+public class TransformBuilder {
+
+    /** Number of values of a pose in a batch: tx, ty, tz, rx, ry, rz */
+    public static final int POSE_LENGTH = 6;
+    /** Number of values of a model matrix */
+    public static final int MATRIX_LENGTH = 16;
+
+    /** Cardboard to world transformation of the current frame */
+    private final float[] mCardboardToWorld = new float[16];
+    /** Whether a cardboard to world transformation has been set */
+    private boolean mStarted;
+    /** Latency of building one model matrix, null if not recording */
+    private volatile LatencyHistogram mPoseTransformLatency;
+    /** Tracer each model matrix built is recorded to, null if not tracing */
+    private volatile Tracer mTracer;
+
+    //
+    // Scratch values
+    //
+    private final float[] mForward = new float[3];
+    private final float[] mUp = new float[3];
+    private final float[] mRight = new float[3];
+    private final double[] mTvec = new double[3];
+    private final double[] mRvec = new double[3];
+    private final float[] mCamVec = new float[4];
+    private final float[] mWorldVec = new float[4];
+    private final float[] mRot = new float[16];
+    private final float[] mScale = new float[16];
+    private final float[] mTrans = new float[16];
+    private final float[] mBasisChangeRot = new float[16];
+    private final float[] mAddScale = new float[16];
+
+    /**
+     * Sets the registry the time taken to build each model matrix is recorded to, as the
+     * {@link MetricsRegistry#POSE_TRANSFORM POSE_TRANSFORM} stage.
+     * @param metrics The registry, or null to stop recording.
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        mPoseTransformLatency = metrics == null ? null : metrics.histogram(MetricsRegistry.POSE_TRANSFORM);
+    }
+
+    /**
+     * Sets the tracer building each model matrix is recorded to as a span.
+     * @param tracer The tracer, or null to stop tracing.
+     */
+    public void setTracer(Tracer tracer) {
+        mTracer = tracer;
+    }
+
+    /**
+     * Starts a frame with the cardboard to world transformation of the given head transform.
+     * @param headTransform The head transform of the frame.
+     */
+    public void begin(HeadTransform headTransform) {
+        headTransform.getForwardVector(mForward, 0);
+        headTransform.getUpVector(mUp, 0);
+        headTransform.getRightVector(mRight, 0);
+        GarUtil.setCardboardToWorldTransform(mCardboardToWorld, mForward, mUp, mRight);
+        mStarted = true;
+    }
+
+    /**
+     * Starts a frame with the head pose from when a camera image was captured.
+     * @param history The recorded head poses.
+     * @param timestamp The SENSOR_TIMESTAMP of the camera image the poses come from.
+     * @return false if the history is empty, in which case the builder is unchanged.
+     */
+    public boolean begin(HeadPoseHistory history, long timestamp) {
+        if (!history.getCardboardToWorldTransform(mCardboardToWorld, timestamp)) {
+            return false;
+        }
+        mStarted = true;
+        return true;
+    }
+
+    /**
+     * Starts a frame with an already calculated cardboard to world transformation.
+     * @param cardboardToWorld The 4x4 cardboard to world transformation, which is copied.
+     */
+    public void begin(float[] cardboardToWorld) {
+        if (cardboardToWorld.length != 16) {
+            throw new IllegalArgumentException("Cardboard to world matrix array must be 4x4 (length 16)!");
+        }
+        System.arraycopy(cardboardToWorld, 0, mCardboardToWorld, 0, 16);
+        mStarted = true;
+    }
+
+    /**
+     * Builds the model matrix of one pose.
+     * @param out The array to place the 4x4 matrix in.
+     * @param outOffset The index of out to place the matrix at.
+     * @param tvec The OpenCV tvec, as a 3-vector.
+     * @param rvec The OpenCV rvec, as a 3-vector.
+     */
+    public void build(float[] out, int outOffset, double[] tvec, double[] rvec) {
+        build(out, outOffset, tvec[0], tvec[1], tvec[2], rvec[0], rvec[1], rvec[2]);
+    }
+
+    /**
+     * Builds the model matrix of one pose held in Mats, i.e. the tvec and rvec of a Marker.
+     * @param out The array to place the 4x4 matrix in.
+     * @param outOffset The index of out to place the matrix at.
+     * @param tvec The OpenCV tvec.
+     * @param rvec The OpenCV rvec.
+     */
+    public void build(float[] out, int outOffset, Mat tvec, Mat rvec) {
+        tvec.get(0, 0, mTvec);
+        rvec.get(0, 0, mRvec);
+        build(out, outOffset, mTvec, mRvec);
+    }
+
+    /**
+     * Builds the model matrix of a detected cube.
+     * @param out The array to place the 4x4 matrix in.
+     * @param outOffset The index of out to place the matrix at.
+     * @param cube The cube.
+     */
+    public void build(float[] out, int outOffset, Cube cube) {
+        build(out, outOffset, cube.tvec, cube.rvec);
+    }
+
+    /**
+     * Builds the model matrices of a batch of poses.
+     * @param out The array to place the matrices in, {@link #MATRIX_LENGTH} values per pose.
+     * @param outOffset The index of out to place the first matrix at.
+     * @param poses The poses, {@link #POSE_LENGTH} values per pose: the tvec followed by the rvec.
+     * @param posesOffset The index of the first pose in poses.
+     * @param count The number of poses.
+     */
+    public void build(float[] out, int outOffset, double[] poses, int posesOffset, int count) {
+        if (out.length < outOffset + count * MATRIX_LENGTH) {
+            throw new IllegalArgumentException("Destination array is too small for the batch!");
+        }
+        if (poses.length < posesOffset + count * POSE_LENGTH) {
+            throw new IllegalArgumentException("Pose array is too small for the batch!");
+        }
+        for (int i = 0; i < count; i++) {
+            int p = posesOffset + i * POSE_LENGTH;
+            build(out, outOffset + i * MATRIX_LENGTH,
+                    poses[p], poses[p + 1], poses[p + 2], poses[p + 3], poses[p + 4], poses[p + 5]);
+        }
+    }
+
+    private void build(float[] out, int outOffset, double tx, double ty, double tz, double rx, double ry, double rz) {
+        if (!mStarted) {
+            throw new IllegalStateException("Begin must be called before building transformations!");
+        }
+        LatencyHistogram latency = mPoseTransformLatency;
+        Tracer tracer = mTracer;
+        long start = latency == null && tracer == null ? 0 : System.nanoTime();
+
+        // rotation axis to world space, negating y and z for opengl coordinates
+        float angleRad = (float) Math.sqrt(rx * rx + ry * ry + rz * rz);
+        if (angleRad > 0.0f) {
+            mCamVec[0] = (float) rx / angleRad;
+            mCamVec[1] = -(float) ry / angleRad;
+            mCamVec[2] = -(float) rz / angleRad;
+            mCamVec[3] = 0.0f;
+            Matrix.multiplyMV(mWorldVec, 0, mCardboardToWorld, 0, mCamVec, 0);
+            Matrix.setRotateM(mRot, 0, (float) Math.toDegrees(angleRad), mWorldVec[0], mWorldVec[1], mWorldVec[2]);
+        } else {
+            Matrix.setIdentityM(mRot, 0);
+        }
+
+        // translation in the cardboard basis, moved to the screen depth and scaled to compensate
+        // (see GarUtil.getTransformationFromTrackingParams)
+        float camX = (float) tx;
+        float camY = -(float) ty;
+        float camZ = -(float) tz;
+        float absZ = Math.abs(camZ);
+        float distToMoveZ = Math.abs(absZ - Math.abs(StereoScreenRenderer.SCREEN_DEPTH));
+        float adjustZ = (StereoScreenRenderer.SCREEN_DEPTH <= camZ ? -distToMoveZ : distToMoveZ);
+        float scaleFact = 1.0f - adjustZ / absZ;
+        mCamVec[0] = camX - adjustZ * camX / absZ;
+        mCamVec[1] = camY - adjustZ * camY / absZ;
+        mCamVec[2] = camZ + adjustZ;
+        mCamVec[3] = 1.0f;
+        Matrix.setIdentityM(mScale, 0);
+        Matrix.scaleM(mScale, 0, scaleFact, scaleFact, scaleFact);
+
+        // translation to world coords
+        Matrix.multiplyMV(mWorldVec, 0, mCardboardToWorld, 0, mCamVec, 0);
+        Matrix.setIdentityM(mTrans, 0);
+        Matrix.translateM(mTrans, 0, mWorldVec[0], mWorldVec[1], mWorldVec[2]);
+
+        // v' = TSRM^T v
+        Matrix.multiplyMM(mBasisChangeRot, 0, mRot, 0, mCardboardToWorld, 0);
+        Matrix.multiplyMM(mAddScale, 0, mScale, 0, mBasisChangeRot, 0);
+        Matrix.multiplyMM(out, outOffset, mTrans, 0, mAddScale, 0);
+
+        if (latency != null || tracer != null) {
+            long end = System.nanoTime();
+            if (latency != null) {
+                latency.record(end - start);
+            }
+            if (tracer != null) {
+                tracer.span("pose_transform", start, end);
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.informatics.lehigh.cardboardarlibrary.math;
+
+/**
+ * Unit quaternion math on primitive arrays. Quaternions are double[4] in the order
+ * w, x, y, z. Rotation matrices and vectors follow the layout of {@link Rotations}.
+ * None of the methods allocate, and the destination may be one of the sources.
+ */
+public final class Quaternions {
+
+    private Quaternions() {
+    }
+
+    /**
+     * Calculates the quaternion of a rotation vector.
+     * @param rvec The rotation vector, its direction is the axis and its norm the angle in radians.
+     * @param q The quaternion to place the rotation in.
+     */
+    public static void fromRodrigues(double[] rvec, double[] q) {
+        double theta = Rotations.norm(rvec);
+        if (theta < 1e-12) {
+            q[0] = 1.0;
+            q[1] = q[2] = q[3] = 0.0;
+            return;
+        }
+        double s = Math.sin(theta * 0.5) / theta;
+        q[0] = Math.cos(theta * 0.5);
+        q[1] = rvec[0] * s;
+        q[2] = rvec[1] * s;
+        q[3] = rvec[2] * s;
+    }
+
+    /**
+     * Calculates the rotation vector of a unit quaternion, with an angle of at most pi.
+     * @param q The quaternion.
+     * @param rvec The 3-vector to place the rotation vector in.
+     */
+    public static void toRodrigues(double[] q, double[] rvec) {
+        // q and -q are the same rotation, use the one with the smaller angle
+        double sign = q[0] < 0 ? -1.0 : 1.0;
+        double s = Math.sqrt(q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
+        if (s < 1e-12) {
+            rvec[0] = rvec[1] = rvec[2] = 0.0;
+            return;
+        }
+        double scale = sign * 2.0 * Math.atan2(s, sign * q[0]) / s;
+        rvec[0] = q[1] * scale;
+        rvec[1] = q[2] * scale;
+        rvec[2] = q[3] * scale;
+    }
+
+    /**
+     * Calculates the quaternion of a rotation matrix.
+     * @param R The 3x3 rotation matrix.
+     * @param q The quaternion to place the rotation in.
+     */
+    public static void fromMatrix(double[] R, double[] q) {
+        double trace = R[0] + R[4] + R[8];
+        double w, x, y, z;
+        // use the largest of the diagonal terms for stability
+        if (trace > 0) {
+            double s = 2.0 * Math.sqrt(trace + 1.0);
+            w = 0.25 * s;
+            x = (R[7] - R[5]) / s;
+            y = (R[2] - R[6]) / s;
+            z = (R[3] - R[1]) / s;
+        } else if (R[0] > R[4] && R[0] > R[8]) {
+            double s = 2.0 * Math.sqrt(1.0 + R[0] - R[4] - R[8]);
+            w = (R[7] - R[5]) / s;
+            x = 0.25 * s;
+            y = (R[1] + R[3]) / s;
+            z = (R[2] + R[6]) / s;
+        } else if (R[4] > R[8]) {
+            double s = 2.0 * Math.sqrt(1.0 + R[4] - R[0] - R[8]);
+            w = (R[2] - R[6]) / s;
+            x = (R[1] + R[3]) / s;
+            y = 0.25 * s;
+            z = (R[5] + R[7]) / s;
+        } else {
+            double s = 2.0 * Math.sqrt(1.0 + R[8] - R[0] - R[4]);
+            w = (R[3] - R[1]) / s;
+            x = (R[2] + R[6]) / s;
+            y = (R[5] + R[7]) / s;
+            z = 0.25 * s;
+        }
+        q[0] = w;
+        q[1] = x;
+        q[2] = y;
+        q[3] = z;
+    }
+
+    /**
+     * Calculates the rotation matrix of a unit quaternion.
+     * @param q The quaternion.
+     * @param R The 3x3 matrix to place the rotation in.
+     */
+    public static void toMatrix(double[] q, double[] R) {
+        double w = q[0], x = q[1], y = q[2], z = q[3];
+        R[0] = 1 - 2 * (y * y + z * z); R[1] = 2 * (x * y - w * z);     R[2] = 2 * (x * z + w * y);
+        R[3] = 2 * (x * y + w * z);     R[4] = 1 - 2 * (x * x + z * z); R[5] = 2 * (y * z - w * x);
+        R[6] = 2 * (x * z - w * y);     R[7] = 2 * (y * z + w * x);     R[8] = 1 - 2 * (x * x + y * y);
+    }
+
+    /**
+     * Composes two rotations, out = a * b, i.e. b is applied first.
+     * @param a The left quaternion.
+     * @param b The right quaternion.
+     * @param out The quaternion to place the product in, may be a or b.
+     */
+    public static void multiply(double[] a, double[] b, double[] out) {
+        double w = a[0] * b[0] - a[1] * b[1] - a[2] * b[2] - a[3] * b[3];
+        double x = a[0] * b[1] + a[1] * b[0] + a[2] * b[3] - a[3] * b[2];
+        double y = a[0] * b[2] - a[1] * b[3] + a[2] * b[0] + a[3] * b[1];
+        double z = a[0] * b[3] + a[1] * b[2] - a[2] * b[1] + a[3] * b[0];
+        out[0] = w;
+        out[1] = x;
+        out[2] = y;
+        out[3] = z;
+    }
+
+    /**
+     * Scales a quaternion to unit length.
+     * @param q The quaternion.
+     */
+    public static void normalize(double[] q) {
+        double norm = Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
+        if (norm > 0.0) {
+            q[0] /= norm;
+            q[1] /= norm;
+            q[2] /= norm;
+            q[3] /= norm;
+        }
+    }
+
+    /**
+     * Adds a quaternion to a running sum used for averaging rotations. The quaternion is
+     * negated if it is in the opposite hemisphere of the sum, since q and -q are the same
+     * rotation but would cancel each other out. Normalize the sum to get the average.
+     * @param sum The running sum, start from all zeros.
+     * @param q The quaternion to add.
+     */
+    public static void accumulate(double[] sum, double[] q) {
+        double dot = sum[0] * q[0] + sum[1] * q[1] + sum[2] * q[2] + sum[3] * q[3];
+        double sign = dot < 0 ? -1.0 : 1.0;
+        sum[0] += sign * q[0];
+        sum[1] += sign * q[1];
+        sum[2] += sign * q[2];
+        sum[3] += sign * q[3];
+    }
+}
@@ -0,0 +1,182 @@
+package com.informatics.lehigh.cardboardarlibrary.math;
+
+/**
+ * Rotation math on primitive arrays, so poses can be manipulated without OpenCV Mats and
+ * JNI round trips. Rotation matrices are 3x3, row-major double[9] (the layout of a 3x3
+ * CV_64FC1 Mat), vectors and rotation vectors (the rvecs of OpenCV) are double[3].
+ * None of the methods allocate, and the destination may be one of the sources.
+ */
+public final class Rotations {
+
+    /** Angles below this are treated as no rotation */
+    private static final double EPSILON = 1e-9;
+
+    private Rotations() {
+    }
+
+    /**
+     * Calculates the rotation matrix of a rotation vector, like Calib3d.Rodrigues.
+     * @param rvec The rotation vector, its direction is the axis and its norm the angle in radians.
+     * @param R The 3x3 matrix to place the rotation in.
+     */
+    public static void fromRodrigues(double[] rvec, double[] R) {
+        double theta = norm(rvec);
+        if (theta < EPSILON) {
+            setIdentity(R);
+            return;
+        }
+        double x = rvec[0] / theta;
+        double y = rvec[1] / theta;
+        double z = rvec[2] / theta;
+        double c = Math.cos(theta);
+        double s = Math.sin(theta);
+        double t = 1.0 - c;
+        R[0] = c + t * x * x;     R[1] = t * x * y - s * z; R[2] = t * x * z + s * y;
+        R[3] = t * x * y + s * z; R[4] = c + t * y * y;     R[5] = t * y * z - s * x;
+        R[6] = t * x * z - s * y; R[7] = t * y * z + s * x; R[8] = c + t * z * z;
+    }
+
+    /**
+     * Calculates the rotation vector of a rotation matrix, like Calib3d.Rodrigues.
+     * @param R The 3x3 rotation matrix.
+     * @param rvec The 3-vector to place the rotation vector in.
+     */
+    public static void toRodrigues(double[] R, double[] rvec) {
+        double rx = R[7] - R[5];
+        double ry = R[2] - R[6];
+        double rz = R[3] - R[1];
+        double s = Math.sqrt((rx * rx + ry * ry + rz * rz) * 0.25);
+        double c = (R[0] + R[4] + R[8] - 1.0) * 0.5;
+        c = c > 1.0 ? 1.0 : c < -1.0 ? -1.0 : c;
+        double theta = Math.acos(c);
+
+        if (s < 1e-5) {
+            if (c > 0) {
+                rvec[0] = rvec[1] = rvec[2] = 0.0;
+                return;
+            }
+            // rotation of almost pi, the axis comes from the diagonal
+            double t;
+            t = (R[0] + 1.0) * 0.5;
+            rx = Math.sqrt(Math.max(t, 0.0));
+            t = (R[4] + 1.0) * 0.5;
+            ry = Math.sqrt(Math.max(t, 0.0)) * (R[1] < 0 ? -1.0 : 1.0);
+            t = (R[8] + 1.0) * 0.5;
+            rz = Math.sqrt(Math.max(t, 0.0)) * (R[2] < 0 ? -1.0 : 1.0);
+            if (Math.abs(rx) < Math.abs(ry) && Math.abs(rx) < Math.abs(rz) && (R[5] > 0) != (ry * rz > 0)) {
+                rz = -rz;
+            }
+            double scale = theta / Math.sqrt(rx * rx + ry * ry + rz * rz);
+            rvec[0] = rx * scale;
+            rvec[1] = ry * scale;
+            rvec[2] = rz * scale;
+        } else {
+            double scale = 1.0 / (2.0 * s) * theta;
+            rvec[0] = rx * scale;
+            rvec[1] = ry * scale;
+            rvec[2] = rz * scale;
+        }
+    }
+
+    /**
+     * Sets a 3x3 matrix to the identity.
+     * @param R The matrix.
+     */
+    public static void setIdentity(double[] R) {
+        R[0] = 1.0; R[1] = 0.0; R[2] = 0.0;
+        R[3] = 0.0; R[4] = 1.0; R[5] = 0.0;
+        R[6] = 0.0; R[7] = 0.0; R[8] = 1.0;
+    }
+
+    /**
+     * Multiplies two 3x3 matrices, out = a * b.
+     * @param a The left matrix.
+     * @param b The right matrix.
+     * @param out The matrix to place the product in, may be a or b.
+     */
+    public static void multiply(double[] a, double[] b, double[] out) {
+        double m0 = a[0] * b[0] + a[1] * b[3] + a[2] * b[6];
+        double m1 = a[0] * b[1] + a[1] * b[4] + a[2] * b[7];
+        double m2 = a[0] * b[2] + a[1] * b[5] + a[2] * b[8];
+        double m3 = a[3] * b[0] + a[4] * b[3] + a[5] * b[6];
+        double m4 = a[3] * b[1] + a[4] * b[4] + a[5] * b[7];
+        double m5 = a[3] * b[2] + a[4] * b[5] + a[5] * b[8];
+        double m6 = a[6] * b[0] + a[7] * b[3] + a[8] * b[6];
+        double m7 = a[6] * b[1] + a[7] * b[4] + a[8] * b[7];
+        double m8 = a[6] * b[2] + a[7] * b[5] + a[8] * b[8];
+        out[0] = m0; out[1] = m1; out[2] = m2;
+        out[3] = m3; out[4] = m4; out[5] = m5;
+        out[6] = m6; out[7] = m7; out[8] = m8;
+    }
+
+    /**
+     * Rotates a 3x3 matrix around its X axis, R = R * Rx.
+     * @param R The matrix to rotate.
+     * @param degrees The amount to rotate in degrees.
+     */
+    public static void rotateX(double[] R, double degrees) {
+        double c = Math.cos(Math.toRadians(degrees));
+        double s = Math.sin(Math.toRadians(degrees));
+        for (int i = 0; i < 9; i += 3) {
+            double r1 = R[i + 1];
+            double r2 = R[i + 2];
+            R[i + 1] = r1 * c + r2 * s;
+            R[i + 2] = -r1 * s + r2 * c;
+        }
+    }
+
+    /**
+     * Rotates a 3x3 matrix around its Y axis, R = R * Ry.
+     * @param R The matrix to rotate.
+     * @param degrees The amount to rotate in degrees.
+     */
+    public static void rotateY(double[] R, double degrees) {
+        double c = Math.cos(Math.toRadians(degrees));
+        double s = Math.sin(Math.toRadians(degrees));
+        for (int i = 0; i < 9; i += 3) {
+            double r0 = R[i];
+            double r2 = R[i + 2];
+            R[i] = r0 * c - r2 * s;
+            R[i + 2] = r0 * s + r2 * c;
+        }
+    }
+
+    /**
+     * Rotates a 3x3 matrix around its Z axis, R = R * Rz.
+     * @param R The matrix to rotate.
+     * @param degrees The amount to rotate in degrees.
+     */
+    public static void rotateZ(double[] R, double degrees) {
+        double c = Math.cos(Math.toRadians(degrees));
+        double s = Math.sin(Math.toRadians(degrees));
+        for (int i = 0; i < 9; i += 3) {
+            double r0 = R[i];
+            double r1 = R[i + 1];
+            R[i] = r0 * c + r1 * s;
+            R[i + 1] = -r0 * s + r1 * c;
+        }
+    }
+
+    /**
+     * Transforms a vector by a 3x3 matrix, out = R * v.
+     * @param R The matrix.
+     * @param v The vector.
+     * @param out The 3-vector to place the result in, may be v.
+     */
+    public static void transform(double[] R, double[] v, double[] out) {
+        double x = R[0] * v[0] + R[1] * v[1] + R[2] * v[2];
+        double y = R[3] * v[0] + R[4] * v[1] + R[5] * v[2];
+        double z = R[6] * v[0] + R[7] * v[1] + R[8] * v[2];
+        out[0] = x;
+        out[1] = y;
+        out[2] = z;
+    }
+
+    /**
+     * @param v A 3-vector.
+     * @return the euclidean norm of the vector.
+     */
+    public static double norm(double[] v) {
+        return Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+    }
+}
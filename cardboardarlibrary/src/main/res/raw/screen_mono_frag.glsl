@@ -0,0 +1,9 @@
+uniform sampler2D u_compositeTexture;    // The camera feed with the objects scene already blended in.
+
+precision mediump float;
+
+varying vec2 v_TexCoordinate;
+
+void main() {
+    gl_FragColor = texture2D(u_compositeTexture, v_TexCoordinate);
+}
@@ -0,0 +1,24 @@
+// important to include in order to use rendered Android View to gl texture
+#extension GL_OES_EGL_image_external : require
+
+//make sure to use samplerExternalOES instead of sampler2D
+uniform samplerExternalOES u_cameraTexture;    // The input camera feed texture.
+uniform sampler2D u_objectsTexture;    // The input objects scene texture.
+
+precision mediump float;
+
+varying vec2 v_TexCoordinate;
+varying vec2 v_CameraTexCoordinate;
+
+void main() {
+    vec4 objectColor = texture2D(u_objectsTexture, v_TexCoordinate);
+    vec4 cameraColor = texture2D(u_cameraTexture, v_CameraTexCoordinate);
+
+    if (objectColor.a == 1.0) {
+        gl_FragColor = objectColor;
+    } else if (objectColor.a == 0.0){
+        gl_FragColor = cameraColor;
+    } else {
+         gl_FragColor = cameraColor + objectColor;
+    }
+}
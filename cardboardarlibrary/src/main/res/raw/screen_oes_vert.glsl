@@ -0,0 +1,17 @@
+uniform mat4 u_MVP;
+uniform mat4 u_STMatrix;    // The transform of the camera SurfaceTexture.
+
+attribute vec3 a_Position;
+attribute vec4 a_TexCoordinate;
+
+varying vec2 v_TexCoordinate;
+varying vec2 v_CameraTexCoordinate;
+
+void main() {
+    // Pass through the texture coordinate for the objects scene,
+    // the camera image has to be sampled with the SurfaceTexture transform.
+   v_TexCoordinate = a_TexCoordinate.xy;
+   v_CameraTexCoordinate = (u_STMatrix * a_TexCoordinate).xy;
+
+   gl_Position = u_MVP * vec4(a_Position, 1.0);
+}
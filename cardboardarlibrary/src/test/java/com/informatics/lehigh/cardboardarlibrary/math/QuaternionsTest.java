@@ -0,0 +1,145 @@
+package com.informatics.lehigh.cardboardarlibrary.math;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.informatics.lehigh.cardboardarlibrary.math.RotationsTest.assertMatrixEquals;
+import static com.informatics.lehigh.cardboardarlibrary.math.RotationsTest.product;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the quaternion math against the rotation matrices of {@link Rotations}.
+ */
+public class QuaternionsTest {
+
+    private static final double TOLERANCE = 1e-11;
+    private static final int SAMPLES = 100000;
+
+    private final Random mRandom = new Random(2);
+
+    @Test
+    public void fromRodriguesMatchesRotationMatrix() {
+        double[] rvec = new double[3];
+        double[] q = new double[4];
+        double[] R = new double[9];
+        double[] expected = new double[9];
+        for (int i = 0; i < SAMPLES; i++) {
+            randomRvec(rvec, Math.PI);
+            Quaternions.fromRodrigues(rvec, q);
+            assertEquals(1.0, norm(q), TOLERANCE);
+            Quaternions.toMatrix(q, R);
+            Rotations.fromRodrigues(rvec, expected);
+            assertMatrixEquals(expected, R, TOLERANCE);
+        }
+    }
+
+    @Test
+    public void matrixRoundTrips() {
+        double[] rvec = new double[3];
+        double[] q = new double[4];
+        double[] fromMatrix = new double[4];
+        double[] R = new double[9];
+        for (int i = 0; i < SAMPLES; i++) {
+            // every branch of fromMatrix is reached with angles up to a full turn
+            randomRvec(rvec, 2 * Math.PI);
+            Quaternions.fromRodrigues(rvec, q);
+            Quaternions.toMatrix(q, R);
+            Quaternions.fromMatrix(R, fromMatrix);
+            // q and -q are the same rotation
+            double sign = dot(q, fromMatrix) < 0 ? -1.0 : 1.0;
+            for (int j = 0; j < 4; j++) {
+                assertEquals(q[j], sign * fromMatrix[j], TOLERANCE);
+            }
+        }
+    }
+
+    @Test
+    public void rodriguesRoundTrips() {
+        double[] rvec = new double[3];
+        double[] q = new double[4];
+        double[] back = new double[3];
+        for (int i = 0; i < SAMPLES; i++) {
+            randomRvec(rvec, Math.PI - 1e-6);
+            Quaternions.fromRodrigues(rvec, q);
+            Quaternions.toRodrigues(q, back);
+            for (int j = 0; j < 3; j++) {
+                assertEquals(rvec[j], back[j], TOLERANCE);
+            }
+            // -q gives the same rotation vector
+            for (int j = 0; j < 4; j++) {
+                q[j] = -q[j];
+            }
+            Quaternions.toRodrigues(q, back);
+            for (int j = 0; j < 3; j++) {
+                assertEquals(rvec[j], back[j], TOLERANCE);
+            }
+        }
+    }
+
+    @Test
+    public void multiplyComposesLikeMatrices() {
+        double[] ra = new double[3];
+        double[] rb = new double[3];
+        double[] a = new double[4];
+        double[] b = new double[4];
+        double[] ab = new double[4];
+        double[] Ra = new double[9];
+        double[] Rb = new double[9];
+        double[] expected = new double[9];
+        double[] R = new double[9];
+        for (int i = 0; i < SAMPLES; i++) {
+            randomRvec(ra, Math.PI);
+            randomRvec(rb, Math.PI);
+            Quaternions.fromRodrigues(ra, a);
+            Quaternions.fromRodrigues(rb, b);
+            Quaternions.multiply(a, b, ab);
+            Quaternions.toMatrix(ab, R);
+            Rotations.fromRodrigues(ra, Ra);
+            Rotations.fromRodrigues(rb, Rb);
+            product(Ra, Rb, expected);
+            assertMatrixEquals(expected, R, TOLERANCE);
+        }
+    }
+
+    @Test
+    public void accumulateAveragesOppositeSigns() {
+        double[] rvec = {0.3, -0.2, 0.5};
+        double[] q = new double[4];
+        double[] negated = new double[4];
+        double[] sum = new double[4];
+        Quaternions.fromRodrigues(rvec, q);
+        for (int j = 0; j < 4; j++) {
+            negated[j] = -q[j];
+        }
+        Quaternions.accumulate(sum, q);
+        Quaternions.accumulate(sum, negated);
+        Quaternions.accumulate(sum, q);
+        Quaternions.normalize(sum);
+        for (int j = 0; j < 4; j++) {
+            assertEquals(q[j], sum[j], TOLERANCE);
+        }
+    }
+
+    private void randomRvec(double[] rvec, double maxNorm) {
+        double norm;
+        do {
+            rvec[0] = mRandom.nextDouble() * 2 - 1;
+            rvec[1] = mRandom.nextDouble() * 2 - 1;
+            rvec[2] = mRandom.nextDouble() * 2 - 1;
+            norm = Rotations.norm(rvec);
+        } while (norm > 1 || norm < 1e-6);
+        double scale = maxNorm * mRandom.nextDouble() / norm;
+        rvec[0] *= scale;
+        rvec[1] *= scale;
+        rvec[2] *= scale;
+    }
+
+    private static double dot(double[] a, double[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2] + a[3] * b[3];
+    }
+
+    private static double norm(double[] q) {
+        return Math.sqrt(dot(q, q));
+    }
+}
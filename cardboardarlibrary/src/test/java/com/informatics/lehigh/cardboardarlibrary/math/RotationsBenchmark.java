@@ -0,0 +1,151 @@
+package com.informatics.lehigh.cardboardarlibrary.math;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.Random;
+
+/**
+ * Compares the rotation math with the Mat and Calib3d.Rodrigues code it replaced in
+ * CubeDetector: the rotation of a face to the center of a cube, i.e. Rodrigues to a matrix,
+ * a product with a fixed rotation and Rodrigues back to a vector. Run it on a plain JVM:
+ * <pre>
+ * java -Djava.library.path=&lt;dir of libopencv_java2411&gt; -cp &lt;classes&gt;:&lt;opencv-2411.jar&gt; \
+ *     com.informatics.lehigh.cardboardarlibrary.math.RotationsBenchmark [iterations]
+ * </pre>
+ * Without the desktop OpenCV native library only the pure Java version is timed. With it
+ * both results are also checked to agree.
+ */
+public class RotationsBenchmark {
+
+    private static final int SAMPLES = 1024;
+    private static final int ROUNDS = 5;
+
+    /** Results of the timed loops, so the JIT can not remove them */
+    private static volatile double sSink;
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        boolean openCv;
+        try {
+            System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+            openCv = true;
+        } catch (UnsatisfiedLinkError e) {
+            System.out.println("OpenCV native library not found, timing the pure Java version only");
+            openCv = false;
+        }
+
+        double[][] rvecs = new double[SAMPLES][3];
+        Random random = new Random(1);
+        for (double[] rvec : rvecs) {
+            for (int j = 0; j < 3; j++) {
+                rvec[j] = (random.nextDouble() * 2 - 1) * 1.5;
+            }
+        }
+        double[] face = new double[9];
+        Rotations.setIdentity(face);
+        Rotations.rotateX(face, 90);
+        Rotations.rotateZ(face, -90);
+
+        if (openCv) {
+            checkAgreement(rvecs, face);
+        }
+        for (int round = 0; round < ROUNDS; round++) {
+            // the first rounds warm up the JIT
+            long javaNanos = timeJava(rvecs, face, iterations);
+            String line = "round " + round + ": java " + perOp(javaNanos, iterations) + " ns/op";
+            if (openCv) {
+                long matNanos = timeMat(rvecs, face, iterations);
+                line += ", mat " + perOp(matNanos, iterations) + " ns/op, speedup "
+                        + String.format("%.1f", (double) matNanos / javaNanos) + "x";
+            }
+            System.out.println(line);
+        }
+    }
+
+    private static long timeJava(double[][] rvecs, double[] face, int iterations) {
+        double[] R = new double[9];
+        double[] out = new double[3];
+        double sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Rotations.fromRodrigues(rvecs[i & (SAMPLES - 1)], R);
+            Rotations.multiply(R, face, R);
+            Rotations.toRodrigues(R, out);
+            sink += out[0];
+        }
+        long nanos = System.nanoTime() - start;
+        consume(sink);
+        return nanos;
+    }
+
+    private static long timeMat(double[][] rvecs, double[] face, int iterations) {
+        Mat rvec = new Mat(3, 1, CvType.CV_64FC1);
+        Mat R = new Mat(3, 3, CvType.CV_64FC1);
+        Mat faceMat = new Mat(3, 3, CvType.CV_64FC1);
+        Mat rotated = new Mat(3, 3, CvType.CV_64FC1);
+        Mat outMat = new Mat(3, 1, CvType.CV_64FC1);
+        Mat empty = new Mat();
+        faceMat.put(0, 0, face);
+        double[] out = new double[3];
+        double sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            rvec.put(0, 0, rvecs[i & (SAMPLES - 1)]);
+            Calib3d.Rodrigues(rvec, R);
+            Core.gemm(R, faceMat, 1, empty, 0, rotated);
+            Calib3d.Rodrigues(rotated, outMat);
+            outMat.get(0, 0, out);
+            sink += out[0];
+        }
+        long nanos = System.nanoTime() - start;
+        consume(sink);
+        return nanos;
+    }
+
+    private static void checkAgreement(double[][] rvecs, double[] face) {
+        Mat rvec = new Mat(3, 1, CvType.CV_64FC1);
+        Mat R = new Mat(3, 3, CvType.CV_64FC1);
+        Mat faceMat = new Mat(3, 3, CvType.CV_64FC1);
+        Mat rotated = new Mat(3, 3, CvType.CV_64FC1);
+        Mat outMat = new Mat(3, 1, CvType.CV_64FC1);
+        faceMat.put(0, 0, face);
+        double[] javaR = new double[9];
+        double[] matR = new double[9];
+        double[] javaOut = new double[3];
+        double[] matOut = new double[3];
+        double maxError = 0;
+        for (double[] sample : rvecs) {
+            rvec.put(0, 0, sample);
+            Calib3d.Rodrigues(rvec, R);
+            R.get(0, 0, matR);
+            Core.gemm(R, faceMat, 1, new Mat(), 0, rotated);
+            Calib3d.Rodrigues(rotated, outMat);
+            outMat.get(0, 0, matOut);
+
+            Rotations.fromRodrigues(sample, javaR);
+            for (int j = 0; j < 9; j++) {
+                maxError = Math.max(maxError, Math.abs(javaR[j] - matR[j]));
+            }
+            Rotations.multiply(javaR, face, javaR);
+            Rotations.toRodrigues(javaR, javaOut);
+            for (int j = 0; j < 3; j++) {
+                maxError = Math.max(maxError, Math.abs(javaOut[j] - matOut[j]));
+            }
+        }
+        System.out.println("max difference with Calib3d.Rodrigues: " + maxError);
+        if (maxError > 1e-9) {
+            throw new AssertionError("Rotations disagrees with Calib3d.Rodrigues by " + maxError);
+        }
+    }
+
+    private static String perOp(long nanos, int iterations) {
+        return String.format("%.1f", (double) nanos / iterations);
+    }
+
+    private static void consume(double value) {
+        sSink = value;
+    }
+}
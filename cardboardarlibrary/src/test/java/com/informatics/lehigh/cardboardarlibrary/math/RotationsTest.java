@@ -0,0 +1,210 @@
+package com.informatics.lehigh.cardboardarlibrary.math;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the rotation math against straightforward reference implementations: the
+ * exponential series of the rotation vector and plain matrix products.
+ */
+public class RotationsTest {
+
+    private static final double TOLERANCE = 1e-11;
+    private static final int SAMPLES = 100000;
+
+    private final Random mRandom = new Random(1);
+
+    @Test
+    public void fromRodriguesMatchesExponentialSeries() {
+        double[] rvec = new double[3];
+        double[] R = new double[9];
+        double[] expected = new double[9];
+        for (int i = 0; i < SAMPLES; i++) {
+            randomRvec(rvec, Math.PI);
+            Rotations.fromRodrigues(rvec, R);
+            exp(rvec, expected);
+            assertMatrixEquals(expected, R, TOLERANCE);
+        }
+    }
+
+    @Test
+    public void rodriguesRoundTrips() {
+        double[] rvec = new double[3];
+        double[] R = new double[9];
+        double[] back = new double[3];
+        for (int i = 0; i < SAMPLES; i++) {
+            // near pi the axis is recovered from the diagonal, checked separately below
+            randomRvec(rvec, Math.PI - 1e-3);
+            Rotations.fromRodrigues(rvec, R);
+            Rotations.toRodrigues(R, back);
+            for (int j = 0; j < 3; j++) {
+                assertEquals(rvec[j], back[j], TOLERANCE);
+            }
+        }
+    }
+
+    @Test
+    public void toRodriguesHandlesHalfTurns() {
+        double[] rvec = new double[3];
+        double[] R = new double[9];
+        double[] back = new double[3];
+        double[] again = new double[9];
+        for (int i = 0; i < SAMPLES; i++) {
+            randomRvec(rvec, 1.0);
+            double scale = Math.PI / Rotations.norm(rvec);
+            rvec[0] *= scale;
+            rvec[1] *= scale;
+            rvec[2] *= scale;
+            Rotations.fromRodrigues(rvec, R);
+            Rotations.toRodrigues(R, back);
+            // the axis may come back flipped, which is the same half turn, and the angle is
+            // only known to about 1e-8 since it comes from acos near -1, as in Calib3d.Rodrigues
+            assertEquals(Math.PI, Rotations.norm(back), 1e-7);
+            Rotations.fromRodrigues(back, again);
+            assertMatrixEquals(R, again, 1e-7);
+        }
+    }
+
+    @Test
+    public void toRodriguesOfIdentityIsZero() {
+        double[] R = new double[9];
+        double[] rvec = {1, 1, 1};
+        Rotations.setIdentity(R);
+        Rotations.toRodrigues(R, rvec);
+        assertEquals(0.0, Rotations.norm(rvec), 0.0);
+    }
+
+    @Test
+    public void multiplyMatchesPlainProduct() {
+        double[] a = new double[9];
+        double[] b = new double[9];
+        double[] out = new double[9];
+        double[] expected = new double[9];
+        for (int i = 0; i < SAMPLES; i++) {
+            randomMatrix(a);
+            randomMatrix(b);
+            product(a, b, expected);
+            Rotations.multiply(a, b, out);
+            assertMatrixEquals(expected, out, TOLERANCE);
+            // the destination may be a source
+            Rotations.multiply(a, b, a);
+            assertMatrixEquals(expected, a, TOLERANCE);
+        }
+    }
+
+    @Test
+    public void axisRotationsMatchProducts() {
+        double[] R = new double[9];
+        double[] rotated = new double[9];
+        double[] axis = new double[9];
+        double[] expected = new double[9];
+        for (int i = 0; i < SAMPLES; i++) {
+            randomMatrix(R);
+            double degrees = (mRandom.nextDouble() * 2 - 1) * 360;
+            double rad = Math.toRadians(degrees);
+
+            System.arraycopy(R, 0, rotated, 0, 9);
+            Rotations.rotateX(rotated, degrees);
+            Rotations.fromRodrigues(new double[]{rad, 0, 0}, axis);
+            product(R, axis, expected);
+            assertMatrixEquals(expected, rotated, TOLERANCE);
+
+            System.arraycopy(R, 0, rotated, 0, 9);
+            Rotations.rotateY(rotated, degrees);
+            Rotations.fromRodrigues(new double[]{0, rad, 0}, axis);
+            product(R, axis, expected);
+            assertMatrixEquals(expected, rotated, TOLERANCE);
+
+            System.arraycopy(R, 0, rotated, 0, 9);
+            Rotations.rotateZ(rotated, degrees);
+            Rotations.fromRodrigues(new double[]{0, 0, rad}, axis);
+            product(R, axis, expected);
+            assertMatrixEquals(expected, rotated, TOLERANCE);
+        }
+    }
+
+    @Test
+    public void transformMatchesPlainProduct() {
+        double[] R = new double[9];
+        double[] v = new double[3];
+        double[] out = new double[3];
+        for (int i = 0; i < SAMPLES; i++) {
+            randomMatrix(R);
+            randomRvec(v, 10);
+            Rotations.transform(R, v, out);
+            for (int r = 0; r < 3; r++) {
+                double expected = 0;
+                for (int k = 0; k < 3; k++) {
+                    expected += R[3 * r + k] * v[k];
+                }
+                assertEquals(expected, out[r], TOLERANCE);
+            }
+        }
+    }
+
+    /**
+     * A random vector with a norm up to the given one.
+     */
+    private void randomRvec(double[] rvec, double maxNorm) {
+        double norm;
+        do {
+            rvec[0] = mRandom.nextDouble() * 2 - 1;
+            rvec[1] = mRandom.nextDouble() * 2 - 1;
+            rvec[2] = mRandom.nextDouble() * 2 - 1;
+            norm = Rotations.norm(rvec);
+        } while (norm > 1 || norm < 1e-6);
+        double scale = maxNorm * mRandom.nextDouble() / norm;
+        rvec[0] *= scale;
+        rvec[1] *= scale;
+        rvec[2] *= scale;
+    }
+
+    private void randomMatrix(double[] R) {
+        for (int i = 0; i < 9; i++) {
+            R[i] = mRandom.nextDouble() * 2 - 1;
+        }
+    }
+
+    /**
+     * The rotation matrix of a rotation vector as the exponential of its cross product matrix.
+     */
+    static void exp(double[] rvec, double[] R) {
+        double[] K = {
+                0, -rvec[2], rvec[1],
+                rvec[2], 0, -rvec[0],
+                -rvec[1], rvec[0], 0
+        };
+        double[] term = new double[9];
+        Rotations.setIdentity(term);
+        Rotations.setIdentity(R);
+        double[] next = new double[9];
+        for (int n = 1; n < 40; n++) {
+            product(term, K, next);
+            for (int i = 0; i < 9; i++) {
+                term[i] = next[i] / n;
+                R[i] += term[i];
+            }
+        }
+    }
+
+    static void product(double[] a, double[] b, double[] out) {
+        for (int r = 0; r < 3; r++) {
+            for (int c = 0; c < 3; c++) {
+                double sum = 0;
+                for (int k = 0; k < 3; k++) {
+                    sum += a[3 * r + k] * b[3 * k + c];
+                }
+                out[3 * r + c] = sum;
+            }
+        }
+    }
+
+    static void assertMatrixEquals(double[] expected, double[] actual, double tolerance) {
+        for (int i = 0; i < 9; i++) {
+            assertEquals("element " + i, expected[i], actual[i], tolerance);
+        }
+    }
+}